@@ -0,0 +1,265 @@
+/*
+ * Minecraft OpenType Font Support Mod
+ *
+ * Copyright (C) 2012 Wojciech Stryjewski <thvortex@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>..
+ */
+
+package betterfonts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+/**
+ * Stand-alone benchmark for the hashing of StringCache.Key objects. This class is not part of the mod itself; compile it together
+ * with the betterfonts package and run its main() method. It measures how long it takes to insert and then look up every string
+ * of a corpus in a map, using both the current StringCache.Key and the original polynomial hash (LegacyKey below). Two corpora
+ * are used: ordinary chat-like text, and an adversarial corpus where every string has the same legacy hash code. The adversarial
+ * strings are built by concatenating the blocks "Aa" and "BB" which hash identically with the 31*h+c polynomial, so N blocks give
+ * 2^N colliding strings of the same length.
+ *
+ * The current Key uses a random seed, so the exact numbers vary slightly between runs.
+ */
+public class StringCacheBenchmark
+{
+    /** Number of "Aa"/"BB" blocks in each adversarial string; the adversarial corpus has 2^BLOCKS strings */
+    private static final int BLOCKS = 13;
+
+    /** Number of times each measurement is repeated; the fastest run is reported to reduce noise from JIT and GC */
+    private static final int RUNS = 5;
+
+    /** Prefix added to every string to make them look like chat messages */
+    private static final String PREFIX = "<Player123> ";
+
+    /**
+     * The original StringCache.Key hashing where all ASCII digits hash as '0' using the same polynomial as String.hashCode().
+     * It does not implement Comparable, so HashMap cannot use a balanced tree for its colliding buckets either.
+     */
+    static private class LegacyKey
+    {
+        public String str;
+
+        public LegacyKey(String str)
+        {
+            this.str = str;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int code = 0, length = str.length();
+            boolean colorCode = false;
+
+            for (int index = 0; index < length; index++)
+            {
+                char c = str.charAt(index);
+                if(c >= '0' && c <= '9' && !colorCode)
+                {
+                    c = '0';
+                }
+                code = (code * 31) + c;
+                colorCode = (c == '\u00A7');
+            }
+
+            return code;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            String other = ((LegacyKey) o).str;
+            int length = str.length();
+
+            if(length != other.length())
+            {
+                return false;
+            }
+
+            boolean colorCode = false;
+            for(int index = 0; index < length; index++)
+            {
+                char c1 = str.charAt(index);
+                char c2 = other.charAt(index);
+
+                if(c1 != c2 && (c1 < '0' || c1 > '9' || c2 < '0' || c2 > '9' || colorCode))
+                {
+                    return false;
+                }
+                colorCode = (c1 == '\u00A7');
+            }
+
+            return true;
+        }
+    }
+
+    public static void main(String args[])
+    {
+        List<String> adversarial = adversarialCorpus();
+        List<String> ordinary = ordinaryCorpus(adversarial.size());
+
+        System.out.println("Strings per corpus: " + adversarial.size());
+        System.out.println("Distinct legacy hash codes in adversarial corpus: " + countLegacyHashes(adversarial));
+        System.out.println("Distinct Key hash codes in adversarial corpus: " + countKeyHashes(adversarial));
+        System.out.println();
+
+        /* Warm up the JIT on the ordinary corpus before measuring anything */
+        for(int i = 0; i < RUNS; i++)
+        {
+            measure(ordinary, false, new HashMap());
+            measure(ordinary, true, new HashMap());
+            measure(ordinary, true, new WeakHashMap());
+        }
+
+        report("ordinary     LegacyKey HashMap    ", ordinary, false, new HashMap());
+        report("ordinary     Key       HashMap    ", ordinary, true, new HashMap());
+        report("ordinary     Key       WeakHashMap", ordinary, true, new WeakHashMap());
+        report("adversarial  LegacyKey HashMap    ", adversarial, false, new HashMap());
+        report("adversarial  Key       HashMap    ", adversarial, true, new HashMap());
+        report("adversarial  Key       WeakHashMap", adversarial, true, new WeakHashMap());
+    }
+
+    /**
+     * Build 2^BLOCKS strings where each string is PREFIX followed by BLOCKS blocks of either "Aa" or "BB". All of these strings
+     * have the same legacy hash code.
+     */
+    private static List<String> adversarialCorpus()
+    {
+        List<String> corpus = new ArrayList();
+        StringBuilder builder = new StringBuilder();
+
+        for(int bits = 0; bits < (1 << BLOCKS); bits++)
+        {
+            builder.setLength(0);
+            builder.append(PREFIX);
+            for(int block = 0; block < BLOCKS; block++)
+            {
+                builder.append((bits & (1 << block)) != 0 ? "BB" : "Aa");
+            }
+            corpus.add(builder.toString());
+        }
+
+        return corpus;
+    }
+
+    /** Build a corpus of random chat-like strings with the same length as the adversarial ones. */
+    private static List<String> ordinaryCorpus(int size)
+    {
+        List<String> corpus = new ArrayList();
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(1);
+
+        for(int i = 0; i < size; i++)
+        {
+            builder.setLength(0);
+            builder.append(PREFIX);
+            while(builder.length() < PREFIX.length() + 2 * BLOCKS)
+            {
+                builder.append((char) ('a' + random.nextInt(26)));
+                if(random.nextInt(6) == 0)
+                {
+                    builder.append(' ');
+                }
+            }
+            builder.setLength(PREFIX.length() + 2 * BLOCKS);
+            corpus.add(builder.toString());
+        }
+
+        return corpus;
+    }
+
+    private static int countLegacyHashes(List<String> corpus)
+    {
+        HashMap<Integer, Boolean> hashes = new HashMap();
+        for(String str : corpus)
+        {
+            hashes.put(new LegacyKey(str).hashCode(), Boolean.TRUE);
+        }
+        return hashes.size();
+    }
+
+    private static int countKeyHashes(List<String> corpus)
+    {
+        HashMap<Integer, Boolean> hashes = new HashMap();
+        for(String str : corpus)
+        {
+            hashes.put(newKey(str).hashCode(), Boolean.TRUE);
+        }
+        return hashes.size();
+    }
+
+    private static StringCache.Key newKey(String str)
+    {
+        StringCache.Key key = new StringCache.Key();
+        key.setString(str, false);
+        return key;
+    }
+
+    /**
+     * Insert every string from the corpus into the map and then look up each one with a freshly created key (like cacheString()
+     * does with its lookupKey), reporting the best time over several runs in nanoseconds per string.
+     */
+    private static void report(String label, List<String> corpus, boolean useKey, Map map)
+    {
+        long best[] = measure(corpus, useKey, map);
+        System.out.println(label + "  insert " + (best[0] / corpus.size()) + " ns/string, lookup "
+            + (best[1] / corpus.size()) + " ns/string");
+    }
+
+    /**
+     * Run the insert and lookup measurements RUNS times.
+     *
+     * @return a two element array with the best insert time and the best lookup time in nanoseconds for the entire corpus
+     */
+    private static long[] measure(List<String> corpus, boolean useKey, Map map)
+    {
+        /* The keys must stay strongly reachable for the WeakHashMap */
+        List<Object> keys = new ArrayList();
+        long bestInsert = Long.MAX_VALUE, bestLookup = Long.MAX_VALUE;
+
+        for(int run = 0; run < RUNS; run++)
+        {
+            map.clear();
+            keys.clear();
+
+            long start = System.nanoTime();
+            for(String str : corpus)
+            {
+                Object key = useKey ? (Object) newKey(str) : (Object) new LegacyKey(str);
+                keys.add(key);
+                map.put(key, str);
+            }
+            long middle = System.nanoTime();
+
+            for(String str : corpus)
+            {
+                Object key = useKey ? (Object) newKey(str) : (Object) new LegacyKey(str);
+                if(map.get(key) == null)
+                {
+                    throw new IllegalStateException("String missing from map: " + str);
+                }
+            }
+            long end = System.nanoTime();
+
+            bestInsert = Math.min(bestInsert, middle - start);
+            bestLookup = Math.min(bestLookup, end - middle);
+        }
+
+        return new long[] { bestInsert, bestLookup };
+    }
+}
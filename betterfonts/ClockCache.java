@@ -0,0 +1,269 @@
+/*
+ * Minecraft OpenType Font Support Mod
+ *
+ * Copyright (C) 2012 Wojciech Stryjewski <thvortex@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>..
+ */
+
+package betterfonts;
+
+import java.util.HashMap;
+
+/**
+ * A bounded cache using the CLOCK replacement algorithm (an approximation of LRU). Every cached value lives in one slot of a
+ * fixed size ring and has a "referenced" bit which is set on every cache hit. When the cache is full, the clock hand sweeps
+ * around the ring clearing referenced bits until it finds a value that has not been used since the last sweep, and evicts it.
+ * Unlike a LinkedHashMap in access order, a cache hit never modifies the map or relinks any nodes; at most it sets a single
+ * boolean field that is usually already set. The cache can be bounded by both the number of entries and by the total
+ * estimated size (in bytes) of all cached values. Subclasses can override removed() to release any resources held by a value
+ * (i.e. OpenGL objects) once it leaves the cache.
+ *
+ * This class is not synchronized; just like the rest of StringCache, it must only be accessed from the main thread.
+ */
+class ClockCache<K, V>
+{
+    /** Maximum number of values the cache can hold; also the size of the ring array. */
+    private final int maxEntries;
+
+    /** Maximum total weight (i.e. estimated size in bytes) of all the values in the cache. */
+    private final long maxWeight;
+
+    /** Maps every key to the node holding its value and its position in the ring. */
+    private HashMap<K, Node<K, V>> index = new HashMap();
+
+    /** The ring of cache slots swept by the clock hand; null elements are free slots. */
+    private Node<K, V> ring[];
+
+    /** Position of the clock hand in the ring; this is the next slot examined for eviction. */
+    private int hand = 0;
+
+    /** Slot in the ring where the search for a free slot starts; this is either the most recently evicted slot or the one after the last insert. */
+    private int free = 0;
+
+    /** Current sum of the weights of every value in the cache. */
+    private long weight = 0;
+
+    /** Number of values removed from the cache to make room for new ones. */
+    private long evictions = 0;
+
+    /**
+     * Holds a single cached key/value pair along with the bookkeeping needed by the CLOCK algorithm. Callers that keep their own
+     * reference to a value (see getNode()) can mark it as recently used by setting the referenced bit directly. Setting the bit on
+     * a node that has already been evicted is harmless.
+     */
+    static class Node<K, V>
+    {
+        /** The key mapping to this node in the index; needed to remove the node from the index on eviction. */
+        public K key;
+
+        /** The cached value. */
+        public V value;
+
+        /** Estimated size of this value in bytes. */
+        public int weight;
+
+        /** Position of this node in the ring array. */
+        public int slot;
+
+        /** Set on every cache hit; cleared as the clock hand sweeps over the node. Nodes with this bit cleared are evicted. */
+        public boolean referenced;
+    }
+
+    /**
+     * Create a new empty cache.
+     *
+     * @param maxEntries the maximum number of values that can be cached; must be greater than zero
+     * @param maxWeight the maximum total estimated size in bytes of all cached values; zero or less means no size limit
+     */
+    public ClockCache(int maxEntries, long maxWeight)
+    {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight > 0 ? maxWeight : Long.MAX_VALUE;
+        ring = new Node[maxEntries];
+    }
+
+    /**
+     * Lookup a cached value. On a hit, the value is only marked as recently referenced; the cache structure itself is not modified.
+     *
+     * @param key the key to look up
+     * @return the cached value or null if the key is not cached
+     */
+    public V get(Object key)
+    {
+        Node<K, V> node = getNode(key);
+        return (node != null) ? node.value : null;
+    }
+
+    /**
+     * Lookup the node holding a cached value, marking it as recently referenced just like get().
+     *
+     * @param key the key to look up
+     * @return the node holding the cached value or null if the key is not cached
+     */
+    Node<K, V> getNode(Object key)
+    {
+        Node<K, V> node = index.get(key);
+        if(node == null)
+        {
+            return null;
+        }
+
+        /* Avoid the memory write (and dirtying the cache line) if the node was already referenced since the last sweep */
+        if(!node.referenced)
+        {
+            node.referenced = true;
+        }
+        return node;
+    }
+
+    /**
+     * Add a new value to the cache, evicting older values as needed to stay within the maximum number of entries and the
+     * maximum total weight. A value heavier than maxWeight by itself is not cached at all.
+     *
+     * @param key the key under which to cache the value; the key must not already be in the cache
+     * @param value the value to cache
+     * @param valueWeight the estimated size in bytes of the value
+     * @return the node holding the new value, or null if the value was too heavy to be cached
+     */
+    public Node<K, V> put(K key, V value, int valueWeight)
+    {
+        if(valueWeight > maxWeight)
+        {
+            return null;
+        }
+
+        /* Evict values until there is both a free slot in the ring and enough weight left over for the new value */
+        while(index.size() >= maxEntries || weight + valueWeight > maxWeight)
+        {
+            evict();
+        }
+
+        /* Find a free slot for the new node; the search usually succeeds on the first try since evict() leaves its slot in "free" */
+        int slot = free;
+        while(ring[slot] != null)
+        {
+            slot = (slot + 1) % maxEntries;
+        }
+        free = (slot + 1) % maxEntries;
+
+        /*
+         * New nodes start out unreferenced. Otherwise a burst of strings that are never seen again (i.e. chat spam) would all
+         * survive the first sweep of the clock hand and push out strings which are drawn every frame.
+         */
+        Node<K, V> node = new Node();
+        node.key = key;
+        node.value = value;
+        node.weight = valueWeight;
+        node.slot = slot;
+        ring[slot] = node;
+        index.put(key, node);
+        weight += valueWeight;
+        return node;
+    }
+
+    /**
+     * Advance the clock hand until an unreferenced node is found and remove it from the cache. Every referenced node that
+     * the hand sweeps over gets a "second chance" by having its referenced bit cleared.
+     */
+    private void evict()
+    {
+        while(true)
+        {
+            Node<K, V> node = ring[hand];
+            hand = (hand + 1) % maxEntries;
+
+            if(node != null)
+            {
+                if(node.referenced)
+                {
+                    node.referenced = false;
+                }
+                else
+                {
+                    ring[node.slot] = null;
+                    free = node.slot;
+                    index.remove(node.key);
+                    weight -= node.weight;
+                    evictions++;
+                    removed(node.key, node.value);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a single value from the cache. This does not count as an eviction.
+     *
+     * @param key the key of the value to remove; nothing happens if the key is not cached
+     */
+    public void remove(Object key)
+    {
+        Node<K, V> node = index.remove(key);
+        if(node != null)
+        {
+            ring[node.slot] = null;
+            free = node.slot;
+            weight -= node.weight;
+            removed(node.key, node.value);
+        }
+    }
+
+    /** Remove every value from the cache. The eviction counter is not reset. */
+    public void clear()
+    {
+        index.clear();
+        for(int i = 0; i < maxEntries; i++)
+        {
+            Node<K, V> node = ring[i];
+            if(node != null)
+            {
+                ring[i] = null;
+                removed(node.key, node.value);
+            }
+        }
+        weight = 0;
+        hand = free = 0;
+    }
+
+    /**
+     * Called whenever a value leaves the cache, whether it was evicted, removed or cleared. The value is no longer in the cache
+     * when this is called. The default implementation does nothing.
+     *
+     * @param key the key of the removed value
+     * @param value the removed value
+     */
+    protected void removed(K key, V value)
+    {
+    }
+
+    /** @return the number of values currently cached */
+    public int size()
+    {
+        return index.size();
+    }
+
+    /** @return the total estimated size in bytes of all values currently cached */
+    public long getWeight()
+    {
+        return weight;
+    }
+
+    /** @return the number of values evicted to make room for new ones */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+}
@@ -186,6 +186,56 @@ public class ConfigParser
         return defaultValue;
     }
 
+    /**
+     * Load an optional integer property from user configuration file. Verify the value is greater than zero before returning
+     * it. If the property is present, but is not a valid integer greater than zero, a warning is printed to the console and
+     * the default value is returned.
+     *
+     * @param propertyName the property name to read from the configuration file
+     * @param defaultValue the default value to use if the property is missing or is invalid
+     * @return returns the value of the property or defaultValue if the property is missing/invalid
+     */
+    public int getInteger(String propertyName, int defaultValue)
+    {
+        return getInteger(propertyName, defaultValue, 1);
+    }
+
+    /**
+     * Load an optional integer property from user configuration file. Verify the value is at least minimumValue before returning
+     * it. If the property is present, but is not a valid integer of at least minimumValue, a warning is printed to the console
+     * and the default value is returned. This is used for properties where zero has a special meaning (i.e. no limit).
+     *
+     * @param propertyName the property name to read from the configuration file
+     * @param defaultValue the default value to use if the property is missing or is invalid
+     * @param minimumValue the smallest valid value of the property
+     * @return returns the value of the property or defaultValue if the property is missing/invalid
+     */
+    public int getInteger(String propertyName, int defaultValue, int minimumValue)
+    {
+        String value = cfgProps.getProperty(propertyName);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+
+        /* Parse the string property as an integer which must not be less than minimumValue */
+        try
+        {
+            int i = Integer.parseInt(value.trim());
+            if(i < minimumValue)
+            {
+                throw new NumberFormatException();
+            }
+            defaultValue = i;
+        }
+        catch(NumberFormatException e)
+        {
+            System.out.println("BetterFonts " + propertyName + " must be an integer of at least " + minimumValue);
+        }
+
+        return defaultValue;
+    }
+
     /**
      * Load an optional true/false property from user configuration file. If the property exists and is either the
      * (case-insensitive) string "true" or "false", its value is returned as a boolean. If the property is present,
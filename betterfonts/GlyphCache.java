@@ -21,6 +21,8 @@ package betterfonts;
 
 import net.minecraft.client.renderer.GLAllocation;
 import java.util.Iterator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -48,6 +50,10 @@ import org.lwjgl.opengl.GL11;
  * cached, it will remain stored in an OpenGL texture for the entire lifetime of the application (StringCache depends on this
  * behavior).
  *
+ * Only the main thread pre-renders glyph images with cacheGlyphs(), but StringCache.getStringWidths() may also layout strings
+ * on its worker threads while the main thread waits for them. The font lookups and the glyph cache lookups used by text layout
+ * are therefore synchronized on the GlyphCache instance.
+ *
  * @todo Should have a separate glyph cache and a separate smaller point size font for rendering the GUI at its smallest size
  * and for use in the F3 debug screen; may need some explicit argument in StringCache.renderString() to select the size
  * @todo Need to have a config file that allows overring the font search order by locale to properly support Traditional Chinese
@@ -135,12 +141,28 @@ public class GlyphCache
     /** ID of current OpenGL cache texture being used by cacheGlyphs() to store pre-rendered glyph images. */
     private int textureName;
 
+    /**
+     * Assigns a small integer ID to every base font (i.e. the 1pt plain fonts from usedFonts and allFonts) that has ever been
+     * returned by lookupFont(). The ID forms the upper bits of the key into the derivedFonts map. This map uses object identity
+     * since the base fonts themselves are never re-created once they are added to usedFonts.
+     */
+    private IdentityHashMap<Font, Integer> baseFontIds = new IdentityHashMap();
+
+    /**
+     * A cache of every font instance derived from a base font with Font.deriveFont(). The key is a 64 bit number such that the
+     * upper 32 bits are the base font ID from baseFontIds, the next 8 bits are the font style, and the lower 24 bits are the
+     * point size. Caching the derived fonts means lookupFont() always returns the same canonical Font object for the same
+     * base font, style and size, which avoids allocating a new Font on every call and allows fontCache to use object identity.
+     */
+    private HashMap<Long, Font> derivedFonts = new HashMap();
+
     /**
      * A cache of all fonts that have at least one glyph pre-rendered in a texture. Each font maps to an integer (monotonically
      * increasing) which forms the upper 32 bits of the key into the glyphCache map. This font cache can include different styles
-     * of the same font family like bold or italic.
+     * of the same font family like bold or italic. Since lookupFont() only returns canonical font instances from derivedFonts,
+     * this map uses object identity instead of the much more expensive Font.hashCode() and Font.equals().
      */
-    private LinkedHashMap<Font, Integer> fontCache = new LinkedHashMap();
+    private IdentityHashMap<Font, Integer> fontCache = new IdentityHashMap();
 
     /**
      * A cache of pre-rendered glyphs mapping each glyph by its glyphcode to the position of its pre-rendered image within
@@ -149,6 +171,12 @@ public class GlyphCache
      */
     private LinkedHashMap<Long, Entry> glyphCache = new LinkedHashMap();
 
+    /**
+     * The Latin-1 character tables of the default font, indexed by font style (any combination of Font.BOLD and Font.ITALIC). Each
+     * table is built the first time lookupLatinTable() is called for its style and discarded whenever the default font changes.
+     */
+    private LatinTable latinTables[] = new LatinTable[4];
+
 
     /**
      * The X coordinate of the upper=left corner in glyphCacheImage where the next glyph image should be stored. Glyphs are
@@ -199,6 +227,55 @@ public class GlyphCache
         public float v2;
     }
 
+    /**
+     * The glyph metrics of every Latin-1 character (U+0000 to U+00FF) in one style of the default font. Each character in Latin-1
+     * maps to exactly one glyph with no context sensitive shaping, and since neither kerning nor fractional metrics are enabled,
+     * the layout of a Latin-1 string in a single font is simply the sum of the individual character advances. StringCache uses
+     * this table to layout such strings with plain array lookups instead of creating a GlyphVector.
+     */
+    static class LatinTable
+    {
+        /** The canonical font instance (as returned by lookupFont()) described by this table. */
+        public Font font;
+
+        /** The glyph code of each character, or -1 if the character is not displayed by this font with a single glyph. */
+        public int glyphCode[] = new int[256];
+
+        /** The horizontal advance in pixels of each character. */
+        public int advance[] = new int[256];
+
+        /** The horizontal pixel position of each glyph image relative to the pen position. */
+        public int x[] = new int[256];
+
+        /** The vertical pixel position of each glyph image relative to the baseline. */
+        public int y[] = new int[256];
+
+        /** The pre-rendered image of each glyph; null until the glyph image has been cached by cacheGlyphs(). */
+        public Entry texture[] = new Entry[256];
+
+        /**
+         * Check if every character in a range of text has an entry in this table.
+         *
+         * @param text the string to check
+         * @param start the offset into text at which to start checking
+         * @param limit the (offset + length) at which to stop checking
+         * @return true if the text can be layed out using only this table
+         */
+        public boolean supports(char text[], int start, int limit)
+        {
+            for(int index = start; index < limit; index++)
+            {
+                char c = text[index];
+                if(c > '\u00FF' || glyphCode[c] < 0)
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
     /**
      * A single instance of GlyphCache is allocated for internal use by the StringCache class.
      *
@@ -228,11 +305,12 @@ public class GlyphCache
      * @param name the new font name
      * @param size the new point size
      */
-    void setDefaultFont(String name, int size, boolean antiAlias)
+    synchronized void setDefaultFont(String name, int size, boolean antiAlias)
     {
         System.out.println("BetterFonts loading font \"" + name + "\"");
         usedFonts.clear();
         usedFonts.add(new Font(name, Font.PLAIN, 1));
+        latinTables = new LatinTable[4];
 
         fontSize = size;
         antiAliasEnabled = antiAlias;
@@ -252,9 +330,12 @@ public class GlyphCache
     GlyphVector layoutGlyphVector(Font font, char text[], int start, int limit, int layoutFlags)
     {
         /* Ensure this font is already in fontCache so it can be referenced by cacheGlyphs() later on */
-        if(!fontCache.containsKey(font))
+        synchronized(this)
         {
-            fontCache.put(font, fontCache.size());
+            if(!fontCache.containsKey(font))
+            {
+                fontCache.put(font, fontCache.size());
+            }
         }
         return font.layoutGlyphVector(fontRenderContext, text, start, limit, layoutFlags);
     }
@@ -269,7 +350,7 @@ public class GlyphCache
      * @param a combination of the Font.PLAIN, Font.BOLD, and Font.ITALIC to request a particular font style
      * @return an OpenType font capable of displaying at least the first character at the start position in text
      */
-    Font lookupFont(char text[], int start, int limit, int style)
+    synchronized Font lookupFont(char text[], int start, int limit, int style)
     {
         /* Try using an already known base font; the first font in usedFonts list is the one set with setDefaultFont() */
         Iterator<Font> iterator = usedFonts.iterator();
@@ -280,7 +361,7 @@ public class GlyphCache
             if(font.canDisplayUpTo(text, start, limit) != start)
             {
                 /* Return a font instance of the proper point size and style; usedFonts has only 1pt sized plain style fonts */
-                return font.deriveFont(style, fontSize);
+                return deriveFont(font, style);
             }
         }
 
@@ -297,7 +378,7 @@ public class GlyphCache
                 usedFonts.add(font);
 
                 /* Return a font instance of the proper point size and style; allFonts has only 1pt sized plain style fonts */
-                return font.deriveFont(style, fontSize);
+                return deriveFont(font, style);
             }
         }
 
@@ -305,202 +386,307 @@ public class GlyphCache
         Font font = usedFonts.get(0);
 
         /* Return a font instance of the proper point size and style; usedFonts only 1pt sized plain style fonts */
-        return font.deriveFont(style, fontSize);
+        return deriveFont(font, style);
+    }
+
+    /**
+     * Return the table of Latin-1 glyph metrics for the default font in the requested style, building it first if necessary. A
+     * character is only included in the table if the default font can display it, which means lookupFont() would also select the
+     * default font for any string consisting only of characters from the table. The glyph images are not pre-rendered here; the
+     * texture[] array is filled in by StringCache as the glyph images become available.
+     *
+     * @param style a combination of the Font.PLAIN, Font.BOLD, and Font.ITALIC to request a particular font style
+     * @return the LatinTable for the default font
+     */
+    LatinTable lookupLatinTable(int style)
+    {
+        LatinTable table = latinTables[style];
+        if(table != null)
+        {
+            return table;
+        }
+
+        Font baseFont = usedFonts.get(0);
+        table = new LatinTable();
+        table.font = deriveFont(baseFont, style);
+
+        char text[] = new char[1];
+        for(int c = 0; c < 256; c++)
+        {
+            table.glyphCode[c] = -1;
+            if(!baseFont.canDisplay((char) c))
+            {
+                continue;
+            }
+
+            /* Layout every character by itself exactly like StringCache.layoutFont() would, to get the identical glyph metrics */
+            text[0] = (char) c;
+            GlyphVector vector = layoutGlyphVector(table.font, text, 0, 1, Font.LAYOUT_LEFT_TO_RIGHT);
+            if(vector.getNumGlyphs() == 1)
+            {
+                Rectangle bounds = vector.getGlyphPixelBounds(0, null, 0, 0);
+                table.glyphCode[c] = vector.getGlyphCode(0);
+                table.advance[c] = (int) vector.getGlyphPosition(1).getX();
+                table.x[c] = bounds.x;
+                table.y[c] = bounds.y;
+                table.texture[c] = lookupGlyph(table.font, table.glyphCode[c]);
+            }
+        }
+
+        latinTables[style] = table;
+        return table;
+    }
+
+    /**
+     * Return the canonical font instance derived from a base font at the current point size and the requested style. The first
+     * request for a given base font, style and size combination calls Font.deriveFont() and caches the result; all subsequent
+     * requests return the same Font object from derivedFonts. Each newly derived font is also immediately assigned its ID in
+     * fontCache so that layoutGlyphVector() and lookupGlyph() never have to add it later on.
+     *
+     * @param baseFont a 1pt sized plain style font from either usedFonts or allFonts
+     * @param style a combination of the Font.PLAIN, Font.BOLD, and Font.ITALIC to request a particular font style
+     * @return the canonical derived font instance
+     */
+    private synchronized Font deriveFont(Font baseFont, int style)
+    {
+        /* Assign the next available ID to any base font that has not been seen yet */
+        Integer baseId = baseFontIds.get(baseFont);
+        if(baseId == null)
+        {
+            baseId = baseFontIds.size();
+            baseFontIds.put(baseFont, baseId);
+        }
+
+        /* Upper 32 bits are the base font ID, followed by 8 bits of style and 24 bits of point size */
+        long key = ((long) baseId << 32) | ((style & 0xFF) << 24) | (fontSize & 0xFFFFFF);
+        Font font = derivedFonts.get(key);
+        if(font == null)
+        {
+            font = baseFont.deriveFont(style, fontSize);
+            derivedFonts.put(key, font);
+            fontCache.put(font, fontCache.size());
+        }
+
+        return font;
     }
 
     /**
      * Given an OpenType font and a glyph code within that font, locate the glyph's pre-rendered image in the glyph cache and return its
      * cache entry,. The entry stores the texture ID with the pre-rendered glyph image, as well as the position and size of that image
      * within the texture. This function assumes that any glyph lookup requests passed to it have been already cached by an earlier call
-     * to cacheGlyphs().
+     * to cacheGlyphs(). The font must be a canonical instance returned by lookupFont() since fontCache uses object identity.
      *
      * @param font the font to which this glyphCode belongs and which was used to pre-render the glyph image in cacheGlyphs()
      * @param glyphCode the font specific flyph code to lookup in the cache
      * @return the cache entry for this font/glyphCode pair
      */
-    Entry lookupGlyph(Font font, int glyphCode)
+    synchronized Entry lookupGlyph(Font font, int glyphCode)
     {
         long fontKey = (long) fontCache.get(font) << 32;
         return glyphCache.get(fontKey | glyphCode);
     }
 
     /**
-     * Given an OpenType font and a string, make sure that every glyph used by that string is pre-rendered into an OpenGL texture and cached
-     * in the glyphCache map for later retrieval by lookupGlyph()
+     * Given an OpenType font and a GlyphVector already layed out by layoutGlyphVector(), make sure that every glyph used by that vector
+     * is pre-rendered into an OpenGL texture and cached in the glyphCache map for later retrieval by lookupGlyph(). The caller can keep
+     * using the same GlyphVector afterwards to position the glyphs, so the text only has to be shaped once.
      *
-     * @param font the font used to create a GlyphVector for the string and to actually draw the individual glyphs
-     * @param text the string from which to cache glyph images
-     * @param start the offset into text at which to start caching glyphs
-     * @param limit the (offset + length) at which to stop caching glyphs
-     * @param layoutFlags either Font.LAYOUT_RIGHT_TO_LEFT or Font.LAYOUT_LEFT_TO_RIGHT; needed for weak bidirectional characters like
-     * parenthesis which are mapped to two different glyph codes depending on the surrounding text direction
+     * @param font the font used to create the GlyphVector and to actually draw the individual glyphs
+     * @param vector the GlyphVector from which to cache glyph images; its glyph positions are unchanged when this method returns
      *
      * @todo May need a blank border of pixels around everything for mip-map/tri-linear filtering with Optifine
      */
-    void cacheGlyphs(Font font, char text[], int start, int limit, int layoutFlags)
+    void cacheGlyphs(Font font, GlyphVector vector)
     {
-        /* Create new GlyphVector so glyphs can be moved around (kerning workaround; see below) without affecting caller */
-        GlyphVector vector = layoutGlyphVector(font, text, start, limit, layoutFlags);
+        /* The original glyph positions saved before the kerning workaround (see below) moves them; restored before returning */
+        Point2D positions[] = null;
 
         /* Pixel aligned bounding box for the entire vector; only set if the vector has to be drawn to cache a glyph image */
         Rectangle vectorBounds = null;
 
         /* This forms the upper 32 bits of the fontCache key to make every font/glyph code point unique */
-        long fontKey = (long) fontCache.get(font) << 32;
+        long fontKey;
+        synchronized(this)
+        {
+            fontKey = (long) fontCache.get(font) << 32;
+        }
 
         int numGlyphs = vector.getNumGlyphs(); /* Length of the GlyphVector */
         Rectangle dirty = null;                /* Total area within texture that needs to be updated with glTexSubImage2D() */
         boolean vectorRendered = false;        /* True if entire GlyphVector was rendered into stringImage */
 
-        for(int index = 0; index < numGlyphs; index++)
+        /*
+         * The caller keeps using the vector for layout, so the kerning workaround below must be undone even if rendering or the
+         * texture update throws an exception part way through.
+         */
+        try
         {
-            /* If this glyph code is already in glyphCache, then there is no reason to pre-render it again */
-            int glyphCode = vector.getGlyphCode(index);
-            if(glyphCache.containsKey(fontKey | glyphCode))
-            {
-                continue;
-            }
-
-            /*
-             * The only way to get glyph shapes with font hinting is to draw the entire glyph vector into a
-             * temporary BufferedImage, and then bit blit the individual glyphs based on their bounding boxes
-             * returned by the glyph vector. Although it is possible to call font.createGlyphVector() with an
-             * array of glyphcodes (and therefore render only a few glyphs at a time), this produces corrupted
-             * Davengari glyphs under Windows 7. The vectorRendered flag will draw the string at most one time.
-             */
-            if(!vectorRendered)
+            for(int index = 0; index < numGlyphs; index++)
             {
-                vectorRendered = true;
+                /* If this glyph code is already in glyphCache, then there is no reason to pre-render it again */
+                int glyphCode = vector.getGlyphCode(index);
+                if(glyphCache.containsKey(fontKey | glyphCode))
+                {
+                    continue;
+                }
 
                 /*
-                 * Kerning can make it impossible to cleanly separate adjacent glyphs. To work around this,
-                 * each glyph is manually advanced by 2 pixels to the right of its neighbor before rendering
-                 * the entire string. The getGlyphPixelBounds() later on will return the new adjusted bounds
-                 * for the glyph.
+                 * The only way to get glyph shapes with font hinting is to draw the entire glyph vector into a
+                 * temporary BufferedImage, and then bit blit the individual glyphs based on their bounding boxes
+                 * returned by the glyph vector. Although it is possible to call font.createGlyphVector() with an
+                 * array of glyphcodes (and therefore render only a few glyphs at a time), this produces corrupted
+                 * Davengari glyphs under Windows 7. The vectorRendered flag will draw the string at most one time.
                  */
-                for(int i = 0; i < numGlyphs; i++)
+                if(!vectorRendered)
                 {
-                    Point2D pos = vector.getGlyphPosition(i);
-                    pos.setLocation(pos.getX() + 2 * i, pos.getY());
-                    vector.setGlyphPosition(i, pos);
+                    vectorRendered = true;
+
+                    /*
+                     * Kerning can make it impossible to cleanly separate adjacent glyphs. To work around this,
+                     * each glyph is manually advanced by 2 pixels to the right of its neighbor before rendering
+                     * the entire string. The getGlyphPixelBounds() later on will return the new adjusted bounds
+                     * for the glyph. The original positions are saved so they can be restored for the caller.
+                     */
+                    positions = new Point2D[numGlyphs];
+                    for(int i = 0; i < numGlyphs; i++)
+                    {
+                        Point2D pos = vector.getGlyphPosition(i);
+                        positions[i] = (Point2D) pos.clone();
+                        pos.setLocation(pos.getX() + 2 * i, pos.getY());
+                        vector.setGlyphPosition(i, pos);
+                    }
+
+                    /*
+                     * Compute the exact area that the rendered string will take up in the image buffer. Note that
+                     * the string will actually be drawn at a positive (x,y) offset from (0,0) to leave enough room
+                     * for the ascent above the baseline and to correct for a few glyphs that appear to have negative
+                     * horizontal bearing (e.g. U+0423 Cyrillic uppercase letter U on Windows 7).
+                     */
+                    vectorBounds = vector.getPixelBounds(fontRenderContext, 0, 0);
+
+                    /* Enlage the stringImage if it is too small to store the entire rendered string */
+                    if(stringImage == null || vectorBounds.width > stringImage.getWidth() || vectorBounds.height > stringImage.getHeight())
+                    {
+                        int width = Math.max(vectorBounds.width, stringImage.getWidth());
+                        int height = Math.max(vectorBounds.height, stringImage.getHeight());
+                        allocateStringImage(width, height);
+                    }
+
+                    /* Erase the upper-left corner where the string will get drawn*/
+                    stringGraphics.clearRect(0, 0, vectorBounds.width, vectorBounds.height);
+
+                    /* Draw string with opaque white color and baseline adjustment so the upper-left corner of the image is at (0,0) */
+                    stringGraphics.drawGlyphVector(vector, -vectorBounds.x, -vectorBounds.y);
                 }
 
                 /*
-                 * Compute the exact area that the rendered string will take up in the image buffer. Note that
-                 * the string will actually be drawn at a positive (x,y) offset from (0,0) to leave enough room
-                 * for the ascent above the baseline and to correct for a few glyphs that appear to have negative
-                 * horizontal bearing (e.g. U+0423 Cyrillic uppercase letter U on Windows 7).
+                 * Get the glyph's pixel-aligned bounding box. The JavaDoc claims that the "The outline returned
+                 * by this method is positioned around the origin of each individual glyph." However, the actual
+                 * bounds are all relative to the start of the entire GlyphVector, which is actually more useful
+                 * for extracting the glyph's image from the rendered string.
                  */
-                vectorBounds = vector.getPixelBounds(fontRenderContext, 0, 0);
+                Rectangle rect = vector.getGlyphPixelBounds(index, null, -vectorBounds.x, -vectorBounds.y);
 
-                /* Enlage the stringImage if it is too small to store the entire rendered string */
-                if(stringImage == null || vectorBounds.width > stringImage.getWidth() || vectorBounds.height > stringImage.getHeight())
+                /* If the current line in cache image is full, then advance to the next line */
+                if(cachePosX + rect.width + GLYPH_BORDER > TEXTURE_WIDTH)
                 {
-                    int width = Math.max(vectorBounds.width, stringImage.getWidth());
-                    int height = Math.max(vectorBounds.height, stringImage.getHeight());
-                    allocateStringImage(width, height);
+                    cachePosX = GLYPH_BORDER;
+                    cachePosY += cacheLineHeight + GLYPH_BORDER;
+                    cacheLineHeight = 0;
                 }
 
-                /* Erase the upper-left corner where the string will get drawn*/
-                stringGraphics.clearRect(0, 0, vectorBounds.width, vectorBounds.height);
+                /*
+                 * If the entire image is full, update the current OpenGL texture with everything changed so far in the image
+                 * (i.e. the dirty rectangle), allocate a new cache texture, and then continue storing glyph images to the
+                 * upper-left corner of the new texture.
+                 */
+                if(cachePosY + rect.height + GLYPH_BORDER > TEXTURE_HEIGHT)
+                {
+                    updateTexture(dirty);
+                    dirty = null;
 
-                /* Draw string with opaque white color and baseline adjustment so the upper-left corner of the image is at (0,0) */
-                stringGraphics.drawGlyphVector(vector, -vectorBounds.x, -vectorBounds.y);
-            }
+                    /* Note that allocateAndSetupTexture() will leave the GL texture already bound */
+                    allocateGlyphCacheTexture();
+                    cachePosY = cachePosX = GLYPH_BORDER;
+                    cacheLineHeight = 0;
+                }
 
-            /*
-             * Get the glyph's pixel-aligned bounding box. The JavaDoc claims that the "The outline returned
-             * by this method is positioned around the origin of each individual glyph." However, the actual
-             * bounds are all relative to the start of the entire GlyphVector, which is actually more useful
-             * for extracting the glyph's image from the rendered string.
-             */
-            Rectangle rect = vector.getGlyphPixelBounds(index, null, -vectorBounds.x, -vectorBounds.y);
+                /* The tallest glyph on this line determines the total vertical advance in the texture */
+                if(rect.height > cacheLineHeight)
+                {
+                    cacheLineHeight = rect.height;
+                }
 
-            /* If the current line in cache image is full, then advance to the next line */
-            if(cachePosX + rect.width + GLYPH_BORDER > TEXTURE_WIDTH)
-            {
-                cachePosX = GLYPH_BORDER;
-                cachePosY += cacheLineHeight + GLYPH_BORDER;
-                cacheLineHeight = 0;
-            }
+                /*
+                 * Blit the individual glyph from it's position in the temporary string buffer to its (cachePosX,
+                 * cachePosY) position in the texture. NOTE: We don't have to erase the area in the texture image
+                 * first because the composite method in the Graphics object is always set to AlphaComposite.Src.
+                 */
+                glyphCacheGraphics.drawImage(stringImage,
+                    cachePosX, cachePosY, cachePosX + rect.width, cachePosY + rect.height,
+                    rect.x, rect.y, rect.x + rect.width, rect.y + rect.height, null);
 
-            /*
-             * If the entire image is full, update the current OpenGL texture with everything changed so far in the image
-             * (i.e. the dirty rectangle), allocate a new cache texture, and then continue storing glyph images to the
-             * upper-left corner of the new texture.
-             */
-            if(cachePosY + rect.height + GLYPH_BORDER > TEXTURE_HEIGHT)
-            {
-                updateTexture(dirty);
-                dirty = null;
+                /*
+                 * Store this glyph's position in texture and its origin offset. Note that "rect" will not be modified after
+                 * this point, and getGlyphPixelBounds() always returns a new Rectangle.
+                 */
+                rect.setLocation(cachePosX, cachePosY);
 
-                /* Note that allocateAndSetupTexture() will leave the GL texture already bound */
-                allocateGlyphCacheTexture();
-                cachePosY = cachePosX = GLYPH_BORDER;
-                cacheLineHeight = 0;
-            }
+                /*
+                 * Create new cache entry to record both the texture used by the glyph and its position within that texture.
+                 * Texture coordinates are normalized to 0.0-1.0 by dividing with TEXTURE_WIDTH and TEXTURE_HEIGHT.
+                 */
+                Entry entry = new Entry();
+                entry.textureName = textureName;
+                entry.width = rect.width;
+                entry.height = rect.height;
+                entry.u1 = ((float) rect.x) / TEXTURE_WIDTH;
+                entry.v1 = ((float) rect.y) / TEXTURE_HEIGHT;
+                entry.u2 = ((float) (rect.x + rect.width)) / TEXTURE_WIDTH;
+                entry.v2 = ((float) (rect.y + rect.height)) / TEXTURE_HEIGHT;
 
-            /* The tallest glyph on this line determines the total vertical advance in the texture */
-            if(rect.height > cacheLineHeight)
-            {
-                cacheLineHeight = rect.height;
-            }
+                /*
+                 * The lower 32 bits of the glyphCache key are the glyph codepoint. The upper 64 bits are the font number
+                 * stored in the fontCache. This creates a unique numerical id for every font/glyph combination.
+                 */
+                synchronized(this)
+                {
+                    glyphCache.put(fontKey | glyphCode, entry);
+                }
 
-            /*
-             * Blit the individual glyph from it's position in the temporary string buffer to its (cachePosX,
-             * cachePosY) position in the texture. NOTE: We don't have to erase the area in the texture image
-             * first because the composite method in the Graphics object is always set to AlphaComposite.Src.
-             */
-            glyphCacheGraphics.drawImage(stringImage,
-                cachePosX, cachePosY, cachePosX + rect.width, cachePosY + rect.height,
-                rect.x, rect.y, rect.x + rect.width, rect.y + rect.height, null);
-
-            /*
-             * Store this glyph's position in texture and its origin offset. Note that "rect" will not be modified after
-             * this point, and getGlyphPixelBounds() always returns a new Rectangle.
-             */
-            rect.setLocation(cachePosX, cachePosY);
-
-            /*
-             * Create new cache entry to record both the texture used by the glyph and its position within that texture.
-             * Texture coordinates are normalized to 0.0-1.0 by dividing with TEXTURE_WIDTH and TEXTURE_HEIGHT.
-             */
-            Entry entry = new Entry();
-            entry.textureName = textureName;
-            entry.width = rect.width;
-            entry.height = rect.height;
-            entry.u1 = ((float) rect.x) / TEXTURE_WIDTH;
-            entry.v1 = ((float) rect.y) / TEXTURE_HEIGHT;
-            entry.u2 = ((float) (rect.x + rect.width)) / TEXTURE_WIDTH;
-            entry.v2 = ((float) (rect.y + rect.height)) / TEXTURE_HEIGHT;
-
-            /*
-             * The lower 32 bits of the glyphCache key are the glyph codepoint. The upper 64 bits are the font number
-             * stored in the fontCache. This creates a unique numerical id for every font/glyph combination.
-             */
-            glyphCache.put(fontKey | glyphCode, entry);
-
-            /*
-             * Track the overall modified region in the texture by performing a union of this glyph's texture position
-             * with the update region created so far. Reusing "rect" here makes it easier to extend the dirty rectangle
-             * region than using the add(x, y) method to extend by a single point. Also note that creating the first
-             * dirty rectangle here avoids having to deal with the special rules for empty/non-existent rectangles.
-             */
-            if(dirty == null)
-            {
-                dirty = new Rectangle(cachePosX, cachePosY, rect.width, rect.height);
+                /*
+                 * Track the overall modified region in the texture by performing a union of this glyph's texture position
+                 * with the update region created so far. Reusing "rect" here makes it easier to extend the dirty rectangle
+                 * region than using the add(x, y) method to extend by a single point. Also note that creating the first
+                 * dirty rectangle here avoids having to deal with the special rules for empty/non-existent rectangles.
+                 */
+                if(dirty == null)
+                {
+                    dirty = new Rectangle(cachePosX, cachePosY, rect.width, rect.height);
+                }
+                else
+                {
+                    dirty.add(rect);
+                }
+
+                /* Advance cachePosX so the next glyph can be stored immediately to the right of this one */
+                cachePosX += rect.width + GLYPH_BORDER;
             }
-            else
+
+            /* Update OpenGL texture if any part of the glyphCacheImage has changed */
+            updateTexture(dirty);
+        }
+        finally
+        {
+            /* Undo the kerning workaround so the caller sees the glyph positions as originally layed out */
+            if(positions != null)
             {
-                dirty.add(rect);
+                for(int i = 0; i < numGlyphs; i++)
+                {
+                    vector.setGlyphPosition(i, positions[i]);
+                }
             }
-
-            /* Advance cachePosX so the next glyph can be stored immediately to the right of this one */
-            cachePosX += rect.width + GLYPH_BORDER;
         }
-
-        /* Update OpenGL texture if any part of the glyphCacheImage has changed */
-        updateTexture(dirty);
     }
 
     /**
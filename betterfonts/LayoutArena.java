@@ -0,0 +1,519 @@
+/*
+ * Minecraft OpenType Font Support Mod
+ *
+ * Copyright (C) 2012 Wojciech Stryjewski <thvortex@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>..
+ */
+
+package betterfonts;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounded store of variable sized records kept outside of the Java heap, used by StringCache to hold the layouts of cached
+ * strings where the garbage collector never has to trace or copy them. The memory is allocated as direct ByteBuffer "slabs" of
+ * SLAB_BYTES each. Every slab is carved into equally sized blocks of one size class (64 bytes, 128 bytes, and so on up to an
+ * entire slab), and each record occupies a single block of the smallest class that fits. Freed blocks are linked into a free
+ * list inside the slab itself, and a slab whose blocks are all freed goes back to a pool of empty slabs that can be re-used
+ * for any size class. The slabs are never returned to the operating system until the whole arena is garbage collected.
+ *
+ * Records are found through a hash index that also lives off the heap: an open addressing table with linear probing where every
+ * slot holds the hash code and the handle of one record. A handle is a plain int packing the slab number and the offset of the
+ * block within the slab. Each record starts with its key (an array of chars) followed by the payload whose format is entirely up
+ * to the caller. Just like ClockCache, records are evicted with the CLOCK algorithm; the "referenced" flag is kept in the record
+ * header and the clock hand sweeps over the slots of the hash index.
+ *
+ * This class is not synchronized; just like the rest of StringCache, it must only be accessed from the main thread.
+ */
+class LayoutArena
+{
+    /** The size of every slab is 1 << SLAB_SHIFT bytes; a handle keeps the block offset in its lower SLAB_SHIFT bits. */
+    private static final int SLAB_SHIFT = 18;
+
+    /** Size in bytes of every slab; also the size of the largest block, so no record can be larger than this. */
+    private static final int SLAB_BYTES = 1 << SLAB_SHIFT;
+
+    /** The smallest block is 1 << MIN_BLOCK_SHIFT bytes; every other size class doubles the block size. */
+    private static final int MIN_BLOCK_SHIFT = 6;
+
+    /** Number of size classes from the smallest block up to an entire slab. */
+    private static final int CLASSES = SLAB_SHIFT - MIN_BLOCK_SHIFT + 1;
+
+    /** Largest number of slabs that can be addressed by a positive handle. */
+    private static final int MAX_SLABS = Integer.MAX_VALUE >> SLAB_SHIFT;
+
+    /**
+     * Maximum number of records evicted by a single put() to free up a block of the new record's size class. Evicting records of
+     * other size classes only helps once some slab becomes entirely empty, which could otherwise take thousands of evictions.
+     */
+    private static final int MAX_EVICTIONS = 16;
+
+    /** Size in bytes of the record header: the key length followed by the referenced flag. */
+    private static final int RECORD_HEADER = 8;
+
+    /** Offset of the referenced flag within the record header. */
+    private static final int RECORD_REFERENCED = 4;
+
+    /** Maximum number of records the arena can hold. */
+    private final int maxEntries;
+
+    /** Maximum number of slabs the arena can allocate; this bounds the total off-heap memory used by the records. */
+    private final int maxSlabs;
+
+    /** Every slab allocated so far; only the first slabCount elements are used. */
+    private ByteBuffer slabs[] = new ByteBuffer[16];
+
+    /** Number of slabs allocated so far. */
+    private int slabCount = 0;
+
+    /** Size class of each slab, or -1 if the slab is in the emptySlabs pool. */
+    private int slabClass[] = new int[16];
+
+    /** Number of blocks in use by records in each slab. */
+    private int slabUsed[] = new int[16];
+
+    /** Offset of the first block in each slab's free list (the next offset is stored in the block itself), or -1 if none. */
+    private int slabFree[] = new int[16];
+
+    /** Offset of the first block in each slab that was never allocated; all the blocks from here to the end of the slab are free. */
+    private int slabBump[] = new int[16];
+
+    /** Next and previous slab in the list of partially used slabs of the same size class, or -1 at either end of the list. */
+    private int slabNext[] = new int[16], slabPrev[] = new int[16];
+
+    /** First slab in the list of partially used slabs (i.e. slabs with at least one free block) for each size class, or -1. */
+    private int partial[] = new int[CLASSES];
+
+    /** Slabs with no blocks in use, which can be handed out to any size class. */
+    private int emptySlabs[] = new int[16];
+
+    /** Number of valid elements in emptySlabs[]. */
+    private int emptyCount = 0;
+
+    /** The hash index with two ints per slot: the hash code of the record's key and the record's handle plus one (zero for empty). */
+    private final IntBuffer index;
+
+    /** Number of slots in the index minus one; the number of slots is a power of two. */
+    private final int indexMask;
+
+    /** Number of records currently stored. */
+    private int size = 0;
+
+    /** Position of the clock hand in the index; this is the next slot examined for eviction. */
+    private int hand = 0;
+
+    /** Number of records removed from the arena to make room for new ones. */
+    private long evictions = 0;
+
+    /**
+     * Create a new empty arena. No slabs are allocated until the first record is stored.
+     *
+     * @param maxEntries the maximum number of records that can be stored; must be greater than zero
+     * @param maxBytes the maximum total size in bytes of all slabs; zero or less means no limit. At least one slab is always allowed.
+     */
+    public LayoutArena(int maxEntries, int maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        maxSlabs = (maxBytes > 0) ? Math.max(1, Math.min(maxBytes >> SLAB_SHIFT, MAX_SLABS)) : MAX_SLABS;
+        Arrays.fill(partial, -1);
+
+        /* Keeping the index at most half full keeps the linear probe sequences short */
+        int slots = Integer.highestOneBit(Math.max(maxEntries * 2 - 1, 1)) << 1;
+        index = ByteBuffer.allocateDirect(slots * 8).order(ByteOrder.nativeOrder()).asIntBuffer();
+        indexMask = slots - 1;
+    }
+
+    /**
+     * Lookup a record by its key. On a hit, the record is only marked as recently referenced.
+     *
+     * @param hash the hash code of the key
+     * @param key the characters of the key
+     * @param keyLength the number of characters in key[] which make up the key
+     * @return the handle of the record, or -1 if there is no record with this key
+     */
+    public int get(int hash, char key[], int keyLength)
+    {
+        for(int slot = hash & indexMask; ; slot = (slot + 1) & indexMask)
+        {
+            int handle = index.get(slot * 2 + 1) - 1;
+            if(handle == -1)
+            {
+                return -1;
+            }
+
+            if(index.get(slot * 2) == hash && keyEquals(handle, key, keyLength))
+            {
+                /* Avoid the memory write if the record was already referenced since the last sweep */
+                ByteBuffer slab = buffer(handle);
+                int offset = handle & (SLAB_BYTES - 1);
+                if(slab.getInt(offset + RECORD_REFERENCED) == 0)
+                {
+                    slab.putInt(offset + RECORD_REFERENCED, 1);
+                }
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * Store a new record, evicting older records as needed to stay within the maximum number of entries and slabs. If no block
+     * of the record's size class is free after MAX_EVICTIONS records were evicted, the record is not stored; later calls will
+     * continue evicting where this one stopped. The key is copied into the record; the caller then writes the payload starting
+     * at payload(handle) in buffer(handle).
+     *
+     * @param hash the hash code of the key
+     * @param key the characters of the key; the key must not already be stored
+     * @param keyLength the number of characters in key[] which make up the key
+     * @param payloadBytes the size in bytes of the payload that will be written after the key
+     * @return the handle of the new record, or -1 if the record is too large to ever fit into a slab or no block could be freed for it
+     */
+    public int put(int hash, char key[], int keyLength, int payloadBytes)
+    {
+        int bytes = payloadOffset(keyLength) + payloadBytes;
+        if(bytes > SLAB_BYTES)
+        {
+            return -1;
+        }
+
+        /* The smallest size class whose blocks can hold the entire record */
+        int sizeClass = 0;
+        while((1 << (MIN_BLOCK_SHIFT + sizeClass)) < bytes)
+        {
+            sizeClass++;
+        }
+
+        /* Evict records until there is both room in the index and a free block; once the arena is empty, every slab is free */
+        while(size >= maxEntries)
+        {
+            evict();
+        }
+        int handle, evicted = 0;
+        while((handle = allocate(sizeClass)) == -1)
+        {
+            if(evicted++ == MAX_EVICTIONS || size == 0)
+            {
+                return -1;
+            }
+            evict();
+        }
+
+        /* New records start out unreferenced for the same reason as in ClockCache.put() */
+        ByteBuffer slab = buffer(handle);
+        int offset = handle & (SLAB_BYTES - 1);
+        slab.putInt(offset, keyLength);
+        slab.putInt(offset + RECORD_REFERENCED, 0);
+        for(int i = 0; i < keyLength; i++)
+        {
+            slab.putChar(offset + RECORD_HEADER + i * 2, key[i]);
+        }
+
+        int slot = hash & indexMask;
+        while(index.get(slot * 2 + 1) != 0)
+        {
+            slot = (slot + 1) & indexMask;
+        }
+        index.put(slot * 2, hash);
+        index.put(slot * 2 + 1, handle + 1);
+        size++;
+
+        return handle;
+    }
+
+    /**
+     * @param handle the handle of a stored record
+     * @return the slab holding the record; the buffer's position and limit are never used so absolute get/put methods must be used
+     */
+    public ByteBuffer buffer(int handle)
+    {
+        return slabs[handle >>> SLAB_SHIFT];
+    }
+
+    /**
+     * @param handle the handle of a stored record
+     * @return the offset in bytes within buffer(handle) at which the record's payload starts; always a multiple of four
+     */
+    public int payload(int handle)
+    {
+        int offset = handle & (SLAB_BYTES - 1);
+        return offset + payloadOffset(buffer(handle).getInt(offset));
+    }
+
+    /** Remove every record from the arena. The slabs are kept for re-use and the eviction counter is not reset. */
+    public void clear()
+    {
+        for(int slot = 0; slot <= indexMask; slot++)
+        {
+            index.put(slot * 2, 0);
+            index.put(slot * 2 + 1, 0);
+        }
+
+        Arrays.fill(partial, -1);
+        emptyCount = 0;
+        for(int slab = 0; slab < slabCount; slab++)
+        {
+            slabClass[slab] = -1;
+            emptySlabs[emptyCount++] = slab;
+        }
+
+        size = 0;
+        hand = 0;
+    }
+
+    /** @return the number of records currently stored */
+    public int size()
+    {
+        return size;
+    }
+
+    /** @return the number of bytes of off-heap memory allocated for the slabs and the hash index */
+    public long getBytes()
+    {
+        return (long) slabCount * SLAB_BYTES + (indexMask + 1) * 8L;
+    }
+
+    /** @return the number of records evicted to make room for new ones */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    /** @return the offset of the payload relative to the start of a record whose key has keyLength characters */
+    private static int payloadOffset(int keyLength)
+    {
+        return (RECORD_HEADER + keyLength * 2 + 3) & ~3;
+    }
+
+    /** @return true if the key of the record with the given handle is the same as key[] */
+    private boolean keyEquals(int handle, char key[], int keyLength)
+    {
+        ByteBuffer slab = buffer(handle);
+        int offset = handle & (SLAB_BYTES - 1);
+        if(slab.getInt(offset) != keyLength)
+        {
+            return false;
+        }
+
+        offset += RECORD_HEADER;
+        for(int i = 0; i < keyLength; i++)
+        {
+            if(slab.getChar(offset + i * 2) != key[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Allocate a block of the given size class, taking a new slab from the pool of empty slabs (or allocating a new slab) if
+     * no partially used slab of that class has any free blocks.
+     *
+     * @param sizeClass the size class of the block
+     * @return the handle of the new block, or -1 if every slab is in use and no more slabs can be allocated
+     */
+    private int allocate(int sizeClass)
+    {
+        int slab = partial[sizeClass];
+        if(slab == -1)
+        {
+            slab = takeSlab(sizeClass);
+            if(slab == -1)
+            {
+                return -1;
+            }
+        }
+
+        int offset = slabFree[slab];
+        if(offset != -1)
+        {
+            slabFree[slab] = slabs[slab].getInt(offset);
+        }
+        else
+        {
+            offset = slabBump[slab];
+            slabBump[slab] += 1 << (MIN_BLOCK_SHIFT + sizeClass);
+        }
+        slabUsed[slab]++;
+
+        if(slabFree[slab] == -1 && slabBump[slab] == SLAB_BYTES)
+        {
+            unlinkPartial(slab);
+        }
+
+        return (slab << SLAB_SHIFT) | offset;
+    }
+
+    /** Return a block to the free list of its slab, and return the slab to the pool of empty slabs if it has no blocks left in use. */
+    private void free(int handle)
+    {
+        int slab = handle >>> SLAB_SHIFT;
+        int offset = handle & (SLAB_BYTES - 1);
+        boolean wasFull = (slabFree[slab] == -1 && slabBump[slab] == SLAB_BYTES);
+
+        slabs[slab].putInt(offset, slabFree[slab]);
+        slabFree[slab] = offset;
+        slabUsed[slab]--;
+
+        if(slabUsed[slab] == 0)
+        {
+            if(!wasFull)
+            {
+                unlinkPartial(slab);
+            }
+            slabClass[slab] = -1;
+            emptySlabs[emptyCount++] = slab;
+        }
+        else if(wasFull)
+        {
+            linkPartial(slab, slabClass[slab]);
+        }
+    }
+
+    /**
+     * Take an empty slab from the pool (or allocate a new one) and make it the first partially used slab of a size class.
+     *
+     * @param sizeClass the size class whose blocks the slab will hold
+     * @return the slab number, or -1 if the pool is empty and no more slabs can be allocated
+     */
+    private int takeSlab(int sizeClass)
+    {
+        int slab;
+        if(emptyCount > 0)
+        {
+            slab = emptySlabs[--emptyCount];
+        }
+        else if(slabCount < maxSlabs)
+        {
+            if(slabCount == slabs.length)
+            {
+                int length = Math.min(slabs.length * 2, maxSlabs);
+                slabs = Arrays.copyOf(slabs, length);
+                slabClass = Arrays.copyOf(slabClass, length);
+                slabUsed = Arrays.copyOf(slabUsed, length);
+                slabFree = Arrays.copyOf(slabFree, length);
+                slabBump = Arrays.copyOf(slabBump, length);
+                slabNext = Arrays.copyOf(slabNext, length);
+                slabPrev = Arrays.copyOf(slabPrev, length);
+                emptySlabs = Arrays.copyOf(emptySlabs, length);
+            }
+
+            slab = slabCount++;
+            slabs[slab] = ByteBuffer.allocateDirect(SLAB_BYTES).order(ByteOrder.nativeOrder());
+        }
+        else
+        {
+            return -1;
+        }
+
+        slabClass[slab] = sizeClass;
+        slabUsed[slab] = 0;
+        slabFree[slab] = -1;
+        slabBump[slab] = 0;
+        linkPartial(slab, sizeClass);
+
+        return slab;
+    }
+
+    /** Add a slab to the front of the list of partially used slabs of a size class. */
+    private void linkPartial(int slab, int sizeClass)
+    {
+        int head = partial[sizeClass];
+        slabPrev[slab] = -1;
+        slabNext[slab] = head;
+        if(head != -1)
+        {
+            slabPrev[head] = slab;
+        }
+        partial[sizeClass] = slab;
+    }
+
+    /** Remove a slab from the list of partially used slabs of its size class. */
+    private void unlinkPartial(int slab)
+    {
+        int prev = slabPrev[slab], next = slabNext[slab];
+        if(prev != -1)
+        {
+            slabNext[prev] = next;
+        }
+        else
+        {
+            partial[slabClass[slab]] = next;
+        }
+        if(next != -1)
+        {
+            slabPrev[next] = prev;
+        }
+    }
+
+    /**
+     * Advance the clock hand over the index until an unreferenced record is found, and remove it from the arena. Every referenced
+     * record that the hand sweeps over has its referenced flag cleared. Must only be called while the arena holds any records.
+     */
+    private void evict()
+    {
+        while(true)
+        {
+            int handle = index.get(hand * 2 + 1) - 1;
+            if(handle != -1)
+            {
+                ByteBuffer slab = buffer(handle);
+                int offset = (handle & (SLAB_BYTES - 1)) + RECORD_REFERENCED;
+                if(slab.getInt(offset) != 0)
+                {
+                    slab.putInt(offset, 0);
+                }
+                else
+                {
+                    /* The hand stays in place since removeSlot() may move the next record of a probe sequence into this slot */
+                    removeSlot(hand);
+                    free(handle);
+                    evictions++;
+                    return;
+                }
+            }
+            hand = (hand + 1) & indexMask;
+        }
+    }
+
+    /**
+     * Remove a record from the index. The following records of the same probe sequence are shifted back to fill the hole, so
+     * lookups never need any "deleted" markers.
+     *
+     * @param slot the slot of the index holding the record
+     */
+    private void removeSlot(int slot)
+    {
+        int hole = slot;
+        for(int next = (hole + 1) & indexMask; index.get(next * 2 + 1) != 0; next = (next + 1) & indexMask)
+        {
+            /* A record can only move back if its home slot does not lie cyclically between the hole and its current slot */
+            int home = index.get(next * 2) & indexMask;
+            if(((next - home) & indexMask) >= ((next - hole) & indexMask))
+            {
+                index.put(hole * 2, index.get(next * 2));
+                index.put(hole * 2 + 1, index.get(next * 2 + 1));
+                hole = next;
+            }
+        }
+
+        index.put(hole * 2, 0);
+        index.put(hole * 2 + 1, 0);
+        size--;
+    }
+}
@@ -22,23 +22,42 @@ package betterfonts;
 import net.minecraft.client.renderer.RenderEngine;
 import net.minecraft.client.renderer.Tessellator;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.WeakHashMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.awt.font.GlyphVector;
 import java.awt.Font;
 import java.awt.Point;
 import java.text.Bidi;
+import java.text.BreakIterator;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL14;
 
 /**
  * The StringCache is the public interface for rendering of all Unicode strings using OpenType fonts. It caches the glyph layout
  * of individual strings, and it uses a GlyphCache instance to cache the pre-rendered images for individual glyphs. Once a string
  * and its glyph images are cached, the critical path in renderString() will draw the glyphs as fast as if using a bitmap font.
- * Strings are cached using weak references through a two layer string cache. Strings that are no longer in use by Minecraft will
- * be evicted from the cache, while the pre-rendered images of individual glyphs remains cached forever. The following diagram
- * illustrates how this works:
+ * By default, strings are cached in a bounded ClockCache which evicts the least recently used layouts once a configurable number
+ * of entries or estimated bytes is exceeded. Alternatively, strings can be cached using weak references through a two layer
+ * string cache. Strings that are no longer in use by Minecraft will be evicted from the cache, while the pre-rendered images of
+ * individual glyphs remains cached forever. In both modes, the glyph positions are kept in a separate Layout object which is shared
+ * by all strings that have the same text once their color codes are removed. The Layout stores the glyphs in packed arrays rather
+ * than as the individual Glyph objects shown below. As a third option, the cached strings can be kept outside of the Java heap
+ * in a LayoutArena (see setCacheMode()). The following diagram illustrates how the weak reference cache works:
  *
  * <pre>
  * String passed to            Key object considers      Entry object holds       Each Glyph object      GlyphCache.Entry stores
@@ -77,6 +96,58 @@ public class StringCache
     /** Thickness of the strikethrough line (in pixels) */
     private static final int STRIKETHROUGH_THICKNESS = 2;
 
+    /** Default maximum number of entries held by all the string caches together (see cacheShare()) */
+    private static final int DEFAULT_CACHE_ENTRIES = 4096;
+
+    /** Default maximum total estimated size (in bytes) of all the string caches together (see cacheShare()) */
+    private static final int DEFAULT_CACHE_BYTES = 8 << 20;
+
+    /** Share of the cache limits given to the boundedCache or the arena, as a power of two divisor (i.e. one half) */
+    private static final int STRING_CACHE_SHARE = 1;
+
+    /** Share of the cache limits given to the layoutCache, as a power of two divisor (i.e. one quarter) */
+    private static final int LAYOUT_CACHE_SHARE = 2;
+
+    /** Share of the cache limits given to the segmentCache, as a power of two divisor (i.e. one eighth) */
+    private static final int SEGMENT_CACHE_SHARE = 3;
+
+    /** Share of the cache limits given to the instanceCache, as a power of two divisor (i.e. one eighth) */
+    private static final int INSTANCE_CACHE_SHARE = 3;
+
+    /** Default maximum number of display lists held by the meshCache */
+    private static final int DEFAULT_MESH_ENTRIES = 256;
+
+    /** Number of slots in the identity cache; must be a power of two */
+    private static final int IDENTITY_CACHE_SIZE = 256;
+
+    /** Maximum number of paragraphs held by the paragraphCache */
+    private static final int PARAGRAPH_CACHE_ENTRIES = 256;
+
+    /** Maximum total estimated size (in bytes) of all paragraphs held by the paragraphCache, including the Entry of every line */
+    private static final int PARAGRAPH_CACHE_BYTES = 2 << 20;
+
+    /** Vertical distance between lines of a Paragraph (in GUI coordinate system); same as FontRenderer.FONT_HEIGHT */
+    public static final int LINE_HEIGHT = 9;
+
+    /** Offsets in bytes of the header fields at the start of every record payload in the arena; see storeRecord() for the format */
+    private static final int RECORD_ADVANCE = 0, RECORD_GLYPHS = 4, RECORD_COLORS = 8, RECORD_RUNS = 12, RECORD_FLAGS = 16,
+        RECORD_TEXT = 20, RECORD_HEADER = 24;
+
+    /** Size in bytes of every glyph stored in an arena record */
+    private static final int RECORD_GLYPH_BYTES = 16;
+
+    /** Size in bytes of every pending run stored in an arena record */
+    private static final int RECORD_RUN_BYTES = 16;
+
+    /** Bit in the RECORD_FLAGS field of an arena record; same meaning as Entry.specialRender */
+    private static final int RECORD_SPECIAL_RENDER = 1;
+
+    /**
+     * Maps every ASCII character that can follow a section mark to its position in "0123456789abcdefklmnor" (i.e. 0-15 are the
+     * colors and 16-21 are the style codes), or to -1 if it's not a known format code. Upper and lower case letters are the same.
+     */
+    private static final byte FORMAT_CODES[] = createFormatCodes();
+
     /** Reference to the unicode.FontRenderer class. Needed for creating GlyphVectors and retrieving glyph texture coordinates. */
     private GlyphCache glyphCache;
 
@@ -86,10 +157,184 @@ public class StringCache
      */
     private int colorTable[];
 
+    /**
+     * A bounded cache of recently seen strings to their fully layed-out state. When non-null, this cache is used instead of the
+     * stringCache and weakRefCache maps so that the retention of cached strings no longer depends on the timing of garbage
+     * collection. Cache hits only set a "referenced" flag on the cached entry and never modify the cache itself.
+     */
+    private ClockCache<Key, Entry> boundedCache = new ClockCache(
+        cacheShare(DEFAULT_CACHE_ENTRIES, STRING_CACHE_SHARE), cacheShare(DEFAULT_CACHE_BYTES, STRING_CACHE_SHARE));
+
+    /**
+     * A cache of glyph layouts shared by all strings that only differ in their color codes. The LayoutKey is the text with every
+     * color code removed, along with each position where the font style (i.e. bold and italic) changes since that also affects the
+     * layout. Every Entry holds a strong reference to its Layout, so evicting a Layout only prevents new strings from sharing it.
+     */
+    private ClockCache<LayoutKey, Layout> layoutCache = new ClockCache(
+        cacheShare(DEFAULT_CACHE_ENTRIES, LAYOUT_CACHE_SHARE), cacheShare(DEFAULT_CACHE_BYTES, LAYOUT_CACHE_SHARE));
+
+    /**
+     * A cache of individually shaped words used to assemble the layout of new strings without creating a GlyphVector for the entire
+     * string. Only text made up of scripts which never need any shaping context across whitespace is split into words this way; see
+     * isContextFree().
+     */
+    private ClockCache<SegmentKey, Segment> segmentCache = new ClockCache(
+        cacheShare(DEFAULT_CACHE_ENTRIES, SEGMENT_CACHE_SHARE), cacheShare(DEFAULT_CACHE_BYTES, SEGMENT_CACHE_SHARE));
+
+    /** Re-usable SegmentKey to avoid allocating a new key on every segmentCache lookup. */
+    private SegmentKey lookupSegmentKey = new SegmentKey();
+
+    /**
+     * A cache of the entries created by instantiateTemplate() in number template mode. The Key does not use templates, so strings
+     * whose digit runs have the same lengths share an instance, and renderString() substitutes their actual digits the same way it
+     * does for any other cached string. This avoids building a new Layout every time a changing multi-digit number is rendered.
+     */
+    private ClockCache<Key, Entry> instanceCache = new ClockCache(
+        cacheShare(DEFAULT_CACHE_ENTRIES, INSTANCE_CACHE_SHARE), cacheShare(DEFAULT_CACHE_BYTES, INSTANCE_CACHE_SHARE));
+
+    /** Re-usable Key to avoid allocating a new key on every instanceCache lookup. */
+    private Key lookupInstanceKey = new Key();
+
+    /**
+     * A cache of multi-line paragraphs (i.e. book pages, signs and tooltips) which are word wrapped to a fixed width. Each Paragraph
+     * holds strong references to the Entry objects of all its lines, so a cache hit needs only one lookup for the entire block of text.
+     */
+    private ClockCache<ParagraphKey, Paragraph> paragraphCache = new ClockCache(PARAGRAPH_CACHE_ENTRIES, PARAGRAPH_CACHE_BYTES);
+
+    /** Re-usable ParagraphKey to avoid allocating a new key on every paragraphCache lookup. */
+    private ParagraphKey lookupParagraphKey = new ParagraphKey();
+
+    /**
+     * Every Mesh (i.e. OpenGL display list) compiled for a retained TextHandle. The number of display lists is bounded since a handle
+     * that is no longer used can't tell when it's garbage collected; the display list of an evicted Mesh is deleted right away and
+     * is compiled again if its handle is ever rendered again. Null if retained handles are disabled with setMeshCacheSize().
+     */
+    private ClockCache<Mesh, Mesh> meshCache = createMeshCache(DEFAULT_MESH_ENTRIES);
+
+    /**
+     * Off-heap store of cached strings, selected with setCacheMode(). When non-null, the main thread uses it instead of the
+     * boundedCache, the weak reference cache, the identity cache and the layoutCache, so the layouts of cached strings are never
+     * seen by the garbage collector. Every record is keyed by the string with its ASCII digits folded to '0' (the same equality
+     * as Key without number templates) and holds the color codes, glyphs and pending runs of the string; see storeRecord().
+     */
+    private LayoutArena arena;
+
+    /** The folded key of the string most recently passed to lookupRecord(); storeRecord() adds the new record under this key. */
+    private char arenaKey[] = new char[64];
+
+    /** Number of characters in arenaKey[] that are part of the key. */
+    private int arenaKeyLength;
+
+    /** Hash code of the key in arenaKey[]. */
+    private int arenaHash;
+
+    /**
+     * The glyph table shared by all arena records. A record only stores the index of each glyph in this table since Font and
+     * GlyphCache.Entry objects cannot live off the heap. The table holds one element for every distinct glyph ever stored.
+     */
+    private HashMap<Long, Integer> glyphIds = new HashMap();
+
+    /** The font of each glyph in the glyph table. */
+    private Font glyphFonts[] = new Font[256];
+
+    /** The font specific glyph code of each glyph in the glyph table. */
+    private int glyphCodes[] = new int[256];
+
+    /** The pre-rendered image of each glyph in the glyph table; null until first needed by renderRecord(). */
+    private GlyphCache.Entry glyphTextures[] = new GlyphCache.Entry[256];
+
+    /** Number of glyphs in the glyph table. */
+    private int glyphTableSize = 0;
+
+    /** Every font used by the pending runs of an arena record; a record only stores the index into this list. */
+    private List<Font> arenaFonts = new ArrayList();
+
+    /** Maps every font in arenaFonts to its index. */
+    private IdentityHashMap<Font, Integer> arenaFontIds = new IdentityHashMap();
+
+    /**
+     * Incremented every time all the caches are flushed (i.e. when the font changes). A Paragraph created in an earlier generation
+     * refers to Entry objects that are no longer valid and has to be layed out again before it can be rendered.
+     */
+    private int generation = 0;
+
+    /**
+     * Set by a TextPanel while it draws its strings into an offscreen texture. The texture starts out fully transparent, so
+     * beginRender() always enables blending and accumulates the alpha channel separately from the colors; see TextPanel.drawQuad().
+     */
+    private boolean offscreenRender = false;
+
+    /**
+     * The LayoutKey (which also holds the stripped text) of the most recent string layed out on the main thread. If the next string
+     * to be layed out starts with the same text (e.g. because the player typed one more character into the chat), layoutEntry() only
+     * has to layout the text following the resume point.
+     */
+    private LayoutKey lastLayoutKey;
+
+    /** The Layout of the most recent string layed out on the main thread; corresponds to lastLayoutKey. */
+    private Layout lastLayout;
+
+    /**
+     * The index into the stripped text of lastLayoutKey where the last word starts inside a run of text handled by layoutSegments() or
+     * layoutLatin().
+     * Everything before this point is layed out independently of the text following it. Set to -1 if there is no such point.
+     */
+    private int resumeIndex = -1;
+
+    /** The horizontal advance (i.e. X position) at resumeIndex. */
+    private int resumeAdvance;
+
+    /** The number of glyphs in lastLayout located before resumeIndex. */
+    private int resumeGlyphs;
+
+    /** The number of glyphs taken over from lastLayout that precede the glyphList while resumeLayout() is laying out a string; otherwise zero. */
+    private int resumeGlyphBase;
+
+    /** The font used by layoutSegments() or layoutLatin() for the run of text containing resumeIndex. */
+    private Font resumeFont;
+
+    /**
+     * True while renderString() is laying out a string. Only then are missing glyph images pre-rendered right away by layoutFont() and
+     * shapeSegment(); strings that are only measured record the text runs with missing glyph images in pendingRuns instead.
+     */
+    private boolean rasterizeGlyphs = false;
+
+    /** The text runs with glyph images not yet pre-rendered, collected on the main thread while laying out a single string. */
+    private List<Run> pendingRuns = new ArrayList();
+
+    /** Same as pendingRuns but for strings layed out by any other thread, such as the layoutExecutor threads used by getStringWidths(). */
+    private ThreadLocal<List<Run>> workerRuns = new ThreadLocal<List<Run>>()
+    {
+        @Override
+        protected List<Run> initialValue()
+        {
+            return new ArrayList();
+        }
+    };
+
+    /** Minimum number of uncached strings passed to getStringWidths() before it lays them out in parallel on the layoutExecutor. */
+    private static final int PARALLEL_LAYOUT_MISSES = 8;
+
+    /** Number of seconds a layoutExecutor thread may stay idle before it exits. */
+    private static final int LAYOUT_THREAD_KEEP_ALIVE = 30;
+
+    /**
+     * Thread pool used by getStringWidths() to layout many uncached strings at once. It is only created on first use, and it has
+     * one thread less than the number of processors since the main thread waits for the results anyway. The threads are daemon
+     * threads so they never keep Minecraft from exiting, and they exit after LAYOUT_THREAD_KEEP_ALIVE seconds without any work.
+     */
+    private ExecutorService layoutExecutor;
+
+    /** Number of cacheString() calls on the main thread that found the string already cached. */
+    private long cacheHits = 0;
+
+    /** Number of cacheString() calls on the main thread that had to layout the string. */
+    private long cacheMisses = 0;
+
     /**
      * A cache of recently seen strings to their fully layed-out state, complete with color changes and texture coordinates of
      * all pre-rendered glyph images needed to display this string. The weakRefCache holds strong references to the Key
-     * objects used in this map.
+     * objects used in this map. Only used if boundedCache is null.
      */
     private WeakHashMap<Key, Entry> stringCache = new WeakHashMap();
 
@@ -97,10 +342,28 @@ public class StringCache
      * Every String passed to the public renderString() function is added to this WeakHashMap. As long as As long as Minecraft
      * continues to hold a strong reference to the String object (i.e. from TileEntitySign and ChatLine) passed here, the
      * weakRefCache map will continue to hold a strong reference to the Key object that said strings all map to (multiple strings
-     * in weakRefCache can map to a single Key if those strings only differ by their ASCII digits).
+     * in weakRefCache can map to a single Key if those strings only differ by their ASCII digits). Only used if boundedCache is null.
      */
     private WeakHashMap<String, Key> weakRefCache = new WeakHashMap();
 
+    /**
+     * A small direct-mapped cache in front of all the other string caches, indexed by System.identityHashCode() of the String
+     * objects passed to cacheString(). Minecraft usually passes the very same String instance to renderString() and
+     * getStringWidth() frame after frame, so most lookups are resolved here with a single pointer comparison and without
+     * ever computing Key.hashCode() or calling Key.equals(). Just like the other caches, this one is only ever accessed from the
+     * main thread. It holds strong references to at most IDENTITY_CACHE_SIZE strings, even if the weak reference cache is used.
+     */
+    private String identityStrings[] = new String[IDENTITY_CACHE_SIZE];
+
+    /** The cached Entry objects for the String objects in the same slots of identityStrings. */
+    private Entry identityEntries[] = new Entry[IDENTITY_CACHE_SIZE];
+
+    /**
+     * The boundedCache node of every Entry in identityEntries, or null with the weak reference cache. A hit in the identity cache
+     * sets the node's referenced bit; otherwise the strings drawn every frame would look unused to the CLOCK algorithm.
+     */
+    private ClockCache.Node identityNodes[] = new ClockCache.Node[IDENTITY_CACHE_SIZE];
+
     /**
      * Temporary Key object re-used for lookups with stringCache.get(). Using a temporary object like this avoids the overhead
      * of allocating new objects in the critical rendering path. Of course, new Key objects are always created when adding
@@ -109,16 +372,34 @@ public class StringCache
     private Key lookupKey = new Key();
 
     /**
-     * Pre-cached glyphs for the ASCII digits 0-9 (in that order). Used by renderString() to substiture digit glyphs on the fly
+     * Pre-cached layouts of the ASCII digits 0-9 (in that order). Used by renderString() to substiture digit glyphs on the fly
      * as a performance boost. The speed up is most noticable on the F3 screen which rapidly displays lots of changing numbers.
-     * The 4 element array is index by the font style (combination of Font.PLAIN, Font.BOLD, and Font.ITALIC), and each of the
-     * nested elements is index by the digit value 0-9.
+     * The 4 element array is index by the font style (combination of Font.PLAIN, Font.BOLD, and Font.ITALIC), and the glyphs
+     * of each Layout are indexed by the digit value 0-9.
      */
-    private Glyph[][] digitGlyphs = new Glyph[4][];
+    private Layout digitGlyphs[] = new Layout[4];
 
     /** True if digitGlyphs[] has been assigned and cacheString() can begin replacing all digits with '0' in the string. */
     private boolean digitGlyphsReady = false;
 
+    /**
+     * The horizontal pen advance in pixels of the '0' glyph in each font style (indexed like digitGlyphs[]). Since layoutString()
+     * lays out every digit as a '0', this is the distance between any two adjacent digits in a layed out string. It differs from
+     * digitGlyphs[style].advances[0], which is only the distance between the left edges of the '0' and '1' glyph images.
+     */
+    private int zeroAdvance[] = new int[4];
+
+    /** Re-usable quad (in the same format as Layout.quads) that receives a single glyph from substituteDigit() and setQuad(). */
+    private float glyphQuad[] = new float[8];
+
+    /**
+     * If true, then every run of consecutive ASCII digits in a string is treated as a single variable width "slot" for caching
+     * purposes. Strings that only differ in their numbers (even if those numbers have a different number of digits) will then
+     * share a single template layout, and instantiateTemplate() widens the slots to the actual number of digits using the
+     * zeroAdvance[] of each font style. This avoids re-layout of strings like "FPS: 99" vs "FPS: 100" on the F3 screen.
+     */
+    private boolean numberTemplates = false;
+
     /** If true, then enble GL_BLEND in renderString() so anti-aliasing font glyphs show up properly. */
     private boolean antiAliasEnabled = false;
 
@@ -136,26 +417,79 @@ public class StringCache
      * to be equal when hashing and comparing Key objects together. Therefore, Strings which only differ in their digits will
      * be all hashed together into the same entry. The renderString() method will then substitute the correct digit glyph on
      * the fly. This special digit handling gives a significant speedup on the F3 debug screen.
+     *
+     * Since anyone on a server can put arbitrary text into chat, the hash code is randomly seeded and well mixed so that colliding
+     * strings cannot be crafted ahead of time. Key also implements Comparable with an ordering that is consistent with equals().
+     * Starting with Java 8, a HashMap (and therefore the boundedCache) converts any bucket with many colliding keys into a
+     * balanced tree ordered by compareTo(), so even if collisions do occur, lookups remain logarithmic instead of linear. Note
+     * that the WeakHashMap used by the weak reference cache has no such protection and only relies on the seeded hash.
+     *
+     * In number template mode, every run of consecutive ASCII digits is further considered equal to any other run of digits
+     * regardless of the run lengths, so "FPS: 9" and "FPS: 100" have the same hash code and compare as equal.
+     *
+     * This class is package private only so it can be used by the StringCacheBenchmark.
      */
-    static private class Key
+    static class Key implements Comparable<Key>
     {
+        /** Random seed chosen at startup for computeHash(); makes it impossible to predict which strings will collide. */
+        private static final int HASH_SEED = new Random().nextInt();
+
+        /**
+         * A copy of the String which this Key is indexing. With the weak reference cache, a copy is used to avoid creating a
+         * strong reference to the original passed into renderString(). When the original String is no longer needed by
+         * Minecraft, it will be garbage collected and the WeakHashMaps in StringCache will allow this Key object and its
+         * associated Entry object to be garbage collected as well. The boundedCache simply uses the original String. Only the
+         * temporary lookupKey ever holds a CharSequence that is not a String.
+         */
+        public CharSequence str;
+
+        /** The hash code of str computed by setString(); hashing is done only once per Key since it has to scan the whole string. */
+        public int hash;
+
+        /** True if every run of ASCII digits in str is considered equal to any other run of digits (see numberTemplates). */
+        public boolean templates;
+
         /**
-         * A copy of the String which this Key is indexing. A copy is used to avoid creating a strong reference to the original
-         * passed into renderString(). When the original String is no longer needed by Minecraft, it will be garbage collected
-         * and the WeakHashMaps in StringCache will allow this Key object and its associated Entry object to be garbage
-         * collected as well.
+         * Change the String indexed by this Key and compute its hash code. A Key that is stored in one of the string caches
+         * never has its string changed; only the temporary lookupKey is re-used.
+         *
+         * @param str the String (or any other CharSequence for the lookupKey) to be indexed by this Key
+         * @param templates true if runs of ASCII digits of any length should be considered equal
          */
-        public String str;
+        public void setString(CharSequence str, boolean templates)
+        {
+            this.str = str;
+            this.templates = templates;
+            hash = computeHash(str, templates);
+        }
 
         /**
-         * Computes a hash code on str in the same manner as the String class, except all ASCII digits hash as '0'
+         * Returns the hash code that was computed by setString().
          *
          * @return the augmented hash code on str
          */
         @Override
         public int hashCode()
         {
-            int code = 0, length = str.length();
+            return hash;
+        }
+
+        /**
+         * Computes a seeded hash code on str where all ASCII digits hash as '0'. Every character is mixed into the hash with a
+         * multiply and xor-shift step, and the final result goes through the MurmurHash3 finalizer so that all bits of the hash
+         * depend on every character. Unlike the polynomial hash used by the String class, there are no simple substitutions
+         * (like "Aa" vs "BB") that produce the same hash code regardless of the seed.
+         *
+         * @param str the string to hash
+         * @param templates if true, only the first digit in a run of consecutive ASCII digits is hashed
+         * @return the augmented hash code on str
+         */
+        private static int computeHash(CharSequence str, boolean templates)
+        {
+            int code = HASH_SEED, length = str.length(), hashed = 0;
+
+            /* True if the previous character was part of a run of ASCII digits; used to skip the rest of the run in template mode */
+            boolean digitRun = false;
 
             /*
              * True if a section mark character was last seen. In this case, if the next character is a digit, it must
@@ -169,15 +503,99 @@ public class StringCache
                 char c = str.charAt(index);
                 if(c >= '0' && c <= '9' && !colorCode)
                 {
+                    if(digitRun && templates)
+                    {
+                        continue;
+                    }
                     c = '0';
+                    digitRun = true;
+                }
+                else
+                {
+                    digitRun = false;
                 }
-                code = (code * 31) + c;
+                code = (code ^ c) * 0x9E3779B1;
+                code ^= code >>> 15;
                 colorCode = (c == '\u00A7');
+                hashed++;
             }
 
+            return finish(code, hashed);
+        }
+
+        /**
+         * Apply the MurmurHash3 32-bit finalizer to a hash code; also mixes in the length so that strings of different lengths diverge
+         * further. Shared with LayoutKey.
+         *
+         * @param code the hash code after mixing in every character
+         * @param length the number of characters mixed into the hash code
+         * @return the final hash code
+         */
+        static int finish(int code, int length)
+        {
+            code ^= length;
+            code ^= code >>> 16;
+            code *= 0x85EBCA6B;
+            code ^= code >>> 13;
+            code *= 0xC2B2AE35;
+            code ^= code >>> 16;
+
             return code;
         }
 
+        /**
+         * Compare the str of two Key objects character by character, where all ASCII digits (except those following a section
+         * mark) are considered equal to '0'. In template mode, the remaining digits in a run after the first are skipped over
+         * entirely. This ordering is consistent with equals() and it allows HashMap to store colliding keys in a balanced tree.
+         *
+         * @param o the other Key object being compared with this one
+         * @return a negative number, zero, or a positive number if this < other, this == other, or this > other
+         */
+        @Override
+        public int compareTo(Key o)
+        {
+            CharSequence other = o.str;
+            int length1 = str.length(), length2 = other.length();
+            int index1 = 0, index2 = 0;
+
+            /* True if a section mark character was last seen; same as in equals() */
+            boolean colorCode = false;
+
+            while(index1 < length1 && index2 < length2)
+            {
+                char c1 = str.charAt(index1++);
+                char c2 = other.charAt(index2++);
+
+                if(!colorCode)
+                {
+                    if(c1 >= '0' && c1 <= '9')
+                    {
+                        c1 = '0';
+                        while(templates && index1 < length1 && str.charAt(index1) >= '0' && str.charAt(index1) <= '9')
+                        {
+                            index1++;
+                        }
+                    }
+                    if(c2 >= '0' && c2 <= '9')
+                    {
+                        c2 = '0';
+                        while(templates && index2 < length2 && other.charAt(index2) >= '0' && other.charAt(index2) <= '9')
+                        {
+                            index2++;
+                        }
+                    }
+                }
+
+                if(c1 != c2)
+                {
+                    return c1 - c2;
+                }
+                colorCode = (c1 == '\u00A7');
+            }
+
+            return (length1 - index1) - (length2 - index2);
+        }
+
         /**
          * Compare str against another object (specifically, the object's string representation as returned by toString).
          * All ASCII digits are considered equal by this method, as long as they are at the same index within the string.
@@ -197,7 +615,16 @@ public class StringCache
                 return false;
             }
 
-            /* Calling toString on a String object simply returns itself so no new object allocation is performed */
+            /* Template mode keys can only be compared against other Keys since the string lengths may legitimately differ */
+            if(templates)
+            {
+                return (o instanceof Key) && compareTo((Key) o) == 0;
+            }
+
+            /*
+             * Calling toString on a String object simply returns itself so no new object allocation is performed. The lookupKey is
+             * always the one calling equals() so the other Key always holds an actual String.
+             */
             String other = o.toString();
             int length = str.length();
 
@@ -236,638 +663,4397 @@ public class StringCache
         @Override
         public String toString()
         {
-            return str;
+            return str.toString();
         }
     }
 
-    /** This entry holds the layed out glyph positions for the cached string along with some relevant metadata. */
+    /**
+     * This entry holds the color codes for the cached string along with some relevant metadata, and a reference to the (possibly shared)
+     * Layout with the glyph positions. Strings that only differ in their color codes each have their own Entry but the same Layout.
+     */
     static private class Entry
     {
-        /** A weak reference back to the Key object in stringCache that maps to this Entry. */
+        /** A weak reference back to the Key object in stringCache that maps to this Entry; null when using the boundedCache. */
         public WeakReference<Key> keyRef;
 
-        /** The total horizontal advance (i.e. width) for this string in pixels. */
-        public int advance;
-
-        /** Array of fully layed out glyphs for the string. Sorted by logical order of characters (i.e. glyph.stringIndex) */
-        public Glyph glyphs[];
+        /** The glyph positions for the string with all of its color codes removed. */
+        public Layout layout;
 
-        /** Array of color code locations from the original string */
-        public ColorCode colors[];
+        /** Location and resulting style of every color code in the original string, packed as described by ColorCode */
+        public int colors[];
 
         /** True if the string uses strikethrough or underlines anywhere and needs an extra pass in renderString() */
         public boolean specialRender;
+
+        /**
+         * The color code in effect at each quad of Layout.quads (i.e. the index into the colorCode[] array, or -1 for the initial
+         * color). The palette (normal or drop shadow) is chosen when rendering. Null until the string is first rendered.
+         */
+        public byte quadColors[];
+
+        /**
+         * Two ints for every quad of Layout.quads that draws an ASCII digit, which renderGlyphs() replaces with the digit actually
+         * in the string: the quad index, followed by (index into the original string << 2 | fontStyle). Every string mapping to
+         * this Entry has its digits in the same places. Null if there are no digits or if the string was never rendered.
+         */
+        public int digits[];
     }
 
-    /** Identifies the location and value of a single color code in the original string */
-    static private class ColorCode implements Comparable<Integer>
+    /**
+     * The layed out glyph positions for a string with all of its color codes removed. The glyph positions only depend on the visible
+     * text and on the font style (bold or italic) of each character, so a single Layout is shared by every Entry that only differs in
+     * colors, underlining or strikethrough. Each stringIndex is an index into the stripped text; renderString() converts it back
+     * into an index into the original string using the color codes of the Entry being rendered.
+     *
+     * To keep thousands of cached layouts cheap for both the heap and the garbage collector, the glyphs are not stored as individual
+     * objects. Instead, every property of a glyph is kept in its own primitive array (or array of shared references) and element i of
+     * each array describes glyph i. The glyphs are sorted by logical order of characters (i.e. by stringIndex).
+     */
+    static private class Layout
     {
-        /** Bit flag used with renderStyle to request the underline style */
-        public static final byte UNDERLINE = 1;
+        /** The total horizontal advance (i.e. width) for this string in pixels. */
+        public int advance;
 
-        /** Bit flag used with renderStyle to request the strikethrough style */
-        public static final byte STRIKETHROUGH = 2;
+        /** The number of glyphs in the string; this is the length of every per-glyph array below. */
+        public int glyphCount;
 
-        /** The index into the original string (i.e. with color codes) for the location of this color code. */
-        public int stringIndex;
+        /** The index into the stripped string (i.e. with no color codes) for the character that generated each glyph. */
+        public int stringIndex[];
+
+        /** Each glyph's horizontal position (in pixels) relative to the entire string's baseline. */
+        public int x[];
+
+        /** Each glyph's vertical position (in pixels) relative to the entire string's baseline. */
+        public short y[];
 
-        /** The index into the stripped string (i.e. with no color codes) of where this color code would have appeared */
-        public int stripIndex;
+        /** Each glyph's horizontal advance (in pixels) used for strikethrough and underline effects. */
+        public short advances[];
 
-        /** The numeric color code (i.e. index into the colorCode[] array); -1 to reset default color */
-        public byte colorCode;
+        /** The font specific glyph code of each glyph, used to find the texture once the glyph image is pre-rendered. */
+        public int glyphCode[];
 
-        /** Combination of Font.PLAIN, Font.BOLD, and Font.ITALIC specifying font specific syles */
-        public byte fontStyle;
+        /** The font which each glyphCode belongs to. */
+        public Font font[];
 
-        /** Combination of UNDERLINE and STRIKETHROUGH flags specifying effects performed by renderString() */
-        public byte renderStyle;
+        /** Texture ID and position/size of each glyph's pre-rendered image within the cache texture; null until first rendered. */
+        public GlyphCache.Entry texture[];
 
         /**
-         * Performs numeric comparison on stripIndex. Allows binary search on ColorCode arrays in layoutStyle.
-         *
-         * @param i the Integer object being compared
-         * @return either -1, 0, or 1 if this < other, this == other, or this > other
+         * Element i is the largest total advance of the first 1 to i glyphs (element 0 is zero). This is the running maximum instead of
+         * the plain running sum since a glyph advance can be negative, and it allows sizeString() to use a binary search.
          */
-        @Override
-        public int compareTo(Integer i)
-        {
-            return (stringIndex == i.intValue()) ? 0 : (stringIndex < i.intValue()) ? -1 : 1;
-        }
-    }
+        public int prefixWidth[];
 
-    /**
-     * Identifies a single glyph in the layed-out string. Includes a reference to a GlyphCache.Entry with the OpenGL texture ID
-     * and position of the pre-rendered glyph image, and includes the x/y pixel coordinates of where this glyph occurs within
-     * the string to which this Glyph object belongs.
-     */
-    static private class Glyph implements Comparable<Glyph>
-    {
-        /** The index into the original string (i.e. with color codes) for the character that generated this glyph. */
-        public int stringIndex;
+        /**
+         * True if any glyph has a negative advance. Otherwise prefixWidth[] is the same as the plain running sum, so the total advance
+         * of any range of glyphs is the difference of two of its elements; see breakAtSpaces().
+         */
+        public boolean negativeAdvance;
 
-        /** Texture ID and position/size of the glyph's pre-rendered image within the cache texture. */
-        public GlyphCache.Entry texture;
+        /** Element i is the largest total advance of the last glyphs starting at any index from i to glyphCount; used by trimString(). */
+        public int suffixWidth[];
 
-        /** Glyph's horizontal position (in pixels) relative to the entire string's baseline */
-        public int x;
+        /** The indices of every glyph for a space character, in increasing order. */
+        public int spaces[];
 
-        /** Glyph's vertical position (in pixels) relative to the entire string's baseline */
-        public int y;
+        /** The indices of every glyph for a newline character, in increasing order. */
+        public int newlines[];
 
-        /** Glyph's horizontal advance (in pixels) used for strikethrough and underline effects */
-        public int advance;
+        /**
+         * For each glyph, true if it belongs to a right-to-left run of text. Only created if the string requires bidirectional layout;
+         * null means that every glyph is left-to-right.
+         */
+        public boolean rightToLeft[];
+
+        /** The glyph indices sorted by their x coordinate (i.e. from left to right on the screen); null if rightToLeft is null. */
+        public int visualOrder[];
+
+        /** The position of each glyph within visualOrder[]; the inverse of visualOrder. Null if rightToLeft is null. */
+        public int visualIndex[];
 
         /**
-         * Allows arrays of Glyph objects to be sorted. Performs numeric comparison on stringIndex.
-         *
-         * @param o the other Glyph object being compared with this one
-         * @return either -1, 0, or 1 if this < other, this == other, or this > other
+         * The text runs whose glyph images were not pre-rendered because the string has so far only been measured. The first call to
+         * renderString() passes them to GlyphCache.cacheGlyphs() and then sets this to null.
          */
-        @Override
-        public int compareTo(Glyph o)
-        {
-            return (stringIndex == o.stringIndex) ? 0 : (stringIndex < o.stringIndex) ? -1 : 1;
-        }
+        public Run runs[];
+
+        /** The stripped text from which the runs were layed out; null once the runs have been pre-rendered. */
+        public char runText[];
+
+        /**
+         * Ready-made vertex data for renderGlyphs() with 8 floats per quad: x1, y1, x2, y2, u1, v1, u2, v2. The coordinates are
+         * relative to the string's baseline origin and already scaled to the GUI coordinate system. Glyphs with an empty image
+         * (i.e. spaces) have no quad at all. Null until the Layout is first rendered; see buildQuads().
+         */
+        public float quads[];
+
+        /** The number of quads in quads[]. */
+        public int quadCount;
+
+        /** The glyph index of each quad. */
+        public int quadGlyph[];
+
+        /** The OpenGL texture holding the image of each quad. */
+        public int quadTexture[];
     }
 
-    /**
-     * A single StringCache object is allocated by Minecraft's FontRenderer which forwards all string drawing and requests for
-     * string width to this class.
-     *
-     * @param renderEngine needed for allocating new OpenGL textures
-     * @param colors 32 element array of RGBA colors corresponding to the 16 text color codes followed by 16 darker version of the
-     * color codes for use as drop shadows
-     */
-    public StringCache(int colors[])
+    /** A contiguous run of text layed out with a single font, remembered so its glyph images can be pre-rendered later on. */
+    static private class Run
     {
-        /* StringCache is created by the main game thread; remember it for later thread safety checks */
-        mainThread = Thread.currentThread();
+        /** The font used to layout the run. */
+        public Font font;
 
-        glyphCache = new GlyphCache();
-        colorTable = colors;
+        /** The offset into Layout.runText at which the run starts. */
+        public int start;
 
-        /* Pre-cache the ASCII digits to allow for fast glyph substitution */
-        cacheDightGlyphs();
+        /** The (offset + length) into Layout.runText at which the run ends. */
+        public int limit;
+
+        /** Either Font.LAYOUT_RIGHT_TO_LEFT or Font.LAYOUT_LEFT_TO_RIGHT. */
+        public int layoutFlags;
     }
 
     /**
-     * Change the default font used to pre-render glyph images. If this method is called at runtime, the string cache is flushed so that
-     * all visible strings will be immediately re-layed out using the new font selection.
-     *
-     * @param fontName the new font name
-     * @param fontSize the new point size
+     * The key into layoutCache. Consists of the text with all color codes removed, and a packed array of every color code that changes
+     * the font style. Those color codes are exactly the points where layoutStyle() splits the text, so two strings with equal keys are
+     * always layed out identically. Just like Key, all ASCII digits are considered equal and the hash code uses the same random seed.
      */
-    public void setDefaultFont(String name, int size, boolean antiAlias)
+    static private class LayoutKey implements Comparable<LayoutKey>
     {
-        /* Change the font in the glyph cache and clear the string cache so all strings have to be re-layed out and re-rendered */
-        glyphCache.setDefaultFont(name, size, antiAlias);
-        antiAliasEnabled = antiAlias;
-        weakRefCache.clear();
-        stringCache.clear();
+        /** The text with all color codes removed; only the first "length" characters are part of the key. */
+        public char text[];
 
-        /* Pre-cache the ASCII digits to allow for fast glyph substitution */
-        cacheDightGlyphs();
-    }
+        /** The number of characters in text[] that are part of this key. */
+        public int length;
 
-    /**
-     * Pre-cache the ASCII digits to allow for fast glyph substitution. Called once from the constructor and called any time the font selection
+        /** Holds (stripIndex << 2 | fontStyle) for each color code whose font style differs from that of the previous color code. */
+        public int styles[];
+
+        /** Hash code computed once by the constructor. */
+        private int hash;
+
+        /**
+         * Create a new key from stripped text and the color codes that were removed from it.
+         *
+         * @param text the text with all color codes removed
+         * @param length the length of the stripped text within text[]
+         * @param colors the color codes removed from the text
+         */
+        public LayoutKey(char text[], int length, int colors[])
+        {
+            this.text = text;
+            this.length = length;
+
+            /* Count and then record every change in font style */
+            int count = 0, style = Font.PLAIN;
+            int colorCount = ColorCode.count(colors);
+            for(int index = 0; index < colorCount; index++)
+            {
+                if(ColorCode.fontStyle(colors, index) != style)
+                {
+                    style = ColorCode.fontStyle(colors, index);
+                    count++;
+                }
+            }
+
+            styles = new int[count];
+            count = 0;
+            style = Font.PLAIN;
+            for(int index = 0; index < colorCount; index++)
+            {
+                if(ColorCode.fontStyle(colors, index) != style)
+                {
+                    style = ColorCode.fontStyle(colors, index);
+                    styles[count++] = (ColorCode.stripIndex(colors, index) << 2) | style;
+                }
+            }
+
+            /* Same mixing as Key.computeHash() with every ASCII digit hashed as '0' */
+            int code = Key.HASH_SEED;
+            for(int index = 0; index < length; index++)
+            {
+                char c = text[index];
+                if(c >= '0' && c <= '9')
+                {
+                    c = '0';
+                }
+                code = (code ^ c) * 0x9E3779B1;
+                code ^= code >>> 15;
+            }
+            for(int index = 0; index < styles.length; index++)
+            {
+                code = (code ^ styles[index]) * 0x9E3779B1;
+                code ^= code >>> 15;
+            }
+            hash = Key.finish(code, length);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return (o instanceof LayoutKey) && compareTo((LayoutKey) o) == 0;
+        }
+
+        /**
+         * Compare the text (with all ASCII digits considered equal) and then the font style changes of two keys. The ordering is
+         * consistent with equals() so that HashMap can keep colliding keys in a balanced tree.
+         *
+         * @param o the other LayoutKey object being compared with this one
+         * @return a negative number, zero, or a positive number if this < other, this == other, or this > other
+         */
+        @Override
+        public int compareTo(LayoutKey o)
+        {
+            if(length != o.length)
+            {
+                return length < o.length ? -1 : 1;
+            }
+
+            for(int index = 0; index < length; index++)
+            {
+                char c1 = text[index];
+                char c2 = o.text[index];
+                c1 = (c1 >= '0' && c1 <= '9') ? '0' : c1;
+                c2 = (c2 >= '0' && c2 <= '9') ? '0' : c2;
+
+                if(c1 != c2)
+                {
+                    return c1 < c2 ? -1 : 1;
+                }
+            }
+
+            if(styles.length != o.styles.length)
+            {
+                return styles.length < o.styles.length ? -1 : 1;
+            }
+
+            for(int index = 0; index < styles.length; index++)
+            {
+                if(styles[index] != o.styles[index])
+                {
+                    return styles[index] < o.styles[index] ? -1 : 1;
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * The shaped glyphs of a single word (along with any whitespace following it) in a single font. All positions are relative to the
+     * start of the word so the same Segment can be placed anywhere within a string by layoutSegments().
+     */
+    static private class Segment
+    {
+        /** The total horizontal advance (i.e. width) of the word in pixels. */
+        public int advance;
+
+        /** The index of the character that generated each glyph, relative to the start of the word. */
+        public int charIndex[];
+
+        /** The horizontal pixel position of each glyph relative to the start of the word. */
+        public int x[];
+
+        /** The vertical pixel position of each glyph relative to the baseline. */
+        public int y[];
+
+        /** The font specific glyph code of each glyph. */
+        public int glyphCode[];
+
+        /** Texture ID and position/size of each glyph's pre-rendered image within the cache texture; null if not yet pre-rendered. */
+        public GlyphCache.Entry texture[];
+
+        /** True once every element of texture[] has been filled in. */
+        public boolean rasterized;
+    }
+
+    /**
+     * The key into segmentCache. Consists of the Font (compared by identity since GlyphCache always returns the same Font object for
+     * the same font and style) and a range of characters within a char array. The lookupSegmentKey points directly into the text
+     * being layed out; only keys actually stored in segmentCache get their own copy of the characters.
+     */
+    static private class SegmentKey
+    {
+        /** The font used to shape the word. */
+        public Font font;
+
+        /** The array holding the word; only the characters from start to start + length are part of the key. */
+        public char text[];
+
+        /** The offset of the word within text[]. */
+        public int start;
+
+        /** The number of characters in the word. */
+        public int length;
+
+        /** Hash code computed by set(). */
+        private int hash;
+
+        /**
+         * Point this key at a new word.
+         *
+         * @param font the font used to shape the word
+         * @param text the array holding the word
+         * @param start the offset of the word within text[]
+         * @param limit the (offset + length) of the word within text[]
+         */
+        public void set(Font font, char text[], int start, int limit)
+        {
+            this.font = font;
+            this.text = text;
+            this.start = start;
+            this.length = limit - start;
+
+            /* Same mixing as Key.computeHash() */
+            int code = Key.HASH_SEED ^ System.identityHashCode(font);
+            for(int index = start; index < limit; index++)
+            {
+                code = (code ^ text[index]) * 0x9E3779B1;
+                code ^= code >>> 15;
+            }
+            hash = Key.finish(code, length);
+        }
+
+        /** @return a new SegmentKey equal to this one with its own copy of the characters */
+        public SegmentKey copy()
+        {
+            SegmentKey key = new SegmentKey();
+            key.font = font;
+            key.text = new char[length];
+            System.arraycopy(text, start, key.text, 0, length);
+            key.start = 0;
+            key.length = length;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            SegmentKey other = (SegmentKey) o;
+            if(hash != other.hash || length != other.length || font != other.font)
+            {
+                return false;
+            }
+
+            for(int index = 0; index < length; index++)
+            {
+                if(text[start + index] != other.text[other.start + index])
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Decodes the color codes removed from a string by stripColorCodes(). To avoid allocating an object for every color code,
+     * all of the codes in a string are packed into a single int[] array (Entry.colors) with two elements per code. The first
+     * element is the index into the stripped string (i.e. with no color codes) of where the color code would have appeared.
+     * The second element packs the style in effect after the code: the numeric color code (i.e. index into the colorCode[]
+     * array, or -1 to reset the default color) in the lowest 8 bits, the font style in the next 8 bits, and the render style
+     * in the upper 16 bits. The codes are sorted by their position in the string.
+     */
+    static private class ColorCode
+    {
+        /** Bit flag used with renderStyle to request the underline style */
+        public static final byte UNDERLINE = 1;
+
+        /** Bit flag used with renderStyle to request the strikethrough style */
+        public static final byte STRIKETHROUGH = 2;
+
+        /** Shared by every Entry whose string has no color codes at all */
+        public static final int NONE[] = new int[0];
+
+        /** @return the number of color codes in the packed array */
+        public static int count(int colors[])
+        {
+            return colors.length >> 1;
+        }
+
+        /** @return the index into the stripped string (i.e. with no color codes) of where this color code would have appeared */
+        public static int stripIndex(int colors[], int index)
+        {
+            return colors[index << 1];
+        }
+
+        /** @return the index into the original string (i.e. with color codes); every preceding color code is two characters long */
+        public static int stringIndex(int colors[], int index)
+        {
+            return colors[index << 1] + (index << 1);
+        }
+
+        /** @return the numeric color code (i.e. index into the colorCode[] array); -1 to reset default color */
+        public static int colorCode(int colors[], int index)
+        {
+            return (byte) colors[(index << 1) + 1];
+        }
+
+        /** @return combination of Font.PLAIN, Font.BOLD, and Font.ITALIC specifying font specific syles */
+        public static int fontStyle(int colors[], int index)
+        {
+            return (colors[(index << 1) + 1] >> 8) & 0xFF;
+        }
+
+        /** @return combination of UNDERLINE and STRIKETHROUGH flags specifying effects performed by renderString() */
+        public static int renderStyle(int colors[], int index)
+        {
+            return colors[(index << 1) + 1] >>> 16;
+        }
+
+        /** @return the second element of a packed color code holding the given color code, font style and render style */
+        public static int pack(int colorCode, int fontStyle, int renderStyle)
+        {
+            return (colorCode & 0xFF) | (fontStyle << 8) | (renderStyle << 16);
+        }
+
+        /**
+         * Binary search for the last color code located at or before a position in the stripped string. Used by layoutStyle()
+         * to find the font style in effect at the beginning of a text run.
+         *
+         * @param colors the packed color codes
+         * @param stripIndex the index into the stripped string
+         * @return the index of the last color code with a stripIndex <= the requested one, or -1 if there is none
+         */
+        public static int search(int colors[], int stripIndex)
+        {
+            int low = 0, high = count(colors);
+            while(low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if(stripIndex(colors, middle) <= stripIndex)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+
+            return low - 1;
+        }
+    }
+
+    /**
+     * Identifies a single glyph while a string is being layed out. Includes a reference to a GlyphCache.Entry with the OpenGL texture
+     * ID and position of the pre-rendered glyph image, and includes the x/y pixel coordinates of where this glyph occurs within the
+     * string to which this Glyph object belongs. Once the entire string is layed out, packGlyphs() copies the glyphs into the packed
+     * arrays of the Layout and the Glyph objects are discarded.
+     */
+    static private class Glyph implements Comparable<Glyph>
+    {
+        /** The index into the stripped string (i.e. with no color codes) for the character that generated this glyph. */
+        public int stringIndex;
+
+        /** Texture ID and position/size of the glyph's pre-rendered image within the cache texture; null until first rendered. */
+        public GlyphCache.Entry texture;
+
+        /** The font which the glyphCode belongs to; used to find the texture once the glyph image is pre-rendered. */
+        public Font font;
+
+        /** The font specific glyph code used to find the texture once the glyph image is pre-rendered. */
+        public int glyphCode;
+
+        /** Glyph's horizontal position (in pixels) relative to the entire string's baseline */
+        public int x;
+
+        /** Glyph's vertical position (in pixels) relative to the entire string's baseline */
+        public int y;
+
+        /** Glyph's horizontal advance (in pixels) used for strikethrough and underline effects */
+        public int advance;
+
+        /**
+         * Allows arrays of Glyph objects to be sorted. Performs numeric comparison on stringIndex.
+         *
+         * @param o the other Glyph object being compared with this one
+         * @return either -1, 0, or 1 if this < other, this == other, or this > other
+         */
+        @Override
+        public int compareTo(Glyph o)
+        {
+            return (stringIndex == o.stringIndex) ? 0 : (stringIndex < o.stringIndex) ? -1 : 1;
+        }
+    }
+
+    /**
+     * Returned by lineIterator() to break a string into lines. Every call to next() finds the next line by continuing from where the
+     * previous line ended in the glyph array of the string's cached layout; no substrings are created and nothing is layed out again.
+     * Each line also reports the color and style codes which are still in effect at its start (the same as FontRenderer's
+     * getFormatFromString() on all the preceding text), so the line can be rendered on its own with the correct formatting.
+     */
+    static public class LineIterator
+    {
+        /** The string being broken into lines. */
+        private CharSequence str;
+
+        /** The cached Entry for str containing its glyph layout and color codes. */
+        private Entry entry;
+
+        /** The maximum width of each line in pixels (i.e. twice the GUI coordinate width). */
+        private int width;
+
+        /** Finds line break opportunities in stripText[] if the Unicode line breaking rules are used; null if only breaking at spaces. */
+        private BreakIterator breaker;
+
+        /** The string with all color codes removed; the BreakIterator must not see the color codes. Only used with the breaker. */
+        private char stripText[];
+
+        /** Index into str of the first character on the current line. */
+        private int start;
+
+        /** Index into str one past the last character on the current line; spaces or newlines where the line was broken are excluded. */
+        private int end;
+
+        /** Width of the current line in pixels. */
+        private int advance;
+
+        /** Index into str where the next line starts. */
+        private int next = 0;
+
+        /** True until next() is called for the first time; an empty string still has one empty line. */
+        private boolean first = true;
+
+        /** The format codes (i.e. "\u00A7c\u00A7l") in effect at the start of the current line; only the first formatLength chars are used. */
+        private char format[] = new char[8];
+
+        /** Number of chars used in format[]. */
+        private int formatLength = 0;
+
+        /** Index into str up to which format[] has been updated. */
+        private int formatIndex = 0;
+
+        private LineIterator(CharSequence str, Entry entry, int width, boolean unicodeBreaks)
+        {
+            this.str = str;
+            this.entry = entry;
+            this.width = width;
+
+            if(unicodeBreaks)
+            {
+                /* Remove color codes the same way as stripColorCodes(); a section mark at the very end of the string is not a color code */
+                int length = str.length(), stripLength = 0;
+                stripText = new char[length];
+                for(int index = 0; index < length; index++)
+                {
+                    char c = str.charAt(index);
+                    if(c == '\u00A7' && index + 1 < length)
+                    {
+                        index++;
+                    }
+                    else
+                    {
+                        stripText[stripLength++] = c;
+                    }
+                }
+
+                breaker = BreakIterator.getLineInstance();
+                breaker.setText(new String(stripText, 0, stripLength));
+            }
+        }
+
+        /**
+         * Advance to the next line.
+         *
+         * @return true if there is another line; false if the end of the string was reached
+         */
+        public boolean next()
+        {
+            int length = str.length();
+            if(!first && next >= length)
+            {
+                return false;
+            }
+            first = false;
+
+            start = next;
+            updateFormat(start);
+
+            Layout layout = entry.layout;
+            int index = glyphIndex(layout, toStripIndex(entry, start));
+
+            if(breaker == null)
+            {
+                nextAtSpaces(index);
+            }
+            else
+            {
+                nextAtBreaks(index);
+            }
+
+            return true;
+        }
+
+        /**
+         * Find the end of the line starting at the given glyph by breaking at spaces, exactly like repeatedly calling sizeStringToWidth()
+         * on the rest of the string would. Same as in Minecraft's FontRenderer, the space or newline where the line is broken is skipped.
+         *
+         * @param index index of the first glyph on the line
+         */
+        private void nextAtSpaces(int index)
+        {
+            Layout layout = entry.layout;
+            int limit = breakAtSpaces(entry, str, index, layout.glyphCount, width);
+
+            /* Even if not a single glyph fits, the line must still contain at least one glyph for the iterator to make any progress */
+            if(limit == index && index < layout.glyphCount && !isBreakChar(str.charAt(toStringIndex(entry, layout.stringIndex[index]))))
+            {
+                limit++;
+            }
+
+            end = (limit < layout.glyphCount) ? toStringIndex(entry, layout.stringIndex[limit]) : str.length();
+            next = (end < str.length() && isBreakChar(str.charAt(end))) ? end + 1 : end;
+            advance = rangeAdvance(entry.layout, index, limit);
+        }
+
+        /**
+         * Find the end of the line starting at the given glyph using the line break opportunities from the BreakIterator. As many glyphs
+         * as possible are placed on the line, except that trailing spaces are allowed to extend past the width. The line is then broken
+         * at the last break opportunity before the first glyph that didn't fit, or just before that glyph if a single word is wider than
+         * the whole line. A newline always ends the line.
+         *
+         * @param index index of the first glyph on the line
+         */
+        private void nextAtBreaks(int index)
+        {
+            Layout layout = entry.layout;
+            int firstGlyph = index, total = 0;
+
+            /* Add up the glyph advances until one of them doesn't fit */
+            while(index < layout.glyphCount)
+            {
+                char c = stripText[layout.stringIndex[index]];
+                if(c == '\n' || (c != ' ' && index > firstGlyph && total + layout.advances[index] > width))
+                {
+                    break;
+                }
+
+                total += layout.advances[index];
+                index++;
+            }
+
+            if(index == layout.glyphCount)
+            {
+                next = str.length();
+            }
+            else if(stripText[layout.stringIndex[index]] == '\n')
+            {
+                next = toStringIndex(entry, layout.stringIndex[index]) + 1;
+            }
+            else
+            {
+                /* Only break opportunities after the first glyph on the line can be used */
+                int stripBreak = breaker.preceding(layout.stringIndex[index] + 1);
+                if(stripBreak <= layout.stringIndex[firstGlyph])
+                {
+                    stripBreak = layout.stringIndex[index];
+                }
+
+                next = toStringIndex(entry, stripBreak);
+                index = glyphIndex(layout, stripBreak);
+            }
+
+            /* Trailing spaces at the end of the line are not part of the line itself */
+            while(index > firstGlyph && stripText[layout.stringIndex[index - 1]] == ' ')
+            {
+                index--;
+            }
+
+            end = (index < layout.glyphCount) ? toStringIndex(entry, layout.stringIndex[index]) : str.length();
+            advance = rangeAdvance(entry.layout, firstGlyph, index);
+        }
+
+        /**
+         * Bring format[] up to date with all the format codes preceding the given index in str. Just like getFormatFromString(), a
+         * color code replaces all previous codes while the style codes (including the reset code) are appended.
+         *
+         * @param index index into str where the current line starts
+         */
+        private void updateFormat(int index)
+        {
+            for(; formatIndex + 1 < index; formatIndex++)
+            {
+                if(str.charAt(formatIndex) == '\u00A7')
+                {
+                    char c = str.charAt(formatIndex + 1);
+                    int code = formatCode(c);
+
+                    if(code >= 0 && code < 16)
+                    {
+                        formatLength = 0;
+                    }
+                    if(code >= 0)
+                    {
+                        if(formatLength + 2 > format.length)
+                        {
+                            format = Arrays.copyOf(format, format.length * 2);
+                        }
+                        format[formatLength++] = '\u00A7';
+                        format[formatLength++] = c;
+                    }
+                }
+            }
+        }
+
+        private static boolean isBreakChar(char c)
+        {
+            return c == ' ' || c == '\n';
+        }
+
+        /** @return index into the string of the first character on the current line */
+        public int getStart()
+        {
+            return start;
+        }
+
+        /** @return index into the string one past the last character on the current line, not including the space or newline where the line was broken */
+        public int getEnd()
+        {
+            return end;
+        }
+
+        /** @return the width of the current line (in GUI coordinate system) */
+        public int getWidth()
+        {
+            return advance / 2;
+        }
+
+        /** @return the color and style codes in effect at the start of the current line; prepend these when rendering the line by itself */
+        public String getFormat()
+        {
+            return new String(format, 0, formatLength);
+        }
+    }
+
+    /**
+     * Identifies a Paragraph in the paragraphCache by its text and the width to which it was word wrapped. Unlike Key, all digits are
+     * significant since every line of the paragraph is cached along with its actual text.
+     */
+    static private class ParagraphKey
+    {
+        /** The full text of the paragraph with color codes and newlines. */
+        public String text;
+
+        /** The width (in GUI coordinate system) to which the text is word wrapped. */
+        public int width;
+
+        /** True if the text is wrapped using the Unicode line breaking rules; see lineIterator(). */
+        public boolean unicodeBreaks;
+
+        /** Cached hash code computed by set() */
+        public int hash;
+
+        /**
+         * Change the paragraph identified by this key. Only the temporary lookupParagraphKey is ever changed after being created.
+         *
+         * @param text the full text of the paragraph
+         * @param width the width to which the text is word wrapped
+         * @param unicodeBreaks true if the text is wrapped using the Unicode line breaking rules
+         */
+        public void set(String text, int width, boolean unicodeBreaks)
+        {
+            this.text = text;
+            this.width = width;
+            this.unicodeBreaks = unicodeBreaks;
+            hash = (text.hashCode() * 31 + width) * 31 + (unicodeBreaks ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof ParagraphKey))
+            {
+                return false;
+            }
+
+            ParagraphKey other = (ParagraphKey) o;
+            return width == other.width && unicodeBreaks == other.unicodeBreaks && text.equals(other.text);
+        }
+    }
+
+    /**
+     * A block of text word wrapped to a fixed width, along with the cached Entry for each of its lines and its bounding box. Obtained
+     * from getParagraph() and drawn by renderParagraph(), which draws all lines in the same batch of vertices. Each line is cached
+     * as a separate string that starts with the format codes which were in effect at the start of the line, so every line can be
+     * layed out and rendered on its own.
+     */
+    static public class Paragraph
+    {
+        /** The key identifying this paragraph in the paragraphCache; also holds the original text and width. */
+        private ParagraphKey key;
+
+        /** The text of each line prefixed with the format codes in effect at its start; these are the strings that are cached. */
+        private String lines[];
+
+        /** The cached Entry of each string in lines[]. */
+        private Entry entries[];
+
+        /** The width of each line (in GUI coordinate system). */
+        private int lineWidths[];
+
+        /** The width of the widest line (in GUI coordinate system). */
+        private int width;
+
+        /** The value of StringCache.generation when this paragraph was layed out. */
+        private int generation;
+
+        /** @return the number of lines in this paragraph */
+        public int getLineCount()
+        {
+            return lines.length;
+        }
+
+        /**
+         * @param line index of the line
+         * @return the text of the line, prefixed with the color and style codes in effect at its start
+         */
+        public String getLine(int line)
+        {
+            return lines[line];
+        }
+
+        /**
+         * @param line index of the line
+         * @return the width of the line (in GUI coordinate system)
+         */
+        public int getLineWidth(int line)
+        {
+            return lineWidths[line];
+        }
+
+        /** @return the width of the bounding box (in GUI coordinate system); this is the width of the widest line */
+        public int getWidth()
+        {
+            return width;
+        }
+
+        /** @return the height of the bounding box (in GUI coordinate system) */
+        public int getHeight()
+        {
+            return lines.length * LINE_HEIGHT;
+        }
+    }
+
+    /**
+     * A single-line string prepared once with prepare() and then drawn any number of times with render(TextHandle, ...) without
+     * hashing or comparing the string against the string cache. This is meant for text drawn every frame, like button labels or
+     * HUD elements. The handle holds a strong reference to the string's cached Entry, including the vertex data built when it's
+     * first rendered, so it keeps working even after the string is evicted from the cache. If the font changes (or the cache is
+     * flushed for any other reason), the handle is layed out again the next time it's rendered. A retained handle is drawn from
+     * display lists instead; see prepare(String, boolean).
+     */
+    static public class TextHandle
+    {
+        /** The string drawn by this handle; it can contain color codes. */
+        private final String text;
+
+        /** The cached Entry for text, or null if text is empty. */
+        private Entry entry;
+
+        /** The width of the string (in GUI coordinate system). */
+        private int width;
+
+        /** The value of StringCache.generation when entry was looked up. */
+        private int generation;
+
+        /** If true, the handle is drawn from display lists compiled once instead of re-sending its vertices every frame. */
+        private final boolean retained;
+
+        /** The compiled Mesh of a retained handle, with and without the drop shadow flag; null until each is first rendered. */
+        private Mesh meshes[];
+
+        private TextHandle(String text, boolean retained)
+        {
+            this.text = text;
+            this.retained = retained;
+        }
+
+        /** @return the string drawn by this handle */
+        public String getText()
+        {
+            return text;
+        }
+
+        /** @return the width of the string (in GUI coordinate system) as of the last time the handle was prepared or rendered */
+        public int getWidth()
+        {
+            return width;
+        }
+    }
+
+    /**
+     * The vertices of a retained TextHandle compiled into an OpenGL display list, including the texture binds and the vertex colors.
+     * The display list is drawn at the string's origin, so the same Mesh can be rendered at any position. Each Mesh lives in the
+     * meshCache for as long as it has a display list.
+     */
+    static private class Mesh
+    {
+        /** The OpenGL display list holding the string's vertices, or zero if the Mesh was evicted or has not been compiled yet. */
+        public int displayList;
+
+        /** The initial color the display list was compiled with; a different color requires compiling the display list again. */
+        public int color;
+    }
+
+    /**
+     * A single StringCache object is allocated by Minecraft's FontRenderer which forwards all string drawing and requests for
+     * string width to this class.
+     *
+     * @param renderEngine needed for allocating new OpenGL textures
+     * @param colors 32 element array of RGBA colors corresponding to the 16 text color codes followed by 16 darker version of the
+     * color codes for use as drop shadows
+     */
+    public StringCache(int colors[])
+    {
+        /* StringCache is created by the main game thread; remember it for later thread safety checks */
+        mainThread = Thread.currentThread();
+
+        glyphCache = new GlyphCache();
+        colorTable = colors;
+
+        /* Pre-cache the ASCII digits to allow for fast glyph substitution */
+        cacheDightGlyphs();
+    }
+
+    /**
+     * Change the default font used to pre-render glyph images. If this method is called at runtime, the string cache is flushed so that
+     * all visible strings will be immediately re-layed out using the new font selection.
+     *
+     * @param fontName the new font name
+     * @param fontSize the new point size
+     */
+    public void setDefaultFont(String name, int size, boolean antiAlias)
+    {
+        /* Change the font in the glyph cache and clear the string cache so all strings have to be re-layed out and re-rendered */
+        glyphCache.setDefaultFont(name, size, antiAlias);
+        antiAliasEnabled = antiAlias;
+        clearCache();
+
+        /* Pre-cache the ASCII digits to allow for fast glyph substitution */
+        cacheDightGlyphs();
+    }
+
+    /**
+     * Select how layed out strings are cached. The bounded mode keeps the most recently used strings in a ClockCache limited
+     * by both the number of strings and their total estimated size. The weak mode is the original two layer WeakHashMap cache
+     * where strings remain cached for as long as Minecraft holds a reference to them (or until the next garbage collection).
+     * Changing the mode flushes the string cache.
+     *
+     * @param bounded true to select the bounded cache; false to select the weak reference cache
+     * @param maxEntries the maximum number of entries held by all the string caches together (see cacheShare())
+     * @param maxBytes the maximum total estimated size in bytes of all the string caches together; zero for no limit
+     */
+    public void setCacheMode(boolean bounded, int maxEntries, int maxBytes)
+    {
+        setCacheMode(bounded, false, maxEntries, maxBytes);
+    }
+
+    /**
+     * Select how layed out strings are cached, optionally keeping them outside of the Java heap. The off-heap mode stores every
+     * string in a LayoutArena (allocated in slabs of direct memory) whose size is bounded by the number of strings and by the
+     * total size of the slabs. It keeps large string caches from adding to the work of the garbage collector. Number templates
+     * are not used in the off-heap mode. Changing the mode flushes the string cache.
+     *
+     * @param bounded true to select the bounded cache; false to select the weak reference cache; ignored if offHeap is true
+     * @param offHeap true to select the off-heap arena
+     * @param maxEntries the maximum number of entries held by all the string caches together (see cacheShare())
+     * @param maxBytes the maximum total size in bytes of all the string caches together; zero for no limit
+     */
+    public void setCacheMode(boolean bounded, boolean offHeap, int maxEntries, int maxBytes)
+    {
+        /* Unlike maxBytes, every cache must be allowed at least one entry */
+        maxEntries = Math.max(maxEntries, 1);
+        int stringEntries = cacheShare(maxEntries, STRING_CACHE_SHARE);
+        int stringBytes = cacheShare(maxBytes, STRING_CACHE_SHARE);
+        arena = offHeap ? new LayoutArena(stringEntries, stringBytes) : null;
+        boundedCache = bounded ? new ClockCache(stringEntries, stringBytes) : null;
+        layoutCache = new ClockCache(cacheShare(maxEntries, LAYOUT_CACHE_SHARE), cacheShare(maxBytes, LAYOUT_CACHE_SHARE));
+        segmentCache = new ClockCache(cacheShare(maxEntries, SEGMENT_CACHE_SHARE), cacheShare(maxBytes, SEGMENT_CACHE_SHARE));
+        instanceCache = new ClockCache(cacheShare(maxEntries, INSTANCE_CACHE_SHARE), cacheShare(maxBytes, INSTANCE_CACHE_SHARE));
+        clearCache();
+
+        /* Pre-cache the ASCII digits to allow for fast glyph substitution */
+        cacheDightGlyphs();
+    }
+
+    /**
+     * Compute the part of a cache limit given to one of the string caches, so that cache.maxentries and cache.maxbytes bound all of
+     * them together. The strings themselves (boundedCache or the arena) get one half of each limit, the layoutCache shared by
+     * strings differing only in colors gets one quarter, and the segmentCache and instanceCache get one eighth each.
+     *
+     * @param limit the maxEntries or maxBytes passed to setCacheMode(); zero for no limit
+     * @param share the *_CACHE_SHARE constant of the cache, which divides the limit by that power of two
+     * @return the limit for that cache; never zero unless limit was zero
+     */
+    private static int cacheShare(int limit, int share)
+    {
+        return (limit <= 0) ? limit : Math.max(limit >> share, 1);
+    }
+
+    /**
+     * Enable or disable number templates (see numberTemplates). Changing this setting flushes the string cache. Number templates
+     * have no effect while the off-heap arena is selected with setCacheMode().
+     *
+     * @param enabled true if strings differing only in their numbers should share a single template layout
+     */
+    public void setNumberTemplates(boolean enabled)
+    {
+        numberTemplates = enabled;
+        clearCache();
+    }
+
+    /**
+     * Set the maximum number of display lists compiled for retained handles (see prepare(String, boolean)). Every retained handle
+     * needs one display list, or two if it's also drawn as a drop shadow. Zero disables the display lists altogether, in which case
+     * retained handles are drawn the same as any other TextHandle. Changing the size deletes all the current display lists.
+     *
+     * @param maxMeshes the maximum number of display lists kept at the same time
+     */
+    public void setMeshCacheSize(int maxMeshes)
+    {
+        if(meshCache != null)
+        {
+            meshCache.clear();
+        }
+        meshCache = (maxMeshes > 0) ? createMeshCache(maxMeshes) : null;
+    }
+
+    /**
+     * Create a new meshCache which deletes the display list of every Mesh removed from it.
+     *
+     * @param maxMeshes the maximum number of display lists kept at the same time
+     * @return the new cache
+     */
+    private static ClockCache<Mesh, Mesh> createMeshCache(int maxMeshes)
+    {
+        return new ClockCache<Mesh, Mesh>(maxMeshes, 0)
+        {
+            protected void removed(Mesh key, Mesh mesh)
+            {
+                GL11.glDeleteLists(mesh.displayList, 1);
+                mesh.displayList = 0;
+            }
+        };
+    }
+
+    /** Remove every string from all of the string caches so they will have to be layed out again. */
+    private void clearCache()
+    {
+        if(boundedCache != null)
+        {
+            boundedCache.clear();
+        }
+        weakRefCache.clear();
+        stringCache.clear();
+        layoutCache.clear();
+        segmentCache.clear();
+        instanceCache.clear();
+        paragraphCache.clear();
+        lastLayoutKey = null;
+        lastLayout = null;
+        resumeIndex = -1;
+        Arrays.fill(identityStrings, null);
+        Arrays.fill(identityEntries, null);
+        Arrays.fill(identityNodes, null);
+
+        /* The arena keeps its slabs for re-use; the glyph table is cleared since the font (and all glyph images) may have changed */
+        if(arena != null)
+        {
+            arena.clear();
+        }
+        glyphIds.clear();
+        Arrays.fill(glyphFonts, null);
+        Arrays.fill(glyphTextures, null);
+        glyphTableSize = 0;
+        arenaFonts.clear();
+        arenaFontIds.clear();
+
+        /* The display lists refer to glyph images and digit glyphs of the old font; retained handles compile them again when rendered */
+        if(meshCache != null)
+        {
+            meshCache.clear();
+        }
+        generation++;
+    }
+
+    /** @return the current generation of the string cache; it changes every time the caches are flushed (i.e. by a font change) */
+    int getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Select the blending used by beginRender() for drawing into a TextPanel's offscreen texture.
+     *
+     * @param enabled true while a TextPanel draws into its texture
+     */
+    void setOffscreenRender(boolean enabled)
+    {
+        offscreenRender = enabled;
+    }
+
+    /** @return the number of times a string was found already layed out in the cache */
+    public long getCacheHits()
+    {
+        return cacheHits;
+    }
+
+    /** @return the number of times a string had to be layed out because it was not in the cache */
+    public long getCacheMisses()
+    {
+        return cacheMisses;
+    }
+
+    /** @return the number of strings evicted from the bounded cache or the arena to make room for new ones; always zero for the weak cache */
+    public long getCacheEvictions()
+    {
+        if(arena != null)
+        {
+            return arena.getEvictions();
+        }
+        return boundedCache != null ? boundedCache.getEvictions() : 0;
+    }
+
+    /**
+     * Pre-cache the ASCII digits to allow for fast glyph substitution. Called once from the constructor and called any time the font selection
      * changes at runtime via setDefaultFont().
      */
-    private void cacheDightGlyphs()
+    private void cacheDightGlyphs()
+    {
+        /* Need to cache each font style combination; the digitGlyphsReady = false disabled the normal glyph substitution mechanism */
+        digitGlyphsReady = false;
+        rasterizeGlyphs = true;
+        digitGlyphs[Font.PLAIN] = cacheString("0123456789").layout;
+        digitGlyphs[Font.BOLD] = cacheString("\u00A7l0123456789").layout;
+        digitGlyphs[Font.ITALIC] = cacheString("\u00A7o0123456789").layout;
+        digitGlyphs[Font.BOLD | Font.ITALIC] = cacheString("\u00A7l\u00A7o0123456789").layout;
+        rasterizeGlyphs = false;
+
+        /* The layouts above only have the distances between glyph images, so get the pen advance of '0' by itself */
+        char zero[] = {'0'};
+        for(int style = 0; style < digitGlyphs.length; style++)
+        {
+            GlyphVector vector = glyphCache.layoutGlyphVector(digitGlyphs[style].font[0], zero, 0, 1, Font.LAYOUT_LEFT_TO_RIGHT);
+            zeroAdvance[style] = (int) vector.getGlyphPosition(1).getX();
+        }
+        digitGlyphsReady = true;
+    }
+
+    /**
+     * Render a single-line string to the screen using the current OpenGL color. The (x,y) coordinates are of the uppet-left
+     * corner of the string's bounding box, rather than the baseline position as is typical with fonts. This function will also
+     * add the string to the cache so the next renderString() call with the same string is faster.
+     *
+     * @param str the string being rendered; it can contain color codes
+     * @param x the x coordinate to draw at
+     * @param y the y coordinate to draw at
+     * @param color the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     * @return the total advance (horizontal distance) of this string
+     *
+     * @todo Add optional NumericShaper to replace ASCII digits with locale specific ones
+     * @todo Add support for the "k" code which randomly replaces letters on each render (used only by splash screen)
+     * @todo Pre-sort by texture to minimize binds; can store colors per glyph in string cache
+     * @todo Optimize the underline/strikethrough drawing to draw a single line for each run
+     */
+    public int renderString(String str, int startX, int startY, int initialColor, boolean shadowFlag)
+    {
+        /* Check for invalid arguments */
+        if(str == null || str.isEmpty())
+        {
+            return 0;
+        }
+
+        /* With the off-heap arena, the string is drawn straight from its record */
+        if(arena != null && mainThread == Thread.currentThread())
+        {
+            return renderRecord(str, startX, startY, initialColor, shadowFlag);
+        }
+
+        /* Make sure the entire string is cached before rendering and return its glyph representation */
+        rasterizeGlyphs = true;
+        Entry entry = cacheString(str);
+        rasterizeGlyphs = false;
+
+        return renderEntry(entry, str, startX, startY, initialColor, shadowFlag);
+    }
+
+    /**
+     * Look up a string once so it can be drawn repeatedly with render(TextHandle, ...) without any further cache lookups. The
+     * glyph images are only pre-rendered when the handle is first drawn, so a handle can also be prepared just for its width.
+     *
+     * @param str the string to prepare; it can contain color codes
+     * @return a new TextHandle for the string
+     */
+    public TextHandle prepare(String str)
+    {
+        return prepare(str, false);
+    }
+
+    /**
+     * Look up a string once so it can be drawn repeatedly with render(TextHandle, ...). A retained handle goes one step further: the
+     * first time it's rendered, its vertices are compiled into an OpenGL display list so that every later frame only has to call
+     * that display list. This suits text which stays the same for many frames (i.e. menu labels, sign text or scoreboard headers)
+     * and is drawn with the same color every time; changing the color means compiling the display list again.
+     *
+     * @param str the string to prepare; it can contain color codes
+     * @param retained true to draw the handle from a display list compiled on its first render
+     * @return a new TextHandle for the string
+     */
+    public TextHandle prepare(String str, boolean retained)
+    {
+        TextHandle handle = new TextHandle((str != null) ? str : "", retained);
+        layoutHandle(handle);
+
+        /* Just like in getParagraph(), a handle prepared by another thread has to be looked up again once it's rendered */
+        if(mainThread != Thread.currentThread())
+        {
+            handle.generation = generation - 1;
+        }
+
+        return handle;
+    }
+
+    /**
+     * Render a string previously prepared with prepare(). This is the same as renderString() but without the cache lookup, unless
+     * the string cache was flushed (i.e. because of a font change) since the handle was last prepared or rendered.
+     *
+     * @param handle the TextHandle returned by prepare()
+     * @param x the x coordinate to draw at
+     * @param y the y coordinate to draw at
+     * @param initialColor the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     * @return the total advance (horizontal distance) of the string
+     */
+    public int render(TextHandle handle, int x, int y, int initialColor, boolean shadowFlag)
+    {
+        /* Cheap check for a font change; the glyph images are pre-rendered right away since the string is about to be drawn */
+        if(handle.generation != generation)
+        {
+            rasterizeGlyphs = true;
+            layoutHandle(handle);
+            rasterizeGlyphs = false;
+        }
+
+        if(handle.entry == null)
+        {
+            return 0;
+        }
+
+        if(handle.retained && meshCache != null)
+        {
+            return renderMesh(handle, x, y, initialColor, shadowFlag);
+        }
+
+        return renderEntry(handle.entry, handle.text, x, y, initialColor, shadowFlag);
+    }
+
+    /**
+     * Draw a retained TextHandle by calling its display list, compiling the display list first if the handle has never been drawn
+     * with this shadowFlag, if its Mesh was evicted from the meshCache, or if the initialColor changed since it was compiled.
+     *
+     * @param handle the retained TextHandle; its entry must not be null
+     * @param x the x coordinate to draw at
+     * @param y the y coordinate to draw at
+     * @param initialColor the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     * @return the total advance (horizontal distance) of the string
+     */
+    private int renderMesh(TextHandle handle, int x, int y, int initialColor, boolean shadowFlag)
+    {
+        Entry entry = handle.entry;
+        if(handle.meshes == null)
+        {
+            handle.meshes = new Mesh[2];
+        }
+
+        Mesh mesh = handle.meshes[shadowFlag ? 1 : 0];
+        if(mesh == null)
+        {
+            mesh = handle.meshes[shadowFlag ? 1 : 0] = new Mesh();
+        }
+
+        if(mesh.displayList == 0 || mesh.color != initialColor)
+        {
+            /* Uploading glyph images can't be part of a display list, so the glyphs have to be pre-rendered before compiling it */
+            if(entry.layout.runs != null)
+            {
+                rasterizeLayout(entry.layout);
+            }
+
+            if(mesh.displayList == 0)
+            {
+                /* Fall back on drawing the vertices directly if OpenGL runs out of display lists */
+                int displayList = GL11.glGenLists(1);
+                if(displayList == 0)
+                {
+                    return renderEntry(entry, handle.text, x, y, initialColor, shadowFlag);
+                }
+
+                mesh.displayList = displayList;
+                meshCache.put(mesh, mesh, 1);
+            }
+
+            /* The display list is compiled at the string's origin and moved into place with the modelview matrix */
+            mesh.color = initialColor;
+            GL11.glNewList(mesh.displayList, GL11.GL_COMPILE);
+            drawEntry(entry, handle.text, 0, BASELINE_OFFSET, initialColor, shadowFlag);
+            GL11.glEndList();
+        }
+        else
+        {
+            /* Only marks the Mesh as recently used */
+            meshCache.get(mesh);
+        }
+
+        /* The GL color and blending state is not part of the display list, since other text may change it between frames */
+        beginRender(initialColor);
+
+        GL11.glPushMatrix();
+        GL11.glTranslatef(x, y, 0);
+        GL11.glCallList(mesh.displayList);
+        GL11.glPopMatrix();
+
+        return entry.layout.advance / 2;
+    }
+
+    /**
+     * Look up (or layout) the string of a TextHandle and remember its Entry and width in the handle.
+     *
+     * @param handle the TextHandle to update
+     */
+    private void layoutHandle(TextHandle handle)
+    {
+        handle.entry = handle.text.isEmpty() ? null : cacheString(handle.text);
+        handle.width = (handle.entry != null) ? handle.entry.layout.advance / 2 : 0;
+        handle.generation = generation;
+    }
+
+    /**
+     * Draw the cached Entry of a single-line string; shared by renderString() and render(TextHandle, ...).
+     *
+     * @param entry the cached Entry for str
+     * @param str the string being rendered
+     * @param startX the x coordinate to draw at
+     * @param startY the y coordinate to draw at
+     * @param initialColor the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     * @return the total advance (horizontal distance) of the string
+     */
+    private int renderEntry(Entry entry, String str, int startX, int startY, int initialColor, boolean shadowFlag)
+    {
+        /* If the string was only measured until now, pre-render all of its missing glyph images */
+        if(entry.layout.runs != null)
+        {
+            rasterizeLayout(entry.layout);
+        }
+
+        /* Adjust the baseline of the string because the startY coordinate in Minecraft is for the top of the string */
+        startY += BASELINE_OFFSET;
+
+        /* Set the current GL color and blending state */
+        beginRender(initialColor);
+
+        drawEntry(entry, str, startX, startY, initialColor, shadowFlag);
+
+        /* Return total horizontal advance (slightly wider than the bounding box, but close enough for centering strings) */
+        return entry.layout.advance / 2;
+    }
+
+    /**
+     * Send the vertices of a cached single-line string to OpenGL, either to draw them right away or to compile them into the
+     * display list of a retained TextHandle. The string's glyph images must already be pre-rendered.
+     *
+     * @param entry the cached Entry for str
+     * @param str the string being rendered
+     * @param startX the x coordinate of the string
+     * @param startY the y coordinate of the string's baseline
+     * @param initialColor the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     */
+    private void drawEntry(Entry entry, String str, int startX, int startY, int initialColor, boolean shadowFlag)
+    {
+        /* Using the Tessellator to queue up data in a vertex array and then draw all at once should be faster than immediate mode */
+        Tessellator tessellator = Tessellator.instance;
+        tessellator.startDrawingQuads();
+        renderGlyphs(tessellator, entry, str, startX, startY, initialColor, shadowFlag, 0);
+
+        /* Draw any remaining glyphs in the Tessellator's vertex array (there should be at least one glyph pending) */
+        tessellator.draw();
+
+        /* Draw strikethrough and underlines if the string uses them anywhere */
+        if(entry.specialRender)
+        {
+            /* Disable texturing to draw solid color lines */
+            GL11.glDisable(GL11.GL_TEXTURE_2D);
+            tessellator.startDrawingQuads();
+            renderStyleLines(tessellator, entry, startX, startY, initialColor, shadowFlag);
+
+            /* Finish drawing the last strikethrough/underline segments */
+            tessellator.draw();
+            GL11.glEnable(GL11.GL_TEXTURE_2D);
+        }
+    }
+
+    /**
+     * Return a paragraph of text word wrapped to the specified width, with all of its lines layed out and cached. The paragraph is
+     * cached as a single unit, so a GUI that draws the same block of text every frame (i.e. a book page or a sign) only needs one
+     * cache lookup instead of one for every line. Newlines in the text always start a new line.
+     *
+     * @param text the text of the paragraph; it can contain color codes and newlines
+     * @param width the maximum width of each line (in GUI coordinate system)
+     * @param unicodeBreaks if true, the lines are broken using the Unicode line breaking rules; see lineIterator()
+     * @return the cached Paragraph
+     */
+    public Paragraph getParagraph(String text, int width, boolean unicodeBreaks)
+    {
+        if(text == null)
+        {
+            text = "";
+        }
+
+        /* Don't perform a cache lookup from other threads because the paragraphCache is not synchronized */
+        boolean onMainThread = (mainThread == Thread.currentThread());
+        if(onMainThread)
+        {
+            lookupParagraphKey.set(text, width, unicodeBreaks);
+            Paragraph paragraph = paragraphCache.get(lookupParagraphKey);
+            lookupParagraphKey.text = null;
+
+            if(paragraph != null)
+            {
+                return paragraph;
+            }
+        }
+
+        Paragraph paragraph = new Paragraph();
+        paragraph.key = new ParagraphKey();
+        paragraph.key.set(text, width, unicodeBreaks);
+        layoutParagraph(paragraph);
+
+        /* A paragraph created by another thread has no pre-rendered glyph images; it will be layed out again when first rendered */
+        if(onMainThread)
+        {
+            paragraphCache.put(paragraph.key, paragraph, estimateSize(paragraph));
+        }
+        else
+        {
+            paragraph.generation = generation - 1;
+        }
+
+        return paragraph;
+    }
+
+    /**
+     * Remove a paragraph from the paragraphCache, for example because the sign or book page it was created for has been edited. If
+     * the Paragraph object is still rendered, it will be word wrapped and layed out again first.
+     *
+     * @param paragraph the Paragraph previously returned by getParagraph()
+     */
+    public void invalidateParagraph(Paragraph paragraph)
+    {
+        paragraphCache.remove(paragraph.key);
+        paragraph.generation = generation - 1;
+    }
+
+    /**
+     * Render every line of a paragraph in a single batch of vertices, so the texture binds and Tessellator draws are shared by all
+     * the lines. Lines are placed LINE_HEIGHT apart. All the lines start at the same x coordinate.
+     *
+     * @param paragraph the Paragraph previously returned by getParagraph()
+     * @param x the x coordinate of the upper-left corner of the paragraph's bounding box
+     * @param y the y coordinate of the upper-left corner of the paragraph's bounding box
+     * @param initialColor the initial RGBA color to use when drawing the paragraph; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     * @return the width of the paragraph's bounding box
+     */
+    public int renderParagraph(Paragraph paragraph, int x, int y, int initialColor, boolean shadowFlag)
+    {
+        /* Word wrap the text again if the font changed (or the paragraph was invalidated) since the paragraph was layed out */
+        if(paragraph.generation != generation)
+        {
+            layoutParagraph(paragraph);
+
+            /*
+             * Cache the paragraph again so getParagraph() finds it next time, unless a newer Paragraph for the same text was cached in
+             * the meantime (i.e. by getParagraph() after this one was invalidated, or while this one was created on another thread)
+             */
+            if(mainThread == Thread.currentThread() && paragraphCache.get(paragraph.key) == null)
+            {
+                paragraphCache.put(paragraph.key, paragraph, estimateSize(paragraph));
+            }
+        }
+
+        /* Pre-render all missing glyph images of lines that were only measured until now */
+        boolean specialRender = false;
+        for(Entry entry : paragraph.entries)
+        {
+            if(entry.layout.runs != null)
+            {
+                rasterizeLayout(entry.layout);
+            }
+            specialRender |= entry.specialRender;
+        }
+
+        /* Adjust the baseline of the first line because the y coordinate in Minecraft is for the top of the string */
+        y += BASELINE_OFFSET;
+
+        /* Set the current GL color and blending state */
+        beginRender(initialColor);
+
+        /* All lines share the same vertex array; it's only drawn when a different texture has to be bound */
+        Tessellator tessellator = Tessellator.instance;
+        tessellator.startDrawingQuads();
+        int boundTextureName = 0;
+        for(int line = 0; line < paragraph.lines.length; line++)
+        {
+            boundTextureName = renderGlyphs(tessellator, paragraph.entries[line], paragraph.lines[line], x, y + line * LINE_HEIGHT,
+                initialColor, shadowFlag, boundTextureName);
+        }
+        tessellator.draw();
+
+        /* Draw strikethrough and underlines for all lines at once if any line uses them */
+        if(specialRender)
+        {
+            GL11.glDisable(GL11.GL_TEXTURE_2D);
+            tessellator.startDrawingQuads();
+            for(int line = 0; line < paragraph.lines.length; line++)
+            {
+                if(paragraph.entries[line].specialRender)
+                {
+                    renderStyleLines(tessellator, paragraph.entries[line], x, y + line * LINE_HEIGHT, initialColor, shadowFlag);
+                }
+            }
+            tessellator.draw();
+            GL11.glEnable(GL11.GL_TEXTURE_2D);
+        }
+
+        return paragraph.width;
+    }
+
+    /**
+     * Word wrap the text of a paragraph and cache each of its lines. Every line is cached as a separate string which starts with the
+     * format codes in effect at the start of that line.
+     *
+     * @param paragraph the Paragraph to fill in
+     */
+    private void layoutParagraph(Paragraph paragraph)
+    {
+        String text = paragraph.key.text;
+        List<String> lines = new ArrayList();
+
+        LineIterator iterator = lineIterator(text, paragraph.key.width, paragraph.key.unicodeBreaks);
+        while(iterator.next())
+        {
+            lines.add(iterator.getFormat() + text.substring(iterator.getStart(), iterator.getEnd()));
+        }
+
+        paragraph.lines = lines.toArray(new String[lines.size()]);
+        paragraph.entries = new Entry[lines.size()];
+        paragraph.lineWidths = new int[lines.size()];
+        paragraph.width = 0;
+
+        for(int line = 0; line < paragraph.lines.length; line++)
+        {
+            Entry entry = cacheString(paragraph.lines[line]);
+            paragraph.entries[line] = entry;
+            paragraph.lineWidths[line] = entry.layout.advance / 2;
+            paragraph.width = Math.max(paragraph.width, paragraph.lineWidths[line]);
+        }
+
+        paragraph.generation = generation;
+    }
+
+    /**
+     * Set up the OpenGL state shared by all the strings rendered with renderString() or renderParagraph().
+     *
+     * @param color the initial RGBA color used when drawing the strings
+     */
+    private void beginRender(int color)
+    {
+        /*
+         * This color change will have no effect on the actual text (since colors are included in the Tessellator vertex
+         * array), however GuiEditSign of all things depends on having the current color set to white when it renders its
+         * "Edit sign message:" text. Otherwise, the sign which is rendered underneath would look too dark.
+         */
+        GL11.glColor3f(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff);
+
+        /*
+         * Enable GL_BLEND in case the font is drawn anti-aliased because Minecraft itself only enables blending for chat text
+         * (so it can fade out), but not GUI text or signs. Minecraft uses multiple blend functions so it has to be specified here
+         * as well for consistent blending. To reduce the overhead of OpenGL state changes and making native LWJGL calls, this
+         * function doesn't try to save/restore the blending state. Hopefully everything else that depends on blending in Minecraft
+         * will set its own state as needed.
+         */
+        if(offscreenRender)
+        {
+            /*
+             * Even glyphs that aren't anti-aliased must be blended, since their transparent pixels would otherwise erase the
+             * overlapping glyphs and drop shadows already drawn into the panel. The colors end up premultiplied by their alpha.
+             */
+            GL11.glEnable(GL11.GL_BLEND);
+            GL14.glBlendFuncSeparate(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA, GL11.GL_ONE, GL11.GL_ONE_MINUS_SRC_ALPHA);
+        }
+        else if(antiAliasEnabled)
+        {
+            GL11.glEnable(GL11.GL_BLEND);
+            GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+        }
+    }
+
+    /**
+     * Add the textured quads for every glyph of a cached string to the Tessellator's vertex array, which must already be started with
+     * startDrawingQuads(). The pending vertices are drawn and a new vertex array is started every time a different texture has to be
+     * bound. The string's glyph images must already be pre-rendered.
+     *
+     * @param tessellator the Tessellator instance collecting the vertices
+     * @param entry the cached Entry for str
+     * @param str the string being rendered; needed to substitute the actual ASCII digits
+     * @param startX the x coordinate of the string
+     * @param startY the y coordinate of the string's baseline
+     * @param initialColor the initial RGBA color of the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     * @param boundTextureName the texture currently bound by a previous string in the same batch, or zero if none
+     * @return the texture bound after rendering this string
+     */
+    private int renderGlyphs(Tessellator tessellator, Entry entry, String str, int startX, int startY, int initialColor, boolean shadowFlag,
+        int boundTextureName)
+    {
+        /* The vertex data is only derived from the glyphs and color codes the first time a string is rendered */
+        if(entry.quadColors == null)
+        {
+            buildQuads(entry, str);
+        }
+
+        /* The quads may be shared with other strings that only differ in their color codes */
+        Layout layout = entry.layout;
+        float quads[] = layout.quads;
+        int quadTexture[] = layout.quadTexture;
+        byte quadColors[] = entry.quadColors;
+
+        /* The next quad that needs its digit replaced, and its position in the digits[] array */
+        int digits[] = entry.digits;
+        int digit = 0, digitQuad = (digits != null) ? digits[0] : -1;
+
+        /* Color currently selected by color code; reapplied to Tessellator instance after glBindTexture() */
+        int color = initialColor, colorCode = -1;
+        tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+
+        /* All the quads are relative to the string's origin, so the whole string is moved into place by the Tessellator */
+        tessellator.addTranslation(startX, startY, 0);
+
+        for(int quad = 0, offset = 0; quad < layout.quadCount; quad++, offset += 8)
+        {
+            /*
+             * Change the current GL color that gets added to the vertex array wherever a color code changes the color. Note that
+             * only the RGB component of the color is replaced by a color code; the alpha component of the original color passed
+             * into this function will remain.
+             */
+            if(quadColors[quad] != colorCode)
+            {
+                colorCode = quadColors[quad];
+                color = applyColorCode(colorCode, initialColor, shadowFlag);
+            }
+
+            /* Replace ASCII digits in the string with their respective glyphs; strings differing by digits are only cached once */
+            float vertices[] = quads;
+            int vertex = offset, textureName = quadTexture[quad];
+            if(quad == digitQuad)
+            {
+                int slot = digits[digit + 1], glyphIndex = layout.quadGlyph[quad];
+                textureName = substituteDigit(str.charAt(slot >> 2), slot & 3, layout.texture[glyphIndex], layout.x[glyphIndex],
+                    layout.y[glyphIndex], glyphQuad);
+                vertices = glyphQuad;
+                vertex = 0;
+
+                digit += 2;
+                digitQuad = (digit < digits.length) ? digits[digit] : -1;
+            }
+
+            float x1 = vertices[vertex], y1 = vertices[vertex + 1], x2 = vertices[vertex + 2], y2 = vertices[vertex + 3];
+            float u1 = vertices[vertex + 4], v1 = vertices[vertex + 5], u2 = vertices[vertex + 6], v2 = vertices[vertex + 7];
+
+            /*
+             * Make sure the OpenGL texture storing this glyph's image is bound (if not already bound). All pending glyphs in the
+             * Tessellator's vertex array must be drawn before switching textures, otherwise they would erroneously use the new
+             * texture as well.
+             */
+            if(boundTextureName != textureName)
+            {
+                tessellator.draw();
+                tessellator.startDrawingQuads();
+                tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureName);
+                boundTextureName = textureName;
+            }
+
+            tessellator.addVertexWithUV(x1, y1, 0, u1, v1);
+            tessellator.addVertexWithUV(x1, y2, 0, u1, v2);
+            tessellator.addVertexWithUV(x2, y2, 0, u2, v2);
+            tessellator.addVertexWithUV(x2, y1, 0, u2, v1);
+        }
+
+        tessellator.addTranslation(-startX, -startY, 0);
+        return boundTextureName;
+    }
+
+    /**
+     * Build the ready-made vertex data used by renderGlyphs(). The quads of the Layout are shared by every Entry using it, so they
+     * are only built once; the color code of each quad and the digit slots are built for the Entry. This must only be called once
+     * all the glyph images of the Layout have been pre-rendered.
+     *
+     * @param entry the cached Entry being rendered for the first time
+     * @param str the string being rendered; needed to find the ASCII digits which renderGlyphs() replaces on every render
+     */
+    private static void buildQuads(Entry entry, String str)
+    {
+        Layout layout = entry.layout;
+        if(layout.quads == null)
+        {
+            /* Glyphs such as spaces have an empty image and would only add invisible quads; a digit placeholder is never empty */
+            int quadCount = 0;
+            for(int glyphIndex = 0; glyphIndex < layout.glyphCount; glyphIndex++)
+            {
+                GlyphCache.Entry texture = layout.texture[glyphIndex];
+                if(texture.width > 0 && texture.height > 0)
+                {
+                    quadCount++;
+                }
+            }
+
+            float quads[] = new float[quadCount * 8];
+            int quadGlyph[] = new int[quadCount];
+            int quadTexture[] = new int[quadCount];
+            for(int glyphIndex = 0, quad = 0; glyphIndex < layout.glyphCount; glyphIndex++)
+            {
+                GlyphCache.Entry texture = layout.texture[glyphIndex];
+                if(texture.width > 0 && texture.height > 0)
+                {
+                    quadGlyph[quad] = glyphIndex;
+                    quadTexture[quad] = setQuad(quads, quad * 8, texture, layout.x[glyphIndex], layout.y[glyphIndex]);
+                    quad++;
+                }
+            }
+
+            layout.quadGlyph = quadGlyph;
+            layout.quadTexture = quadTexture;
+            layout.quadCount = quadCount;
+            layout.quads = quads;
+        }
+
+        int colors[] = entry.colors, colorCount = ColorCode.count(colors);
+        byte quadColors[] = new byte[layout.quadCount];
+        int digits[] = null, digitCount = 0;
+        int colorCode = -1, fontStyle = Font.PLAIN;
+
+        for(int quad = 0, colorIndex = 0; quad < layout.quadCount; quad++)
+        {
+            /* Only the last of several consecutive color codes takes effect */
+            int stringIndex = layout.stringIndex[layout.quadGlyph[quad]];
+            while(colorIndex < colorCount && stringIndex >= ColorCode.stripIndex(colors, colorIndex))
+            {
+                colorCode = ColorCode.colorCode(colors, colorIndex);
+                fontStyle = ColorCode.fontStyle(colors, colorIndex);
+                colorIndex++;
+            }
+            quadColors[quad] = (byte) colorCode;
+
+            /* Each of the color codes preceding this glyph takes up two characters in the original string */
+            int index = stringIndex + 2 * colorIndex;
+            char c = str.charAt(index);
+            if(c >= '0' && c <= '9')
+            {
+                if(digits == null || digitCount == digits.length)
+                {
+                    digits = (digits == null) ? new int[8] : Arrays.copyOf(digits, digitCount * 2);
+                }
+                digits[digitCount++] = quad;
+                digits[digitCount++] = (index << 2) | fontStyle;
+            }
+        }
+
+        entry.digits = (digits == null || digitCount == digits.length) ? digits : Arrays.copyOf(digits, digitCount);
+        entry.quadColors = quadColors;
+    }
+
+    /**
+     * Pass the quads of a single-line string to a WorldText instead of drawing them, so they can be placed in the world and drawn
+     * together with the quads of every other string using the same texture. This produces the same quads as renderGlyphs() and
+     * renderStyleLines(), relative to the top left corner of the string. The strikethrough and underline segments are passed
+     * with a texture name of zero.
+     *
+     * @param batch the WorldText collecting the quads of the current frame
+     * @param str the string to add; it can contain color codes
+     * @param initialColor the initial RGBA color of the string; embedded color codes can override the RGB component
+     * @param centered if true, the quads are moved left by half the width of the string
+     */
+    void batchWorldString(WorldText batch, String str, int initialColor, boolean centered)
+    {
+        /* Make sure the entire string is cached and all its glyph images are pre-rendered before adding its quads */
+        rasterizeGlyphs = true;
+        Entry entry = cacheString(str);
+        rasterizeGlyphs = false;
+
+        if(entry.layout.runs != null)
+        {
+            rasterizeLayout(entry.layout);
+        }
+        if(entry.quadColors == null)
+        {
+            buildQuads(entry, str);
+        }
+
+        Layout layout = entry.layout;
+        float quads[] = layout.quads;
+        int quadTexture[] = layout.quadTexture;
+        byte quadColors[] = entry.quadColors;
+        int digits[] = entry.digits;
+        int digit = 0, digitQuad = (digits != null) ? digits[0] : -1;
+        int color = initialColor, colorCode = -1;
+
+        /* Centered the same way as sign text and nameplates in Minecraft, which use half of the string's width rounded down */
+        float startX = centered ? -(layout.advance / 2 / 2) : 0;
+        float startY = BASELINE_OFFSET;
+
+        for(int quad = 0, offset = 0; quad < layout.quadCount; quad++, offset += 8)
+        {
+            if(quadColors[quad] != colorCode)
+            {
+                colorCode = quadColors[quad];
+                color = colorForCode(colorCode, initialColor, false);
+            }
+
+            /* Replace ASCII digits the same way as renderGlyphs() */
+            float vertices[] = quads;
+            int vertex = offset, textureName = quadTexture[quad];
+            if(quad == digitQuad)
+            {
+                int slot = digits[digit + 1], glyphIndex = layout.quadGlyph[quad];
+                textureName = substituteDigit(str.charAt(slot >> 2), slot & 3, layout.texture[glyphIndex], layout.x[glyphIndex],
+                    layout.y[glyphIndex], glyphQuad);
+                vertices = glyphQuad;
+                vertex = 0;
+
+                digit += 2;
+                digitQuad = (digit < digits.length) ? digits[digit] : -1;
+            }
+
+            batch.addQuad(textureName, color, startX + vertices[vertex], startY + vertices[vertex + 1], startX + vertices[vertex + 2],
+                startY + vertices[vertex + 3], vertices[vertex + 4], vertices[vertex + 5], vertices[vertex + 6], vertices[vertex + 7]);
+        }
+
+        if(!entry.specialRender)
+        {
+            return;
+        }
+
+        /* Same segments as renderStyleLines() */
+        int colors[] = entry.colors, colorCount = ColorCode.count(colors);
+        int renderStyle = 0;
+        color = initialColor;
+
+        for(int glyphIndex = 0, colorIndex = 0; glyphIndex < layout.glyphCount; glyphIndex++)
+        {
+            while(colorIndex < colorCount && layout.stringIndex[glyphIndex] >= ColorCode.stripIndex(colors, colorIndex))
+            {
+                colorCode = ColorCode.colorCode(colors, colorIndex);
+                color = colorForCode(colorCode, initialColor, false);
+                renderStyle = ColorCode.renderStyle(colors, colorIndex);
+                colorIndex++;
+            }
+
+            int glyphX = layout.x[glyphIndex], glyphAdvance = layout.advances[glyphIndex];
+            int glyphSpace = glyphAdvance - layout.texture[glyphIndex].width;
+            float x1 = startX + (glyphX - glyphSpace) / 2.0F;
+            float x2 = startX + (glyphX + glyphAdvance) / 2.0F;
+
+            if((renderStyle & ColorCode.UNDERLINE) != 0)
+            {
+                batch.addQuad(0, color, x1, startY + (UNDERLINE_OFFSET) / 2.0F, x2, startY + (UNDERLINE_OFFSET + UNDERLINE_THICKNESS) / 2.0F,
+                    0, 0, 0, 0);
+            }
+            if((renderStyle & ColorCode.STRIKETHROUGH) != 0)
+            {
+                batch.addQuad(0, color, x1, startY + (STRIKETHROUGH_OFFSET) / 2.0F, x2,
+                    startY + (STRIKETHROUGH_OFFSET + STRIKETHROUGH_THICKNESS) / 2.0F, 0, 0, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Add the untextured quads for the strikethrough and underline segments of a cached string to the Tessellator's vertex array,
+     * which must already be started with startDrawingQuads() while texturing is disabled.
+     *
+     * @param tessellator the Tessellator instance collecting the vertices
+     * @param entry the cached Entry for the string
+     * @param startX the x coordinate of the string
+     * @param startY the y coordinate of the string's baseline
+     * @param initialColor the initial RGBA color of the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     */
+    private void renderStyleLines(Tessellator tessellator, Entry entry, int startX, int startY, int initialColor, boolean shadowFlag)
+    {
+        Layout layout = entry.layout;
+        int colors[] = entry.colors, colorCount = ColorCode.count(colors);
+        int renderStyle = 0;
+
+        /* Use initial color passed to renderString() */
+        int color = initialColor;
+        tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+
+        for(int glyphIndex = 0, colorIndex = 0; glyphIndex < layout.glyphCount; glyphIndex++)
+        {
+            /*
+             * If the original string had a color code at this glyph's position, then change the current GL color that gets added
+             * to the vertex array. The while loop handles multiple consecutive color codes, in which case only the last such
+             * color code takes effect.
+             */
+            while(colorIndex < colorCount && layout.stringIndex[glyphIndex] >= ColorCode.stripIndex(colors, colorIndex))
+            {
+                color = applyColorCode(ColorCode.colorCode(colors, colorIndex), initialColor, shadowFlag);
+                renderStyle = ColorCode.renderStyle(colors, colorIndex);
+                colorIndex++;
+            }
+
+            /* Select the current glyph within this string for its layout position */
+            int glyphX = layout.x[glyphIndex], glyphAdvance = layout.advances[glyphIndex];
+
+            /* The strike/underlines are drawn beyond the glyph's width to include the extra space between glyphs */
+            int glyphSpace = glyphAdvance - layout.texture[glyphIndex].width;
+
+            /* Draw underline under glyph if the style is enabled */
+            if((renderStyle & ColorCode.UNDERLINE) != 0)
+            {
+                /* The divide by 2.0F is needed to align with the scaled GUI coordinate system; startX/startY are already scaled */
+                float x1 = startX + (glyphX - glyphSpace) / 2.0F;
+                float x2 = startX + (glyphX + glyphAdvance) / 2.0F;
+                float y1 = startY + (UNDERLINE_OFFSET) / 2.0F;
+                float y2 = startY + (UNDERLINE_OFFSET + UNDERLINE_THICKNESS) / 2.0F;
+
+                tessellator.addVertex(x1, y1, 0);
+                tessellator.addVertex(x1, y2, 0);
+                tessellator.addVertex(x2, y2, 0);
+                tessellator.addVertex(x2, y1, 0);
+            }
+
+            /* Draw strikethrough in the middle of glyph if the style is enabled */
+            if((renderStyle & ColorCode.STRIKETHROUGH) != 0)
+            {
+                /* The divide by 2.0F is needed to align with the scaled GUI coordinate system; startX/startY are already scaled */
+                float x1 = startX + (glyphX - glyphSpace) / 2.0F;
+                float x2 = startX + (glyphX + glyphAdvance) / 2.0F;
+                float y1 = startY + (STRIKETHROUGH_OFFSET) / 2.0F;
+                float y2 = startY + (STRIKETHROUGH_OFFSET + STRIKETHROUGH_THICKNESS) / 2.0F;
+
+                tessellator.addVertex(x1, y1, 0);
+                tessellator.addVertex(x1, y2, 0);
+                tessellator.addVertex(x2, y2, 0);
+                tessellator.addVertex(x2, y1, 0);
+            }
+        }
+    }
+
+    /**
+     * The implementation of renderString() for the off-heap arena. The glyphs and color codes are read straight from the string's
+     * record, so drawing a string that is already cached creates no objects at all.
+     *
+     * @param str the string being rendered
+     * @param startX the x coordinate to draw at
+     * @param startY the y coordinate to draw at
+     * @param initialColor the initial RGBA color to use when drawing the string
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     * @return the total advance (horizontal distance) of the string
+     */
+    private int renderRecord(String str, int startX, int startY, int initialColor, boolean shadowFlag)
+    {
+        int handle = lookupRecord(str);
+        if(handle != -1)
+        {
+            cacheHits++;
+        }
+        else
+        {
+            cacheMisses++;
+            rasterizeGlyphs = true;
+            Entry entry = layoutEntry(str);
+            handle = storeRecord(entry);
+            rasterizeGlyphs = false;
+
+            /* A string too long for the arena (or with no room made for it this time) is drawn from its Entry without being cached */
+            if(handle == -1)
+            {
+                return renderEntry(entry, str, startX, startY, initialColor, shadowFlag);
+            }
+        }
+
+        ByteBuffer buffer = arena.buffer(handle);
+        int base = arena.payload(handle);
+
+        /* If the string was only measured until now, pre-render all of its missing glyph images */
+        if(buffer.getInt(base + RECORD_RUNS) > 0)
+        {
+            rasterizeRecord(buffer, base);
+        }
+
+        /* Same drawing sequence as renderString() */
+        startY += BASELINE_OFFSET;
+        beginRender(initialColor);
+
+        Tessellator tessellator = Tessellator.instance;
+        tessellator.startDrawingQuads();
+        renderRecordGlyphs(tessellator, buffer, base, str, startX, startY, initialColor, shadowFlag);
+        tessellator.draw();
+
+        if((buffer.getInt(base + RECORD_FLAGS) & RECORD_SPECIAL_RENDER) != 0)
+        {
+            GL11.glDisable(GL11.GL_TEXTURE_2D);
+            tessellator.startDrawingQuads();
+            renderRecordStyleLines(tessellator, buffer, base, startX, startY, initialColor, shadowFlag);
+            tessellator.draw();
+            GL11.glEnable(GL11.GL_TEXTURE_2D);
+        }
+
+        return buffer.getInt(base + RECORD_ADVANCE) / 2;
+    }
+
+    /**
+     * Add the textured quads for every glyph of an arena record to the Tessellator's vertex array. This is the same as renderGlyphs()
+     * except that the glyphs and the packed color codes are read from the record (see storeRecord() for the format).
+     *
+     * @param tessellator the Tessellator instance collecting the vertices
+     * @param buffer the slab holding the record
+     * @param base the offset of the record's payload within buffer
+     * @param str the string being rendered; needed to substitute the actual ASCII digits
+     * @param startX the x coordinate of the string
+     * @param startY the y coordinate of the string's baseline
+     * @param initialColor the initial RGBA color of the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     */
+    private void renderRecordGlyphs(Tessellator tessellator, ByteBuffer buffer, int base, String str, int startX, int startY, int initialColor,
+        boolean shadowFlag)
+    {
+        int color = initialColor;
+        tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+
+        int fontStyle = Font.PLAIN;
+        int boundTextureName = 0;
+
+        int glyphCount = buffer.getInt(base + RECORD_GLYPHS);
+        int colorBase = base + RECORD_HEADER, colorCount = buffer.getInt(base + RECORD_COLORS) >> 1;
+        int glyphBase = colorBase + colorCount * 8;
+
+        for(int glyphIndex = 0, colorIndex = 0; glyphIndex < glyphCount; glyphIndex++)
+        {
+            int offset = glyphBase + glyphIndex * RECORD_GLYPH_BYTES;
+            int stringIndex = buffer.getInt(offset);
+
+            /* Each packed color code is its stripIndex followed by the code and styles, decoded the same way as by ColorCode */
+            while(colorIndex < colorCount && stringIndex >= buffer.getInt(colorBase + colorIndex * 8))
+            {
+                int style = buffer.getInt(colorBase + colorIndex * 8 + 4);
+                color = applyColorCode((byte) style, initialColor, shadowFlag);
+                fontStyle = (style >> 8) & 0xFF;
+                colorIndex++;
+            }
+
+            GlyphCache.Entry texture = glyphTexture(buffer.getInt(offset + 8));
+            int glyphX = buffer.getInt(offset + 4);
+            int glyphY = buffer.getShort(offset + 12);
+
+            /* Replace ASCII digits in the string with their respective glyphs, the same as renderGlyphs() */
+            char c = str.charAt(stringIndex + 2 * colorIndex);
+            int textureName = (c >= '0' && c <= '9') ? substituteDigit(c, fontStyle, texture, glyphX, glyphY, glyphQuad) :
+                setQuad(glyphQuad, 0, texture, glyphX, glyphY);
+
+            if(boundTextureName != textureName)
+            {
+                tessellator.draw();
+                tessellator.startDrawingQuads();
+                tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureName);
+                boundTextureName = textureName;
+            }
+
+            float x1 = startX + glyphQuad[0], y1 = startY + glyphQuad[1], x2 = startX + glyphQuad[2], y2 = startY + glyphQuad[3];
+            float u1 = glyphQuad[4], v1 = glyphQuad[5], u2 = glyphQuad[6], v2 = glyphQuad[7];
+
+            tessellator.addVertexWithUV(x1, y1, 0, u1, v1);
+            tessellator.addVertexWithUV(x1, y2, 0, u1, v2);
+            tessellator.addVertexWithUV(x2, y2, 0, u2, v2);
+            tessellator.addVertexWithUV(x2, y1, 0, u2, v1);
+        }
+    }
+
+    /**
+     * Add the untextured quads for the strikethrough and underline segments of an arena record to the Tessellator's vertex array.
+     * This is the same as renderStyleLines() except that the glyphs and the packed color codes are read from the record.
+     *
+     * @param tessellator the Tessellator instance collecting the vertices
+     * @param buffer the slab holding the record
+     * @param base the offset of the record's payload within buffer
+     * @param startX the x coordinate of the string
+     * @param startY the y coordinate of the string's baseline
+     * @param initialColor the initial RGBA color of the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     */
+    private void renderRecordStyleLines(Tessellator tessellator, ByteBuffer buffer, int base, int startX, int startY, int initialColor,
+        boolean shadowFlag)
+    {
+        int renderStyle = 0;
+        int color = initialColor;
+        tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+
+        int glyphCount = buffer.getInt(base + RECORD_GLYPHS);
+        int colorBase = base + RECORD_HEADER, colorCount = buffer.getInt(base + RECORD_COLORS) >> 1;
+        int glyphBase = colorBase + colorCount * 8;
+
+        for(int glyphIndex = 0, colorIndex = 0; glyphIndex < glyphCount; glyphIndex++)
+        {
+            int offset = glyphBase + glyphIndex * RECORD_GLYPH_BYTES;
+            while(colorIndex < colorCount && buffer.getInt(offset) >= buffer.getInt(colorBase + colorIndex * 8))
+            {
+                int style = buffer.getInt(colorBase + colorIndex * 8 + 4);
+                color = applyColorCode((byte) style, initialColor, shadowFlag);
+                renderStyle = style >>> 16;
+                colorIndex++;
+            }
+
+            /* The strike/underlines are drawn beyond the glyph's width to include the extra space between glyphs */
+            int glyphX = buffer.getInt(offset + 4), glyphAdvance = buffer.getShort(offset + 14);
+            int glyphSpace = glyphAdvance - glyphTexture(buffer.getInt(offset + 8)).width;
+
+            if((renderStyle & ColorCode.UNDERLINE) != 0)
+            {
+                float x1 = startX + (glyphX - glyphSpace) / 2.0F;
+                float x2 = startX + (glyphX + glyphAdvance) / 2.0F;
+                float y1 = startY + (UNDERLINE_OFFSET) / 2.0F;
+                float y2 = startY + (UNDERLINE_OFFSET + UNDERLINE_THICKNESS) / 2.0F;
+
+                tessellator.addVertex(x1, y1, 0);
+                tessellator.addVertex(x1, y2, 0);
+                tessellator.addVertex(x2, y2, 0);
+                tessellator.addVertex(x2, y1, 0);
+            }
+
+            if((renderStyle & ColorCode.STRIKETHROUGH) != 0)
+            {
+                float x1 = startX + (glyphX - glyphSpace) / 2.0F;
+                float x2 = startX + (glyphX + glyphAdvance) / 2.0F;
+                float y1 = startY + (STRIKETHROUGH_OFFSET) / 2.0F;
+                float y2 = startY + (STRIKETHROUGH_OFFSET + STRIKETHROUGH_THICKNESS) / 2.0F;
+
+                tessellator.addVertex(x1, y1, 0);
+                tessellator.addVertex(x1, y2, 0);
+                tessellator.addVertex(x2, y2, 0);
+                tessellator.addVertex(x2, y1, 0);
+            }
+        }
+    }
+
+    /**
+     * Return the width of a string in pixels. Used for centering strings inside GUI buttons.
+     *
+     * @param str compute the width of this string
+     * @return the width in pixels (divided by 2; this matches the scaled coordinate system used by GUIs in Minecraft)
+     */
+    public int getStringWidth(String str)
+    {
+        /* Check for invalid arguments */
+        if(str == null || str.isEmpty())
+        {
+            return 0;
+        }
+
+        /* With the off-heap arena, the width is read straight from the string's record */
+        if(arena != null && mainThread == Thread.currentThread())
+        {
+            return recordAdvance(str) / 2;
+        }
+
+        /* Make sure the entire string is cached since it will probably be used again; glyph images are not pre-rendered until then */
+        Entry entry = cacheString(str);
+
+        /* Return total horizontal advance (slightly wider than the bounding box, but close enough for centering strings) */
+        return entry.layout.advance / 2;
+    }
+
+    /**
+     * Return the widths of many strings at once, such as every name in the player list or every line of an item tooltip. All
+     * of the strings already in the cache are measured first. If enough strings are not cached yet, they are layed out in parallel
+     * by a pool of worker threads (which only compute the glyph positions and never make any OpenGL calls), and the finished
+     * layouts are then added to the cache by the calling thread. Just like getStringWidth(), glyph images are only pre-rendered
+     * once a string is actually drawn by renderString().
+     *
+     * @param strings compute the width of every string in this list; null elements are allowed and have a width of zero
+     * @return the width in pixels (divided by 2) of each string, in the same order as the list
+     */
+    public int[] getStringWidths(List<? extends CharSequence> strings)
+    {
+        int count = strings.size();
+        int widths[] = new int[count];
+
+        /* Other threads cannot use the cache so every string is simply layed out one after the other */
+        if(mainThread != Thread.currentThread())
+        {
+            for(int index = 0; index < count; index++)
+            {
+                CharSequence str = strings.get(index);
+                if(str != null && str.length() > 0)
+                {
+                    widths[index] = cacheString(str).layout.advance / 2;
+                }
+            }
+            return widths;
+        }
+
+        /* Answer all cache hits in a single pass, and remember the index of every string that still has to be layed out */
+        int misses[] = new int[count];
+        int missCount = 0;
+        for(int index = 0; index < count; index++)
+        {
+            CharSequence str = strings.get(index);
+            if(str == null || str.length() == 0)
+            {
+                continue;
+            }
+
+            /* With the off-heap arena, the width of a cached string is read straight from its record */
+            if(arena != null)
+            {
+                int handle = lookupRecord(str);
+                if(handle != -1)
+                {
+                    cacheHits++;
+                    widths[index] = arena.buffer(handle).getInt(arena.payload(handle) + RECORD_ADVANCE) / 2;
+                    continue;
+                }
+            }
+            else
+            {
+                Entry entry = cacheString(str, null, false);
+                if(entry != null)
+                {
+                    widths[index] = entry.layout.advance / 2;
+                    continue;
+                }
+            }
+            misses[missCount++] = index;
+        }
+
+        /* A few misses are layed out faster right here where layoutSegments() and the Latin tables can speed up common text */
+        Entry layedOut[] = (missCount >= PARALLEL_LAYOUT_MISSES) ? layoutInParallel(strings, misses, missCount) : null;
+
+        /* Add the new layouts to the cache from the main thread; the same string appearing twice in the list is only cached once */
+        for(int miss = 0; miss < missCount; miss++)
+        {
+            int index = misses[miss];
+            Entry entry = cacheString(strings.get(index), (layedOut != null) ? layedOut[miss] : null, true);
+            widths[index] = entry.layout.advance / 2;
+
+            /* The worker threads could not use the layoutCache, so share their layouts with strings that only differ in colors */
+            if(layedOut != null && arena == null)
+            {
+                publishLayout(strings.get(index), layedOut[miss]);
+            }
+        }
+
+        return widths;
+    }
+
+    /**
+     * Add a Layout created by layoutInParallel() to the layoutCache, exactly as layoutEntry() would have done for it on the main
+     * thread. The LayoutKey is rebuilt from the same text the worker thread layed out, and the Layout is only added if no other
+     * string with the same LayoutKey (e.g. the same string appearing twice in the list) was published first.
+     *
+     * @param str the string passed to getStringWidths()
+     * @param entry the Entry returned by layoutEntry() on the worker thread
+     */
+    private void publishLayout(CharSequence str, Entry entry)
+    {
+        /* Must match the string layed out by the worker thread in layoutInParallel() */
+        String string = str.toString();
+        char text[] = (numberTemplates && digitGlyphsReady ? collapseDigitRuns(string) : string).toCharArray();
+
+        Entry stripped = new Entry();
+        int length = stripColorCodes(stripped, text);
+        LayoutKey layoutKey = new LayoutKey(text, length, stripped.colors);
+
+        if(layoutCache.get(layoutKey) == null)
+        {
+            layoutCache.put(layoutKey, entry.layout, estimateSize(layoutKey, entry.layout));
+        }
+    }
+
+    /**
+     * Layout the uncached strings from getStringWidths() on the layoutExecutor threads. The strings are split into one chunk per
+     * thread, and the main thread waits until all of them are layed out. Since the main thread is blocked for that time, the only
+     * shared state used by the worker threads is the GlyphCache (whose font and glyph lookups are synchronized) and the ThreadLocal
+     * workerRuns. Each worker calls layoutEntry() exactly like cacheString() would, including the collapsing of digit runs when
+     * number templates are enabled, so the resulting Entry objects can be passed unchanged to cacheString().
+     *
+     * @param strings the list of strings passed to getStringWidths()
+     * @param misses the list indices of the strings that were not found in the cache
+     * @param missCount the number of valid elements in misses[]
+     * @return the Entry for each string in misses[] (in the same order), or null if the strings could not be layed out in parallel
+     */
+    private Entry[] layoutInParallel(final List<? extends CharSequence> strings, final int misses[], int missCount)
+    {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        if(layoutExecutor == null)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, LAYOUT_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue(), new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "BetterFonts Layout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            /* Let idle threads exit; the executor starts new ones the next time getStringWidths() has enough misses */
+            executor.allowCoreThreadTimeOut(true);
+            layoutExecutor = executor;
+        }
+
+        /* Must be the same as in cacheString() so the worker threads produce exactly the layout that cacheString() expects */
+        final boolean templates = numberTemplates && digitGlyphsReady && arena == null;
+        final Entry layedOut[] = new Entry[missCount];
+
+        /* Split the misses into one contiguous chunk per thread */
+        List<Callable<Object>> tasks = new ArrayList();
+        int chunk = (missCount + threads - 1) / threads;
+        for(int first = 0; first < missCount; first += chunk)
+        {
+            final int start = first, limit = Math.min(first + chunk, missCount);
+            tasks.add(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    for(int miss = start; miss < limit; miss++)
+                    {
+                        String str = strings.get(misses[miss]).toString();
+                        layedOut[miss] = layoutEntry(templates ? collapseDigitRuns(str) : str);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        /* If anything goes wrong, getStringWidths() simply lays out all the strings on the main thread instead */
+        try
+        {
+            for(Future<Object> future : layoutExecutor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException e)
+        {
+            System.out.println("BetterFonts failed to layout strings in parallel: " + e.getCause());
+            return null;
+        }
+
+        return layedOut;
+    }
+
+    /**
+     * Return the number of characters in a string that will completly fit inside the specified width when rendered, with
+     * or without prefering to break the line at whitespace instead of breaking in the middle of a word. This private provides
+     * the real implementation of both sizeStringToWidth() and trimStringToWidth().
+     *
+     * @param str the String to analyze
+     * @param width the desired string width (in GUI coordinate system)
+     * @param breakAtSpaces set to prefer breaking line at spaces than in the middle of a word
+     * @return the number of characters from str that will fit inside width
+     */
+    private int sizeString(String str, int width, boolean breakAtSpaces)
+    {
+        /* Check for invalid arguments */
+        if(str == null || str.isEmpty())
+        {
+            return 0;
+        }
+
+        /* Convert the width from GUI coordinate system to pixels */
+        width += width;
+
+        /* The glyph array for a string is sorted by the string's logical character position */
+        Entry entry = cacheString(str);
+        Layout layout = entry.layout;
+
+        /*
+         * Find the first glyph index where the total advance of all preceding glyphs exceeds the width. This is the same glyph where
+         * adding up the individual advance of each glyph from the start of the string would stop.
+         */
+        int index = 0;
+        if(width >= 0)
+        {
+            int low = 1, high = layout.glyphCount;
+            while(low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                if(layout.prefixWidth[middle] > width)
+                {
+                    high = middle - 1;
+                }
+                else
+                {
+                    low = middle + 1;
+                }
+            }
+            index = Math.min(low, layout.glyphCount);
+        }
+
+        if(breakAtSpaces)
+        {
+            /* A newline always ends the line if it's reached before the width runs out */
+            if(layout.newlines.length > 0 && layout.newlines[0] < index)
+            {
+                index = layout.newlines[0];
+            }
+
+            /* Avoid splitting individual words if breakAtSpaces set; same test condition as in Minecraft's FontRenderer */
+            else if(index < layout.glyphCount)
+            {
+                /* The last space before the glyph that wouldn't fit */
+                int space = lowerBound(layout.spaces, index);
+                if(space > 0)
+                {
+                    index = layout.spaces[space - 1];
+                }
+            }
+        }
+
+        /* The string index of the last glyph that wouldn't fit gives the total desired length of the string in characters */
+        return index < layout.glyphCount ? toStringIndex(entry, layout.stringIndex[index]) : str.length();
+    }
+
+    /**
+     * Return the index of the first character in a string such that the rest of the string starting at that character will completely
+     * fit inside the specified width when rendered. This is the reverse of sizeString() and works from the end of the string.
+     *
+     * @param str the String to analyze
+     * @param width the desired string width (in GUI coordinate system)
+     * @return the index into str of the first character that fits; str.length() if nothing fits
+     */
+    private int sizeStringReverse(String str, int width)
+    {
+        /* Check for invalid arguments */
+        if(str == null || str.isEmpty())
+        {
+            return 0;
+        }
+
+        /* Convert the width from GUI coordinate system to pixels */
+        width += width;
+
+        Entry entry = cacheString(str);
+        Layout layout = entry.layout;
+
+        if(width < 0)
+        {
+            return str.length();
+        }
+
+        /* Find the last glyph index where the total advance of that glyph and all the following ones exceeds the width */
+        int low = 0, high = layout.glyphCount - 1;
+        while(low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if(layout.suffixWidth[middle] > width)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        int index = Math.max(high, 0);
+
+        /* Keep any color codes immediately preceding the first glyph since they still apply to it */
+        return index < layout.glyphCount ? toStringIndex(entry, layout.stringIndex[index] - 1) + 1 : 0;
+    }
+
+    /**
+     * Fill in the prefixWidth, suffixWidth, spaces and newlines arrays of a Layout once its glyphs are packed. If the
+     * string contains any right-to-left text, the rightToLeft, visualOrder and visualIndex arrays are also filled in.
+     *
+     * @param layout the new Layout
+     * @param text the stripped string from which the layout was created
+     * @param textLength the number of chars in text[] actually used by the stripped string
+     */
+    private static void indexLayout(Layout layout, char text[], int textLength)
+    {
+        int length = layout.glyphCount;
+
+        layout.prefixWidth = new int[length + 1];
+        layout.suffixWidth = new int[length + 1];
+        layout.negativeAdvance = false;
+
+        int spaceCount = 0, newlineCount = 0;
+        for(int index = 0, sum = 0; index < length; index++)
+        {
+            sum += layout.advances[index];
+            layout.prefixWidth[index + 1] = (index == 0) ? sum : Math.max(sum, layout.prefixWidth[index]);
+            layout.negativeAdvance |= (layout.advances[index] < 0);
+
+            char c = text[layout.stringIndex[index]];
+            if(c == ' ')
+            {
+                spaceCount++;
+            }
+            else if(c == '\n')
+            {
+                newlineCount++;
+            }
+        }
+
+        for(int index = length - 1, sum = 0; index >= 0; index--)
+        {
+            sum += layout.advances[index];
+            layout.suffixWidth[index] = Math.max(sum, layout.suffixWidth[index + 1]);
+        }
+
+        layout.spaces = new int[spaceCount];
+        layout.newlines = new int[newlineCount];
+        for(int index = 0, space = 0, newline = 0; index < length; index++)
+        {
+            char c = text[layout.stringIndex[index]];
+            if(c == ' ')
+            {
+                layout.spaces[space++] = index;
+            }
+            else if(c == '\n')
+            {
+                layout.newlines[newline++] = index;
+            }
+        }
+
+        /* Same bidirectional analysis as layoutBidiString() but applied to the whole string at once */
+        if(Bidi.requiresBidi(text, 0, textLength))
+        {
+            Bidi bidi = new Bidi(text, 0, null, 0, textLength, Bidi.DIRECTION_DEFAULT_LEFT_TO_RIGHT);
+            layout.rightToLeft = new boolean[length];
+
+            /* Sorting the x coordinate in the upper half and the glyph index in the lower half of a long avoids any boxing */
+            long order[] = new long[length];
+            for(int index = 0; index < length; index++)
+            {
+                layout.rightToLeft[index] = (bidi.getLevelAt(layout.stringIndex[index]) & 1) == 1;
+                order[index] = ((long) layout.x[index] << 32) | index;
+            }
+            Arrays.sort(order);
+
+            layout.visualOrder = new int[length];
+            layout.visualIndex = new int[length];
+            for(int visual = 0; visual < length; visual++)
+            {
+                int index = (int) order[visual];
+                layout.visualOrder[visual] = index;
+                layout.visualIndex[index] = visual;
+            }
+        }
+    }
+
+    /**
+     * Convert an index into the original string with color codes into an index into the stripped string. This is the inverse of
+     * toStringIndex(); an index pointing inside a color code maps to the stripped index of the character after the color code.
+     *
+     * @param entry the cached Entry with the color codes that were removed from the original string
+     * @param stringIndex the index into the original string
+     * @return the corresponding index into the stripped string
+     */
+    private static int toStripIndex(Entry entry, int stringIndex)
+    {
+        /* Binary search for the number of color codes that start before the requested index */
+        int colors[] = entry.colors;
+        int low = 0, high = ColorCode.count(colors);
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if(ColorCode.stringIndex(colors, middle) < stringIndex)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low > 0 ? Math.max(stringIndex - 2 * low, ColorCode.stripIndex(colors, low - 1)) : stringIndex;
+    }
+
+    /**
+     * Find the first glyph in a layout that belongs to a character at or after the given index in the stripped string.
+     *
+     * @param layout the Layout whose glyphs are sorted by their stringIndex
+     * @param stripIndex the index into the stripped string
+     * @return the index of the first such glyph; layout.glyphCount if there is none
+     */
+    private static int glyphIndex(Layout layout, int stripIndex)
+    {
+        int low = 0, high = layout.glyphCount;
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if(layout.stringIndex[middle] < stripIndex)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Convert an index into the stripped string (i.e. Layout.stringIndex) into an index into the original string with color codes.
+     * Every color code located at or before the stripped index adds two characters to the index in the original string.
+     *
+     * @param entry the cached Entry with the color codes that were removed from the original string
+     * @param stripIndex the index into the stripped string
+     * @return the corresponding index into the original string
+     */
+    private static int toStringIndex(Entry entry, int stripIndex)
+    {
+        /* Binary search for the number of color codes with a stripIndex <= the requested index */
+        int colors[] = entry.colors;
+        int low = 0, high = ColorCode.count(colors);
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if(ColorCode.stripIndex(colors, middle) <= stripIndex)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return stripIndex + 2 * low;
+    }
+
+    /**
+     * Return the number of characters in a string that will completly fit inside the specified width when rendered.
+     *
+     * @param str the String to analyze
+     * @param width the desired string width (in GUI coordinate system)
+     * @return the number of characters from str that will fit inside width
+     */
+    public int sizeStringToWidth(String str, int width)
+    {
+        return sizeString(str, width, true);
+    }
+
+    /**
+     * Trim a string so that it fits in the specified width when rendered, either keeping the beginning or the end of the string
+     *
+     * @param str the String to trim
+     * @param width the desired string width (in GUI coordinate system)
+     * @param reverse if true, the end of the string is kept instead of the beginning (same as Minecraft's FontRenderer)
+     * @return the trimmed string
+     */
+    public String trimStringToWidth(String str, int width, boolean reverse)
+    {
+        if(reverse)
+        {
+            return str.substring(sizeStringReverse(str, width));
+        }
+
+        return str.substring(0, sizeString(str, width, false));
+    }
+
+    /**
+     * Return the width of a range of characters within a larger string in pixels. The entire string is cached and the width is
+     * taken from the glyphs in its layout that belong to the characters in the range, so no intermediate substring is created
+     * and nothing is allocated if the string is already cached. Because the layout of the whole string is used, any color codes
+     * or font styles before the start of the range still apply, and glyphs shaped together across the range boundaries are
+     * measured as they would be rendered in the full string.
+     *
+     * @param str the String or other CharSequence (i.e. a StringBuilder) containing the range
+     * @param start index of the first character in the range
+     * @param end index one past the last character in the range
+     * @return the width in pixels (divided by 2; this matches the scaled coordinate system used by GUIs in Minecraft)
+     */
+    public int getStringWidth(CharSequence str, int start, int end)
+    {
+        /* Check for invalid arguments */
+        if(str == null || start >= end)
+        {
+            return 0;
+        }
+
+        Entry entry = cacheString(str);
+        Layout layout = entry.layout;
+
+        int index = glyphIndex(layout, toStripIndex(entry, start));
+        int limit = glyphIndex(layout, toStripIndex(entry, end));
+
+        return rangeAdvance(entry.layout, index, limit) / 2;
+    }
+
+    /**
+     * Return the total advance of a range of glyphs in a layout. For left-to-right text, the range covers everything from the x
+     * coordinate of its first glyph up to the x coordinate of the first glyph after it. Measuring from positions (instead of adding
+     * up the individual glyph advances) also includes any extra space between glyphs from different text runs, so the widths of
+     * adjacent ranges add up to the width of the whole string.
+     *
+     * @param layout the Layout containing the glyphs
+     * @param index index of the first glyph in the range
+     * @param limit index one past the last glyph in the range
+     * @return the advance of the glyph range in pixels
+     */
+    private static int rangeAdvance(Layout layout, int index, int limit)
+    {
+        int left = (index == 0) ? 0 : (index < layout.glyphCount ? layout.x[index] : layout.advance);
+        int right = (limit < layout.glyphCount) ? layout.x[limit] : layout.advance;
+        int advance = right - left;
+
+        /* Right-to-left text has glyphs in reverse visual order so simply add up the advance of every glyph inside the range */
+        if(advance < 0)
+        {
+            for(advance = 0; index < limit; index++)
+            {
+                advance += layout.advances[index];
+            }
+        }
+
+        return advance;
+    }
+
+    /**
+     * Find the index of the first character in a range of a larger string that will not fit inside the specified width when the
+     * range is rendered on its own line, prefering to break the line at whitespace instead of breaking in the middle of a word.
+     * This is the same as sizeStringToWidth() applied to the substring of the range, except that the returned index is into str
+     * itself. Just like getStringWidth(CharSequence, int, int), the answer comes from the cached layout of the entire string.
+     *
+     * @param str the String or other CharSequence (i.e. a StringBuilder) containing the range
+     * @param start index of the first character in the range
+     * @param end index one past the last character in the range
+     * @param width the desired width (in GUI coordinate system)
+     * @return the index into str where the line should be broken; end if the entire range fits
+     */
+    public int sizeStringToWidth(CharSequence str, int start, int end, int width)
+    {
+        /* Check for invalid arguments */
+        if(str == null || start >= end)
+        {
+            return start;
+        }
+
+        /* Convert the width from GUI coordinate system to pixels */
+        width += width;
+
+        Entry entry = cacheString(str);
+        Layout layout = entry.layout;
+        int limit = glyphIndex(layout, toStripIndex(entry, end));
+        int index = breakAtSpaces(entry, str, glyphIndex(layout, toStripIndex(entry, start)), limit, width);
+
+        return index < limit ? toStringIndex(entry, layout.stringIndex[index]) : end;
+    }
+
+    /**
+     * Find the first glyph in a range that will not fit inside the specified width, prefering to break at whitespace instead of
+     * breaking in the middle of a word. Uses the same test conditions as the original sizeString() and Minecraft's FontRenderer.
+     * Just like sizeString(), the glyph is found with binary searches over the prefixWidth, newlines and spaces arrays. Only a
+     * layout with a negative glyph advance has to add up the advance of every glyph in the range instead.
+     *
+     * @param entry the cached Entry for str
+     * @param str the string being broken into lines
+     * @param index index of the first glyph in the range
+     * @param limit index one past the last glyph in the range
+     * @param width the desired width in pixels
+     * @return the index of the glyph where the line should be broken; limit if the entire range fits
+     */
+    private static int breakAtSpaces(Entry entry, CharSequence str, int index, int limit, int width)
+    {
+        Layout layout = entry.layout;
+
+        if(!layout.negativeAdvance)
+        {
+            /* Nothing fits in a negative width, not even a newline */
+            if(width < 0 || index >= limit)
+            {
+                return index;
+            }
+
+            /* Without negative advances, prefixWidth[] is the running sum; find the glyph where the sum since index exceeds the width */
+            int first = index, target = layout.prefixWidth[first] + width;
+            int low = first + 1, high = limit;
+            while(low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if(layout.prefixWidth[middle] > target)
+                {
+                    high = middle;
+                }
+                else
+                {
+                    low = middle + 1;
+                }
+            }
+            index = low;
+
+            /* A newline always ends the line if it's reached before the width runs out */
+            int newline = lowerBound(layout.newlines, first);
+            if(newline < layout.newlines.length && layout.newlines[newline] < index)
+            {
+                return layout.newlines[newline];
+            }
+
+            /* Avoid splitting individual words; the last space in the range before the glyph that wouldn't fit */
+            int space = lowerBound(layout.spaces, index);
+            if(index < limit && space > 0 && layout.spaces[space - 1] >= first)
+            {
+                index = layout.spaces[space - 1];
+            }
+
+            return index;
+        }
+
+        /* Index of the last whitespace found in the range */
+        int wsIndex = -1;
+
+        /* Add up the individual advance of each glyph until it exceeds the specified width */
+        int advance = 0;
+        while(index < limit && advance <= width)
+        {
+            char c = str.charAt(toStringIndex(entry, layout.stringIndex[index]));
+            if(c == ' ')
+            {
+                wsIndex = index;
+            }
+            else if(c == '\n')
+            {
+                wsIndex = index;
+                break;
+            }
+
+            advance += layout.advances[index];
+            index++;
+        }
+
+        /* Avoid splitting individual words */
+        if(index < limit && wsIndex != -1 && wsIndex < index)
+        {
+            index = wsIndex;
+        }
+
+        return index;
+    }
+
+    /**
+     * Find the number of elements in a sorted array of glyph indices that are less than the given glyph index.
+     *
+     * @param indices the glyph indices in increasing order (i.e. Layout.spaces or Layout.newlines)
+     * @param index the glyph index to search for
+     * @return the position of the first element in indices[] that is not less than index; indices.length if there is none
+     */
+    private static int lowerBound(int indices[], int index)
+    {
+        int low = 0, high = indices.length;
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if(indices[middle] < index)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Break a string into lines that each fit inside the specified width, for word wrapping long chat messages or book pages. The
+     * whole string is layed out (or looked up in the cache) only once, and the returned LineIterator then finds each line with a
+     * single pass over the glyphs in that layout.
+     *
+     * @param str the String or other CharSequence (i.e. a StringBuilder) to break into lines
+     * @param width the maximum width of each line (in GUI coordinate system)
+     * @param unicodeBreaks if true, lines are broken at the line break opportunities found by a BreakIterator (needed for CJK and
+     *        Thai text which don't put spaces between words); otherwise lines are only broken at spaces, the same as Minecraft's
+     *        FontRenderer.wrapFormattedStringToWidth()
+     * @return a new LineIterator positioned before the first line
+     */
+    public LineIterator lineIterator(CharSequence str, int width, boolean unicodeBreaks)
+    {
+        if(str == null)
+        {
+            str = "";
+        }
+
+        return new LineIterator(str, cacheString(str), width + width, unicodeBreaks);
+    }
+
+    /**
+     * Find the caret position in a string closest to a horizontal position on the screen, i.e. where a mouse click inside a text
+     * field should place the cursor. The glyph under the x coordinate is found with a binary search over the glyphs sorted by their
+     * visual position, and the caret goes on whichever side of that glyph is closer. For right-to-left text, the right side of a
+     * glyph is the position before its character. Nothing is allocated if the string is already cached.
+     *
+     * @param str the String or other CharSequence (i.e. a StringBuilder) being hit tested
+     * @param x the horizontal position relative to the start of the string (in GUI coordinate system)
+     * @return the index into str where the caret should be placed
+     */
+    public int getCharIndexAtX(CharSequence str, int x)
+    {
+        /* Check for invalid arguments */
+        if(str == null || str.length() == 0)
+        {
+            return 0;
+        }
+
+        /* Convert the x coordinate from GUI coordinate system to pixels */
+        x += x;
+
+        Entry entry = cacheString(str);
+        Layout layout = entry.layout;
+        if(layout.glyphCount == 0)
+        {
+            return str.length();
+        }
+
+        /* Binary search for the last glyph in visual order whose left edge is at or before x */
+        int low = 1, high = layout.glyphCount - 1;
+        while(low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if(visualLeft(layout, middle) <= x)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        int visual = low - 1;
+
+        /* A click on the left half of a left-to-right glyph (or the right half of a right-to-left one) goes before its character */
+        int index = (layout.visualOrder != null) ? layout.visualOrder[visual] : visual;
+        boolean leftHalf = 2 * x < visualLeft(layout, visual) + visualRight(layout, visual);
+        boolean rightToLeft = layout.rightToLeft != null && layout.rightToLeft[index];
+        if(leftHalf != rightToLeft)
+        {
+            return toStringIndex(entry, layout.stringIndex[index]);
+        }
+
+        /* Otherwise the caret goes after the character, which is just before the next glyph in logical order */
+        return (index + 1 < layout.glyphCount) ? toStringIndex(entry, layout.stringIndex[index + 1]) : str.length();
+    }
+
+    /**
+     * Return the horizontal position of the caret placed before a character in a string, i.e. where a text field should draw its
+     * cursor. This is the inverse of getCharIndexAtX(). For left-to-right text, this is the same as the width of the string up to
+     * the character. Nothing is allocated if the string is already cached.
+     *
+     * @param str the String or other CharSequence (i.e. a StringBuilder) containing the caret
+     * @param index the caret position as an index into str; str.length() places the caret at the logical end of the string
+     * @return the horizontal position of the caret relative to the start of the string (in GUI coordinate system)
+     */
+    public int getCaretX(CharSequence str, int index)
+    {
+        /* Check for invalid arguments */
+        if(str == null || str.length() == 0)
+        {
+            return 0;
+        }
+
+        Entry entry = cacheString(str);
+        Layout layout = entry.layout;
+        if(layout.glyphCount == 0)
+        {
+            return 0;
+        }
+
+        /* The caret is drawn on the leading edge of the first glyph at or after index; that's the left edge for left-to-right text */
+        int glyph = glyphIndex(layout, toStripIndex(entry, index));
+        if(glyph < layout.glyphCount)
+        {
+            int visual = (layout.visualOrder != null) ? layout.visualIndex[glyph] : glyph;
+            boolean rightToLeft = layout.rightToLeft != null && layout.rightToLeft[glyph];
+            return (rightToLeft ? visualRight(layout, visual) : visualLeft(layout, visual)) / 2;
+        }
+
+        /* At the end of the string, the caret is drawn on the trailing edge of the last glyph in logical order */
+        glyph = layout.glyphCount - 1;
+        int visual = (layout.visualOrder != null) ? layout.visualIndex[glyph] : glyph;
+        boolean rightToLeft = layout.rightToLeft != null && layout.rightToLeft[glyph];
+        return (rightToLeft ? visualLeft(layout, visual) : visualRight(layout, visual)) / 2;
+    }
+
+    /**
+     * Return the left edge of a glyph in visual order. The edges of adjacent glyphs meet exactly, and the first glyph starts at zero,
+     * so that every horizontal position belongs to exactly one glyph; this matches how rangeAdvance() measures the width of text.
+     *
+     * @param layout the Layout containing the glyph
+     * @param visual the position of the glyph in visual order (i.e. an index into layout.visualOrder)
+     * @return the x coordinate of the left edge of the glyph in pixels
+     */
+    private static int visualLeft(Layout layout, int visual)
+    {
+        if(visual == 0)
+        {
+            return 0;
+        }
+
+        return layout.x[(layout.visualOrder != null) ? layout.visualOrder[visual] : visual];
+    }
+
+    /**
+     * Return the right edge of a glyph in visual order, which is either the left edge of the next glyph or the total advance of
+     * the string for the rightmost glyph.
+     *
+     * @param layout the Layout containing the glyph
+     * @param visual the position of the glyph in visual order (i.e. an index into layout.visualOrder)
+     * @return the x coordinate of the right edge of the glyph in pixels
+     */
+    private static int visualRight(Layout layout, int visual)
+    {
+        return (visual + 1 < layout.glyphCount) ? visualLeft(layout, visual + 1) : layout.advance;
+    }
+
+    /**
+     * Find the index of the first character in a range of a larger string such that the rest of the range starting at that
+     * character will fit inside the specified width. This is the same as trimStringToWidth() with reverse set, except that only
+     * the index into str is returned instead of creating the trimmed substring.
+     *
+     * @param str the String or other CharSequence (i.e. a StringBuilder) containing the range
+     * @param start index of the first character in the range
+     * @param end index one past the last character in the range
+     * @param width the desired width (in GUI coordinate system)
+     * @return the index into str where the fitting end of the range begins; end if nothing fits
+     */
+    public int sizeStringToWidthReverse(CharSequence str, int start, int end, int width)
+    {
+        /* Check for invalid arguments */
+        if(str == null || start >= end || width < 0)
+        {
+            return end;
+        }
+
+        /* Convert the width from GUI coordinate system to pixels */
+        width += width;
+
+        Entry entry = cacheString(str);
+        Layout layout = entry.layout;
+        int first = glyphIndex(layout, toStripIndex(entry, start));
+        int index = glyphIndex(layout, toStripIndex(entry, end));
+
+        /* Add up the individual advance of each glyph from the end of the range until it exceeds the specified width */
+        int advance = 0;
+        while(index > first && advance <= width)
+        {
+            index--;
+            advance += layout.advances[index];
+        }
+
+        /* The entire range fits, including any color codes at its start */
+        if(advance <= width)
+        {
+            return start;
+        }
+
+        /* Keep any color codes immediately preceding the first glyph since they still apply to it */
+        return Math.max(start, toStringIndex(entry, layout.stringIndex[index] - 1) + 1);
+    }
+
+    /**
+     * Apply a new vertex color to the Tessellator instance based on the numeric chat color code. Only the RGB component of the
+     * color is replaced by a color code; the alpha component of the original default color will remain.
+     *
+     * @param colorCode the chat color code as a number 0-15 or -1 to reset the default color
+     * @param color the default color used when the colorCode is -1
+     * @param shadowFlag ir true, the color code will select a darker version of the color suitable for drop shadows
+     * @return the new RGBA color set by this function
+     */
+    private int applyColorCode(int colorCode, int color, boolean shadowFlag)
+    {
+        color = colorForCode(colorCode, color, shadowFlag);
+        Tessellator.instance.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+        return color;
+    }
+
+    /**
+     * Compute the color selected by a numeric chat color code in the same way as applyColorCode(), but without applying it to the
+     * Tessellator instance. Used for quads that are collected by a WorldText instead of being drawn right away.
+     *
+     * @param colorCode the chat color code as a number 0-15 or -1 to reset the default color
+     * @param color the default color used when the colorCode is -1
+     * @param shadowFlag ir true, the color code will select a darker version of the color suitable for drop shadows
+     * @return the RGBA color selected by the color code
+     */
+    private int colorForCode(int colorCode, int color, boolean shadowFlag)
+    {
+        /* A -1 color code indicates a reset to the initial color passed into renderString() */
+        if(colorCode != -1)
+        {
+            colorCode = shadowFlag ? colorCode + 16 : colorCode;
+            color = colorTable[colorCode] & 0xffffff | color & 0xff000000;
+        }
+
+        return color;
+    }
+
+    /**
+     * Write the quad of a glyph image into an array in the same format as Layout.quads: the x and y coordinates of the top left and
+     * bottom right corners (relative to the string's origin), followed by the texture coordinates of those two corners.
+     *
+     * @param quads the array receiving the quad
+     * @param offset the index into quads[] at which the quad starts
+     * @param texture the glyph image
+     * @param glyphX the x position of the glyph image in the layout
+     * @param glyphY the y position of the glyph image in the layout
+     * @return the OpenGL texture name of the glyph image
+     */
+    private static int setQuad(float quads[], int offset, GlyphCache.Entry texture, int glyphX, int glyphY)
+    {
+        /* The divide by 2.0F is needed to align with the scaled GUI coordinate system */
+        quads[offset] = (glyphX) / 2.0F;
+        quads[offset + 1] = (glyphY) / 2.0F;
+        quads[offset + 2] = (glyphX + texture.width) / 2.0F;
+        quads[offset + 3] = (glyphY + texture.height) / 2.0F;
+        quads[offset + 4] = texture.u1;
+        quads[offset + 5] = texture.v1;
+        quads[offset + 6] = texture.u2;
+        quads[offset + 7] = texture.v2;
+
+        return texture.textureName;
+    }
+
+    /**
+     * Replace the placeholder glyph of an ASCII digit with the glyph of the actual digit from digitGlyphs[]. If the new replacement
+     * glyph has a different width than the original placeholder glyph (e.g. the '1' glyph is often narrower than other digits), the
+     * new glyph is re-centered over the placeholder's position to minimize the visual impact of the width mismatch. Shared by every
+     * method that draws cached strings, since strings differing by digits are only cached once.
+     *
+     * @param digit the actual ASCII digit in the string
+     * @param fontStyle the font style of the digit; a combination of Font.PLAIN, Font.BOLD, and Font.ITALIC
+     * @param placeholder the glyph image of the placeholder in the cached layout
+     * @param glyphX the x position of the placeholder in the cached layout
+     * @param glyphY the y position of the placeholder in the cached layout
+     * @param quad receives the quad of the actual digit in the same format as Layout.quads
+     * @return the OpenGL texture name of the actual digit's glyph image
+     */
+    private int substituteDigit(char digit, int fontStyle, GlyphCache.Entry placeholder, int glyphX, int glyphY, float quad[])
+    {
+        GlyphCache.Entry texture = digitGlyphs[fontStyle].texture[digit - '0'];
+        return setQuad(quad, 0, texture, glyphX + ((placeholder.width - texture.width) >> 1), glyphY);
+    }
+
+    /**
+     * Add a string to the string cache by perform full layout on it, remembering its glyph positions, and making sure that
+     * every font glyph used by the string is pre-rendering. If this string has already been cached, then simply return its
+     * existing Entry from the cahe. Note that for caching purposes, this method considers two strings to be identical if they
+     * only differ in their ASCII digits; the renderString() method performs fast glyph substitution based on the actual digits
+     * in the string at the time.
+     *
+     * @param str this String will be layed out and added to the cache (or looked up, if alraedy cached); any other kind of
+     *        CharSequence is only converted into a String if it's not already cached
+     * @return the string's cache entry containing all the glyph positions
+     */
+    private Entry cacheString(CharSequence str)
     {
-        /* Need to cache each font style combination; the digitGlyphsReady = false disabled the normal glyph substitution mechanism */
-        digitGlyphsReady = false;
-        digitGlyphs[Font.PLAIN] = cacheString("0123456789").glyphs;
-        digitGlyphs[Font.BOLD] = cacheString("�l0123456789").glyphs;
-        digitGlyphs[Font.ITALIC] = cacheString("�o0123456789").glyphs;
-        digitGlyphs[Font.BOLD | Font.ITALIC] = cacheString("�l�o0123456789").glyphs;
-        digitGlyphsReady = true;
+        return cacheString(str, null, true);
     }
 
     /**
-     * Render a single-line string to the screen using the current OpenGL color. The (x,y) coordinates are of the uppet-left
-     * corner of the string's bounding box, rather than the baseline position as is typical with fonts. This function will also
-     * add the string to the cache so the next renderString() call with the same string is faster.
+     * Look up a string in the cache, and optionally add it to the cache if it's not already there. This is the implementation of
+     * cacheString(CharSequence) which also lets getStringWidths() answer all of its cache hits before laying out any of the misses,
+     * and then publish the misses which were layed out by its worker threads.
      *
-     * @param str the string being rendered; it can contain color codes
-     * @param x the x coordinate to draw at
-     * @param y the y coordinate to draw at
-     * @param color the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
-     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
-     * @return the total advance (horizontal distance) of this string
+     * @param str this String will be looked up in the cache and layed out if it's not already cached
+     * @param layedOut if not null, the Entry returned by layoutEntry() for this string (or its number template) on some other
+     *        thread; it's added to the cache instead of laying out the string again on a cache miss
+     * @param layoutMisses if false, return null instead of laying out the string on a cache miss; only used from the main thread
+     * @return the string's cache entry containing all the glyph positions, or null if the string is not cached and layoutMisses is false
+     */
+    private Entry cacheString(CharSequence str, Entry layedOut, boolean layoutMisses)
+    {
+        /*
+         * New Key object allocated only if the string was not found in the StringCache using lookupKey. This variable must
+         * be outside the (entry == null) code block to have a temporary strong reference between the time when the Key is
+         * added to stringCache and added to weakRefCache.
+         */
+        Key key;
+
+        /* Either a newly created Entry object for the string, or the cached Entry if the string is already in the cache */
+        Entry entry = null;
+
+        /* The boundedCache node holding entry; remembered in the identity cache along with the entry */
+        ClockCache.Node node = null;
+
+        /* Number templates cannot be used until the digitGlyphs[] that fill in the template slots have been cached */
+        boolean templates = numberTemplates && digitGlyphsReady && arena == null;
+
+        /* The off-heap arena replaces all of the other string caches on the main thread */
+        if(arena != null && mainThread == Thread.currentThread())
+        {
+            return cacheRecord(str, layedOut, layoutMisses);
+        }
+
+        /* Slot in the identityStrings and identityEntries arrays where this String object would be cached */
+        int identitySlot = System.identityHashCode(str) & (IDENTITY_CACHE_SIZE - 1);
+
+        /* Don't perform a cache lookup from other threads because the stringCache is not synchronized */
+        if(mainThread == Thread.currentThread())
+        {
+            /* The fastest path of all: the very same String object was recently passed into this method */
+            if(identityStrings[identitySlot] == str)
+            {
+                /* Same as the hit in boundedCache.get() below; the write is skipped if the bit is already set */
+                node = identityNodes[identitySlot];
+                if(node != null && !node.referenced)
+                {
+                    node.referenced = true;
+                }
+
+                cacheHits++;
+                return identityEntries[identitySlot];
+            }
+
+            /* Re-use existing lookupKey to avoid allocation overhead on the critical rendering path */
+            lookupKey.setString(str, templates);
+
+            /* If this string is already in the cache, simply return the cached Entry object */
+            if(boundedCache != null)
+            {
+                node = boundedCache.getNode(lookupKey);
+                entry = (node != null) ? (Entry) node.value : null;
+            }
+            else
+            {
+                entry = stringCache.get(lookupKey);
+            }
+
+            if(entry != null)
+            {
+                cacheHits++;
+            }
+
+            /* Only probing the cache; the miss is counted once the string is actually layed out */
+            else if(!layoutMisses)
+            {
+                lookupKey.str = null;
+                return null;
+            }
+            else
+            {
+                cacheMisses++;
+            }
+        }
+
+        /* If string is not cached (or not on main thread) then layout the string */
+        if(entry == null)
+        {
+            /*
+             * In template mode, the string actually layed out has every run of digits replaced by a single '0'. The layout then
+             * serves as a template for all strings that only differ in their numbers.
+             */
+            String string = str.toString();
+            entry = (layedOut != null) ? layedOut : layoutEntry(templates ? collapseDigitRuns(string) : string);
+
+            /*
+             * Do not actually cache the string when called from other threads because GlyphCache.cacheGlyphs() will not have been called
+             * and the cache entry does not contain any texture data needed for rendering.
+             */
+            if(mainThread == Thread.currentThread())
+            {
+                /* Wrap the string in a Key object (to change how ASCII digits are compared) and cache it along with the newly generated Entry */
+                key = new Key();
+
+                /* The bounded cache holds strong references to its keys so there is no need to copy the original String */
+                if(boundedCache != null)
+                {
+                    key.setString(string, templates);
+                    node = boundedCache.put(key, entry, estimateSize(string, entry));
+                }
+
+                /* Make a copy of the original String to avoid creating a strong reference to it */
+                else
+                {
+                    key.setString(new String(string), templates);
+                    entry.keyRef = new WeakReference(key);
+                    stringCache.put(key, entry);
+                }
+            }
+        }
+
+        /* Do not access weakRefCache from other threads since it is unsynchronized, and for a newly created entry, the keyRef is null */
+        if(mainThread == Thread.currentThread())
+        {
+            /*
+             * Add the String passed into this method to the stringWeakMap so it keeps the Key reference live as long as the String is in use.
+             * If an existing Entry was already found in the stringCache, it's possible that its Key has already been garbage collected. The
+             * code below checks for this to avoid adding (str, null) entries into weakRefCache. Note that if a new Key object was created, it
+             * will still be live because of the strong reference created by the "key" variable. The bounded cache does not use weakRefCache.
+             * Other kinds of CharSequence are not added since they are usually mutable and short-lived (i.e. a re-used StringBuilder).
+             */
+            if(boundedCache == null && str instanceof String)
+            {
+                Key oldKey = entry.keyRef.get();
+                if(oldKey != null)
+                {
+                    weakRefCache.put((String) str, oldKey);
+                }
+            }
+            lookupKey.str = null;
+        }
+
+        /* If the string has any runs of two or more digits, the template layout has to be expanded to fit all of the actual digits */
+        if(templates)
+        {
+            entry = instantiateTemplate(str, entry);
+        }
+
+        /* A mutable CharSequence can't be remembered by its identity since its contents might be different on the next lookup */
+        if(mainThread == Thread.currentThread() && str instanceof String)
+        {
+            /* Remember this String object so the next lookup with the same String can skip hashing and comparing strings */
+            identityStrings[identitySlot] = (String) str;
+            identityEntries[identitySlot] = entry;
+            identityNodes[identitySlot] = node;
+        }
+
+        /* Return either the existing or the newly created entry so it can be accessed immediately */
+        return entry;
+    }
+
+    /**
+     * Fold a string into arenaKey[] in the same way Key compares strings without number templates (every ASCII digit not following
+     * a section mark becomes '0'), and look it up in the arena. The key is kept so storeRecord() can add the string after a miss.
      *
-     * @todo Add optional NumericShaper to replace ASCII digits with locale specific ones
-     * @todo Add support for the "k" code which randomly replaces letters on each render (used only by splash screen)
-     * @todo Pre-sort by texture to minimize binds; can store colors per glyph in string cache
-     * @todo Optimize the underline/strikethrough drawing to draw a single line for each run
+     * @param str the string to look up
+     * @return the handle of the string's record, or -1 if the string is not in the arena
      */
-    public int renderString(String str, int startX, int startY, int initialColor, boolean shadowFlag)
+    private int lookupRecord(CharSequence str)
     {
-        /* Check for invalid arguments */
-        if(str == null || str.isEmpty())
+        int length = str.length();
+        if(arenaKey.length < length)
         {
-            return 0;
+            arenaKey = new char[Math.max(length, arenaKey.length * 2)];
         }
 
-        /* Make sure the entire string is cached before rendering and return its glyph representation */
-        Entry entry = cacheString(str);
+        /* Same mixing as Key.computeHash() */
+        int code = Key.HASH_SEED;
+        boolean colorCode = false;
+        for(int index = 0; index < length; index++)
+        {
+            char c = str.charAt(index);
+            if(c >= '0' && c <= '9' && !colorCode)
+            {
+                c = '0';
+            }
+            arenaKey[index] = c;
+            code = (code ^ c) * 0x9E3779B1;
+            code ^= code >>> 15;
+            colorCode = (c == '\u00A7');
+        }
+        arenaKeyLength = length;
+        arenaHash = Key.finish(code, length);
 
-        /* Adjust the baseline of the string because the startY coordinate in Minecraft is for the top of the string */
-        startY += BASELINE_OFFSET;
+        return arena.get(arenaHash, arenaKey, length);
+    }
 
-        /* Color currently selected by color code; reapplied to Tessellator instance after glBindTexture() */
-        int color = initialColor;
+    /**
+     * The implementation of cacheString() on the main thread while the off-heap arena is selected. A cache hit creates a transient
+     * Entry from the string's record with loadRecord(), and a miss adds the newly layed out Entry to the arena. Only renderString()
+     * and getStringWidth() avoid creating the Entry by reading straight from the record.
+     *
+     * @param str the string to look up and layout if it's not already cached
+     * @param layedOut if not null, the Entry for this string layed out by another thread
+     * @param layoutMisses if false, return null instead of laying out the string on a cache miss
+     * @return the string's Entry, or null if the string is not cached and layoutMisses is false
+     */
+    private Entry cacheRecord(CharSequence str, Entry layedOut, boolean layoutMisses)
+    {
+        int handle = lookupRecord(str);
+        if(handle != -1)
+        {
+            cacheHits++;
+            return loadRecord(handle, str);
+        }
 
-        /* Track which texture is currently bound to minimize the number of glBindTexture() and Tessellator.draw() calls needed */
-        int boundTextureName = 0;
+        if(!layoutMisses)
+        {
+            return null;
+        }
 
-        /*
-         * This color change will have no effect on the actual text (since colors are included in the Tessellator vertex
-         * array), however GuiEditSign of all things depends on having the current color set to white when it renders its
-         * "Edit sign message:" text. Otherwise, the sign which is rendered underneath would look too dark.
-         */
-        GL11.glColor3f(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff);
+        cacheMisses++;
+        Entry entry = (layedOut != null) ? layedOut : layoutEntry(str.toString());
+        storeRecord(entry);
+        return entry;
+    }
+
+    /**
+     * Return the total advance of a string from its arena record, laying out the string and adding it to the arena if needed.
+     *
+     * @param str the string to measure
+     * @return the total horizontal advance of the string in pixels
+     */
+    private int recordAdvance(CharSequence str)
+    {
+        int handle = lookupRecord(str);
+        if(handle != -1)
+        {
+            cacheHits++;
+            return arena.buffer(handle).getInt(arena.payload(handle) + RECORD_ADVANCE);
+        }
+
+        cacheMisses++;
+        Entry entry = layoutEntry(str.toString());
+        storeRecord(entry);
+        return entry.layout.advance;
+    }
+
+    /**
+     * Copy a newly layed out Entry into a new arena record under the key from the last call to lookupRecord(). The payload of the
+     * record starts with RECORD_HEADER bytes of ints: the total advance, the number of glyphs, the number of ints in the packed
+     * color codes, the number of pending runs, the flags, and the length of the run text. These are followed by the packed color
+     * codes (4 bytes each), the glyphs (RECORD_GLYPH_BYTES each: the stringIndex, x and the index into the glyph table as ints,
+     * then y and the advance as shorts), the pending runs (RECORD_RUN_BYTES each: the index into arenaFonts, start, limit and
+     * layout flags) and finally the run text (2 bytes per char).
+     *
+     * @param entry the layed out Entry
+     * @return the handle of the new record, or -1 if the string is too long to be stored in the arena or no room could be made for it
+     */
+    private int storeRecord(Entry entry)
+    {
+        Layout layout = entry.layout;
+        int colorLength = entry.colors.length;
+        int runCount = (layout.runs != null) ? layout.runs.length : 0;
+        int textLength = (runCount > 0) ? layout.runText.length : 0;
+        int glyphBase = RECORD_HEADER + colorLength * 4;
+        int runBase = glyphBase + layout.glyphCount * RECORD_GLYPH_BYTES;
+        int textBase = runBase + runCount * RECORD_RUN_BYTES;
+
+        int handle = arena.put(arenaHash, arenaKey, arenaKeyLength, textBase + textLength * 2);
+        if(handle == -1)
+        {
+            return -1;
+        }
+
+        ByteBuffer buffer = arena.buffer(handle);
+        int base = arena.payload(handle);
+        buffer.putInt(base + RECORD_ADVANCE, layout.advance);
+        buffer.putInt(base + RECORD_GLYPHS, layout.glyphCount);
+        buffer.putInt(base + RECORD_COLORS, colorLength);
+        buffer.putInt(base + RECORD_RUNS, runCount);
+        buffer.putInt(base + RECORD_FLAGS, entry.specialRender ? RECORD_SPECIAL_RENDER : 0);
+        buffer.putInt(base + RECORD_TEXT, textLength);
+
+        for(int index = 0; index < colorLength; index++)
+        {
+            buffer.putInt(base + RECORD_HEADER + index * 4, entry.colors[index]);
+        }
+
+        for(int index = 0; index < layout.glyphCount; index++)
+        {
+            int offset = base + glyphBase + index * RECORD_GLYPH_BYTES;
+            buffer.putInt(offset, layout.stringIndex[index]);
+            buffer.putInt(offset + 4, layout.x[index]);
+            buffer.putInt(offset + 8, glyphId(layout.font[index], layout.glyphCode[index], layout.texture[index]));
+            buffer.putShort(offset + 12, layout.y[index]);
+            buffer.putShort(offset + 14, layout.advances[index]);
+        }
+
+        for(int index = 0; index < runCount; index++)
+        {
+            Run run = layout.runs[index];
+            int offset = base + runBase + index * RECORD_RUN_BYTES;
+            buffer.putInt(offset, fontId(run.font));
+            buffer.putInt(offset + 4, run.start);
+            buffer.putInt(offset + 8, run.limit);
+            buffer.putInt(offset + 12, run.layoutFlags);
+        }
+
+        for(int index = 0; index < textLength; index++)
+        {
+            buffer.putChar(base + textBase + index * 2, layout.runText[index]);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Create a transient Entry from an arena record for the methods that need the complete Layout (i.e. the prefix widths used by
+     * sizeStringToWidth() or the visual order used by hit testing). The color codes are taken from the string itself since they
+     * are the same as in the record.
+     *
+     * @param handle the handle of the string's record
+     * @param str the string that was looked up
+     * @return a new Entry for the string, which is not cached anywhere
+     */
+    private Entry loadRecord(int handle, CharSequence str)
+    {
+        ByteBuffer buffer = arena.buffer(handle);
+        int base = arena.payload(handle);
+
+        /* The stripped text is needed by indexLayout() */
+        char text[] = str.toString().toCharArray();
+        Entry entry = new Entry();
+        int length = stripColorCodes(entry, text);
+
+        Layout layout = new Layout();
+        int glyphCount = buffer.getInt(base + RECORD_GLYPHS);
+        layout.advance = buffer.getInt(base + RECORD_ADVANCE);
+        layout.glyphCount = glyphCount;
+        layout.stringIndex = new int[glyphCount];
+        layout.x = new int[glyphCount];
+        layout.y = new short[glyphCount];
+        layout.advances = new short[glyphCount];
+        layout.glyphCode = new int[glyphCount];
+        layout.font = new Font[glyphCount];
+        layout.texture = new GlyphCache.Entry[glyphCount];
+
+        int glyphBase = base + RECORD_HEADER + buffer.getInt(base + RECORD_COLORS) * 4;
+        for(int index = 0; index < glyphCount; index++)
+        {
+            int offset = glyphBase + index * RECORD_GLYPH_BYTES;
+            int id = buffer.getInt(offset + 8);
+            layout.stringIndex[index] = buffer.getInt(offset);
+            layout.x[index] = buffer.getInt(offset + 4);
+            layout.y[index] = buffer.getShort(offset + 12);
+            layout.advances[index] = buffer.getShort(offset + 14);
+            layout.glyphCode[index] = glyphCodes[id];
+            layout.font[index] = glyphFonts[id];
+            layout.texture[index] = glyphTexture(id);
+        }
+
+        /* A string that has only been measured so far still needs its glyph images pre-rendered before it can be drawn */
+        int runCount = buffer.getInt(base + RECORD_RUNS);
+        if(runCount > 0)
+        {
+            int runBase = glyphBase + glyphCount * RECORD_GLYPH_BYTES;
+            layout.runs = new Run[runCount];
+            for(int index = 0; index < runCount; index++)
+            {
+                int offset = runBase + index * RECORD_RUN_BYTES;
+                Run run = new Run();
+                run.font = arenaFonts.get(buffer.getInt(offset));
+                run.start = buffer.getInt(offset + 4);
+                run.limit = buffer.getInt(offset + 8);
+                run.layoutFlags = buffer.getInt(offset + 12);
+                layout.runs[index] = run;
+            }
+
+            int textBase = runBase + runCount * RECORD_RUN_BYTES;
+            layout.runText = new char[buffer.getInt(base + RECORD_TEXT)];
+            for(int index = 0; index < layout.runText.length; index++)
+            {
+                layout.runText[index] = buffer.getChar(textBase + index * 2);
+            }
+        }
+
+        indexLayout(layout, text, length);
+        entry.layout = layout;
+        return entry;
+    }
+
+    /**
+     * Find a glyph in the glyph table shared by all arena records, adding it to the table if it's not there yet.
+     *
+     * @param font the font of the glyph
+     * @param glyphCode the font specific glyph code
+     * @param texture the pre-rendered glyph image if already known, or null
+     * @return the index of the glyph in the glyph table
+     */
+    private int glyphId(Font font, int glyphCode, GlyphCache.Entry texture)
+    {
+        Long key = Long.valueOf(((long) fontId(font) << 32) | (glyphCode & 0xFFFFFFFFL));
+        Integer id = glyphIds.get(key);
+        if(id == null)
+        {
+            if(glyphTableSize == glyphFonts.length)
+            {
+                glyphFonts = Arrays.copyOf(glyphFonts, glyphTableSize * 2);
+                glyphCodes = Arrays.copyOf(glyphCodes, glyphTableSize * 2);
+                glyphTextures = Arrays.copyOf(glyphTextures, glyphTableSize * 2);
+            }
+
+            id = glyphTableSize++;
+            glyphFonts[id] = font;
+            glyphCodes[id] = glyphCode;
+            glyphIds.put(key, id);
+        }
+
+        if(glyphTextures[id] == null)
+        {
+            glyphTextures[id] = texture;
+        }
+        return id;
+    }
+
+    /** @return the index of a font in arenaFonts, adding the font to the list if needed */
+    private int fontId(Font font)
+    {
+        Integer id = arenaFontIds.get(font);
+        if(id == null)
+        {
+            id = arenaFonts.size();
+            arenaFonts.add(font);
+            arenaFontIds.put(font, id);
+        }
+        return id;
+    }
+
+    /**
+     * Return the pre-rendered image of a glyph in the glyph table, looking it up in the GlyphCache the first time it's needed.
+     *
+     * @param id the index of the glyph in the glyph table
+     * @return the glyph image, or null if the glyph has not been pre-rendered yet
+     */
+    private GlyphCache.Entry glyphTexture(int id)
+    {
+        GlyphCache.Entry texture = glyphTextures[id];
+        if(texture == null)
+        {
+            texture = glyphTextures[id] = glyphCache.lookupGlyph(glyphFonts[id], glyphCodes[id]);
+        }
+        return texture;
+    }
+
+    /**
+     * Estimate how many bytes of heap memory are used by a cached string. The boundedCache uses this estimate to limit its total
+     * size. The estimate assumes a 64-bit JVM with compressed object pointers: a 12 byte object header, 4 byte references,
+     * and all objects padded to a multiple of 8 bytes.
+     *
+     * @param str the string being cached
+     * @param entry the layed out Entry object for the string
+     * @return the estimated number of bytes used by the Key, the Entry, and all the objects referenced by the Entry
+     */
+    private static int estimateSize(String str, Entry entry)
+    {
+        /* Key object (24), String object (24), the String's char array (16 + 2 bytes per char), and the Entry object itself (24) */
+        int size = 24 + 24 + 16 + str.length() * 2 + 24;
+
+        /* The packed color code array (16 + 8 bytes per code) unless it's the shared empty array; the Layout is counted by layoutCache */
+        if(entry.colors.length > 0)
+        {
+            size += 16 + entry.colors.length * 4;
+        }
+
+        /* The quadColors array (16 + 1 byte per glyph) built once the string is rendered; counted up front since the weight is fixed */
+        size += 16 + ((entry.layout.glyphCount + 7) & ~7);
+
+        return size;
+    }
+
+    /**
+     * Estimate how many bytes of heap memory are used by a cached paragraph. Uses the same assumptions about the JVM as
+     * estimateSize(String, Entry). The Entry objects of the lines are included because the Paragraph keeps them alive even after
+     * they are evicted from the string cache.
+     *
+     * @param paragraph the newly layed out Paragraph
+     * @return the estimated number of bytes used by the Paragraph, its ParagraphKey, its arrays and all of its lines
+     */
+    private static int estimateSize(Paragraph paragraph)
+    {
+        /* Paragraph object (32), ParagraphKey object (32) and the three arrays (16 + 4 bytes per line each) */
+        int size = 32 + 32 + 3 * (16 + paragraph.lines.length * 4);
+
+        /* Each line's String and Entry; the paragraph text itself is shared with the caller */
+        for(int line = 0; line < paragraph.lines.length; line++)
+        {
+            size += estimateSize(paragraph.lines[line], paragraph.entries[line]);
+        }
+
+        return size;
+    }
+
+    /**
+     * Estimate how many bytes of heap memory are used by a cached Layout. The layoutCache uses this estimate to limit its total size.
+     * Uses the same assumptions about the JVM as estimateSize(String, Entry).
+     *
+     * @param key the LayoutKey under which the layout is cached
+     * @param layout the cached Layout object
+     * @return the estimated number of bytes used by the LayoutKey, the Layout, and all of their arrays
+     */
+    private static int estimateSize(LayoutKey key, Layout layout)
+    {
+        int glyphCount = layout.glyphCount;
+
+        /* LayoutKey object (32), its char array (16 + 2 bytes per char), its styles array (16 + 4 bytes per int), and the Layout (72) */
+        int size = 32 + 16 + key.text.length * 2 + 16 + key.styles.length * 4 + 72;
 
         /*
-         * Enable GL_BLEND in case the font is drawn anti-aliased because Minecraft itself only enables blending for chat text
-         * (so it can fade out), but not GUI text or signs. Minecraft uses multiple blend functions so it has to be specified here
-         * as well for consistent blending. To reduce the overhead of OpenGL state changes and making native LWJGL calls, this
-         * function doesn't try to save/restore the blending state. Hopefully everything else that depends on blending in Minecraft
-         * will set its own state as needed.
+         * The seven packed glyph arrays (16 each): stringIndex, x and glyphCode (4 bytes per glyph each), y and advances (2 bytes per
+         * glyph each), and the font and texture references (4 bytes per glyph each); the Font and GlyphCache.Entry objects are shared
          */
-        if(antiAliasEnabled)
+        size += 7 * 16 + glyphCount * (3 * 4 + 2 * 2 + 2 * 4) + 8;
+
+        /* The prefixWidth and suffixWidth arrays (16 + 4 bytes per glyph, plus one), the spaces and the newlines arrays (16 + 4 bytes each) */
+        size += 2 * (16 + (glyphCount + 1) * 4) + 2 * 16 + (layout.spaces.length + layout.newlines.length) * 4;
+
+        /* The render arrays built once the layout is first rendered: quads (16 + 32 bytes per glyph), quadGlyph and quadTexture */
+        size += 3 * 16 + glyphCount * (32 + 4 + 4);
+
+        /* The rightToLeft array (16 + 1 byte per glyph) and the two visual order arrays (16 + 4 bytes per glyph each) for bidi text */
+        if(layout.rightToLeft != null)
         {
-            GL11.glEnable(GL11.GL_BLEND);
-            GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+            size += 16 + ((glyphCount + 7) & ~7) + 2 * (16 + glyphCount * 4);
         }
 
-        /* Using the Tessellator to queue up data in a vertex array and then draw all at once should be faster than immediate mode */
-        Tessellator tessellator = Tessellator.instance;
-        tessellator.startDrawingQuads();
-        tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+        return size;
+    }
 
-        /* The currently active font syle is needed to select the proper ASCII digit style for fast replacement */
-        int fontStyle = Font.PLAIN;
+    /**
+     * Create a new Entry for a string by removing its color codes and then either finding the Layout of the remaining text in the
+     * layoutCache, or performing a full layout of the text if it's not cached yet. The new Entry itself is not cached by this method.
+     *
+     * @param str the string to layout
+     * @return the new Entry object for str
+     */
+    private Entry layoutEntry(String str)
+    {
+        /* layoutGlyphVector() requires a char[] so create it here and pass it around to avoid duplication later on */
+        char text[] = str.toCharArray();
+
+        /* Strip all color codes from the string */
+        Entry entry = new Entry();
+        int length = stripColorCodes(entry, text);
 
-        for(int glyphIndex = 0, colorIndex = 0; glyphIndex < entry.glyphs.length; glyphIndex++)
+        /* Strings that only differ in their colors, underlines and strikethroughs can share the same Layout */
+        LayoutKey layoutKey = new LayoutKey(text, length, entry.colors);
+
+        /* Just like stringCache, the layoutCache is not synchronized and can only be used from the main thread */
+        boolean mainThread = (this.mainThread == Thread.currentThread());
+        if(mainThread && arena == null)
         {
-            /*
-             * If the original string had a color code at this glyph's position, then change the current GL color that gets added
-             * to the vertex array. Note that only the RGB component of the color is replaced by a color code; the alpha component
-             * of the original color passed into this function will remain. The while loop handles multiple consecutive color codes,
-             * in which case only the last such color code takes effect.
-             */
-            while(colorIndex < entry.colors.length && entry.glyphs[glyphIndex].stringIndex >= entry.colors[colorIndex].stringIndex)
+            entry.layout = layoutCache.get(layoutKey);
+            if(entry.layout != null)
             {
-                color = applyColorCode(entry.colors[colorIndex].colorCode, initialColor, shadowFlag);
-                fontStyle = entry.colors[colorIndex].fontStyle;
-                colorIndex++;
+                return entry;
             }
+        }
 
-            /* Select the current glyph's texture information and horizontal layout position within this string */
-            Glyph glyph = entry.glyphs[glyphIndex];
-            GlyphCache.Entry texture = glyph.texture;
-            int glyphX = glyph.x;
+        /* The runs with missing glyph images are collected by layoutFont() and layoutSegments() */
+        List<Run> runs = mainThread ? pendingRuns : workerRuns.get();
+        runs.clear();
 
-            /*
-             * Replace ASCII digits in the string with their respective glyphs; strings differing by digits are only cached once.
-             * If the new replacement glyph has a different width than the original placeholder glyph (e.g. the '1' glyph is often
-             * narrower than other digits), re-center the new glyph over the placeholder's position to minimize the visual impact
-             * of the width mismatch.
-             */
-            char c = str.charAt(glyph.stringIndex);
-            if(c >= '0' && c <= '9')
+        /* If this string only appends more text to the previous one (e.g. while typing in chat), only layout the new text at the end */
+        Layout layout = mainThread ? resumeLayout(text, length, layoutKey, entry.colors) : null;
+
+        if(layout == null)
+        {
+            /* Forget the resume point of the previous string; layoutSegments() will record new ones while laying out this string */
+            if(mainThread)
             {
-                int oldWidth = texture.width;
-                texture = digitGlyphs[fontStyle][c - '0'].texture;
-                int newWidth = texture.width;
-                glyphX += (oldWidth - newWidth) >> 1;
+                resumeIndex = -1;
             }
 
+            /* Layout the entire string, splitting it up by color codes and the Unicode bidirectional algorithm */
+            layout = new Layout();
+            List<Glyph> glyphList = new ArrayList();
+            layout.advance = (int) layoutBidiString(glyphList, text, 0, length, entry.colors);
+
             /*
-             * Make sure the OpenGL texture storing this glyph's image is bound (if not already bound). All pending glyphs in the
-             * Tessellator's vertex array must be drawn before switching textures, otherwise they would erroneously use the new
-             * texture as well.
+             * Sort the glyphs by stringIndex so they can be compared during rendering to the already sorted color codes, and pack
+             * them into arrays for efficient storage. This will apply color codes in the string's logical character order and not
+             * the visual order on screen.
              */
-            if(boundTextureName != texture.textureName)
-            {
-                tessellator.draw();
-                tessellator.startDrawingQuads();
-                tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+            packGlyphs(layout, null, 0, glyphList);
 
-                GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.textureName);
-                boundTextureName = texture.textureName;
+            /* With right-to-left text anywhere in the string, appending more text can reorder any of the existing glyphs */
+            if(mainThread && Bidi.requiresBidi(text, 0, length))
+            {
+                resumeIndex = -1;
             }
-
-            /* The divide by 2.0F is needed to align with the scaled GUI coordinate system; startX/startY are already scaled */
-            float x1 = startX + (glyphX) / 2.0F;
-            float x2 = startX + (glyphX + texture.width) / 2.0F;
-            float y1 = startY + (glyph.y) / 2.0F;
-            float y2 = startY + (glyph.y + texture.height) / 2.0F;
-
-            tessellator.addVertexWithUV(x1, y1, 0, texture.u1, texture.v1);
-            tessellator.addVertexWithUV(x1, y2, 0, texture.u1, texture.v2);
-            tessellator.addVertexWithUV(x2, y2, 0, texture.u2, texture.v2);
-            tessellator.addVertexWithUV(x2, y1, 0, texture.u2, texture.v1);
         }
+        indexLayout(layout, text, length);
+        entry.layout = layout;
 
-        /* Draw any remaining glyphs in the Tessellator's vertex array (there should be at least one glyph pending) */
-        tessellator.draw();
-
-        /* Draw strikethrough and underlines if the string uses them anywhere */
-        if(entry.specialRender)
+        /*
+         * Remember which runs still need their glyph images pre-rendered if this string is ever drawn by renderString(). Layouts
+         * from other threads keep their runs as well so getStringWidths() can publish them into the cache on the main thread.
+         */
+        if(!runs.isEmpty())
         {
-            int renderStyle = 0;
-
-            /* Use initial color passed to renderString(); disable texturing to draw solid color lines */
-            color = initialColor;
-            GL11.glDisable(GL11.GL_TEXTURE_2D);
-            tessellator.startDrawingQuads();
-            tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+            layout.runs = new Run[runs.size()];
+            layout.runs = runs.toArray(layout.runs);
+            layout.runText = text;
+        }
 
-            for(int glyphIndex = 0, colorIndex = 0; glyphIndex < entry.glyphs.length; glyphIndex++)
+        /*
+         * Do not cache layouts from other threads because the layoutCache is not synchronized. Since layoutString() replaced all of
+         * the ASCII digits in text[] with '0', the LayoutKey still compares equal to strings with any other digits.
+         */
+        if(mainThread)
+        {
+            /* The arena stores its own copy of every layout, so the layoutCache would only keep a second copy on the heap */
+            if(arena == null)
             {
-                /*
-                 * If the original string had a color code at this glyph's position, then change the current GL color that gets added
-                 * to the vertex array. The while loop handles multiple consecutive color codes, in which case only the last such
-                 * color code takes effect.
-                 */
-                while(colorIndex < entry.colors.length && entry.glyphs[glyphIndex].stringIndex >= entry.colors[colorIndex].stringIndex)
-                {
-                    color = applyColorCode(entry.colors[colorIndex].colorCode, initialColor, shadowFlag);
-                    renderStyle = entry.colors[colorIndex].renderStyle;
-                    colorIndex++;
-                }
-
-                /* Select the current glyph within this string for its layout position */
-                Glyph glyph = entry.glyphs[glyphIndex];
-
-                /* The strike/underlines are drawn beyond the glyph's width to include the extra space between glyphs */
-                int glyphSpace = glyph.advance - glyph.texture.width;
-
-                /* Draw underline under glyph if the style is enabled */
-                if((renderStyle & ColorCode.UNDERLINE) != 0)
-                {
-                    /* The divide by 2.0F is needed to align with the scaled GUI coordinate system; startX/startY are already scaled */
-                    float x1 = startX + (glyph.x - glyphSpace) / 2.0F;
-                    float x2 = startX + (glyph.x + glyph.advance) / 2.0F;
-                    float y1 = startY + (UNDERLINE_OFFSET) / 2.0F;
-                    float y2 = startY + (UNDERLINE_OFFSET + UNDERLINE_THICKNESS) / 2.0F;
-
-                    tessellator.addVertex(x1, y1, 0);
-                    tessellator.addVertex(x1, y2, 0);
-                    tessellator.addVertex(x2, y2, 0);
-                    tessellator.addVertex(x2, y1, 0);
-                }
-
-                /* Draw strikethrough in the middle of glyph if the style is enabled */
-                if((renderStyle & ColorCode.STRIKETHROUGH) != 0)
-                {
-                    /* The divide by 2.0F is needed to align with the scaled GUI coordinate system; startX/startY are already scaled */
-                    float x1 = startX + (glyph.x - glyphSpace) / 2.0F;
-                    float x2 = startX + (glyph.x + glyph.advance) / 2.0F;
-                    float y1 = startY + (STRIKETHROUGH_OFFSET) / 2.0F;
-                    float y2 = startY + (STRIKETHROUGH_OFFSET + STRIKETHROUGH_THICKNESS) / 2.0F;
-
-                    tessellator.addVertex(x1, y1, 0);
-                    tessellator.addVertex(x1, y2, 0);
-                    tessellator.addVertex(x2, y2, 0);
-                    tessellator.addVertex(x2, y1, 0);
-                }
+                layoutCache.put(layoutKey, layout, estimateSize(layoutKey, layout));
             }
-
-            /* Finish drawing the last strikethrough/underline segments */
-            tessellator.draw();
-            GL11.glEnable(GL11.GL_TEXTURE_2D);
+            lastLayoutKey = layoutKey;
+            lastLayout = layout;
         }
 
-
-        /* Return total horizontal advance (slightly wider than the bounding box, but close enough for centering strings) */
-        return entry.advance / 2;
+        return entry;
     }
 
     /**
-     * Return the width of a string in pixels. Used for centering strings inside GUI buttons.
+     * Create a Layout for a string that starts with the same text and font styles as the previously layed out string (lastLayoutKey)
+     * up to and including the first character at the resumeIndex. All glyphs before resumeIndex are taken over from lastLayout, and
+     * only the text starting at resumeIndex is layed out. Because resumeIndex is always the start of a word inside a run of text
+     * handled by layoutSegments(), the result is identical to laying out the entire string. Only strings without any right-to-left
+     * text can be resumed.
      *
-     * @param str compute the width of this string
-     * @return the width in pixels (divided by 2; this matches the scaled coordinate system used by GUIs in Minecraft)
+     * @param text the string to layout with all color codes removed
+     * @param length the length of the stripped string in text[]
+     * @param layoutKey the key for the string in layoutCache
+     * @param colors the color codes removed from the string
+     * @return the new Layout or null if the string does not continue the previous one and it needs a full layout
      */
-    public int getStringWidth(String str)
+    private Layout resumeLayout(char text[], int length, LayoutKey layoutKey, int colors[])
     {
-        /* Check for invalid arguments */
-        if(str == null || str.isEmpty())
+        /* The new string must be long enough to include the first character of the resumed word */
+        if(lastLayout == null || resumeIndex < 0 || resumeGlyphs == 0 || length <= resumeIndex)
         {
-            return 0;
+            return null;
         }
 
-        /* Make sure the entire string is cached and rendered since it will probably be used again in a renderString() call */
-        Entry entry = cacheString(str);
-
-        /* Return total horizontal advance (slightly wider than the bounding box, but close enough for centering strings) */
-        return entry.advance / 2;
-    }
+        /* The text up to and including the first character of the resumed word must be the same; all ASCII digits are considered equal */
+        char lastText[] = lastLayoutKey.text;
+        for(int index = 0; index <= resumeIndex; index++)
+        {
+            char c1 = text[index];
+            char c2 = lastText[index];
+            if(c1 != c2 && (c1 < '0' || c1 > '9' || c2 < '0' || c2 > '9'))
+            {
+                return null;
+            }
+        }
 
-    /**
-     * Return the number of characters in a string that will completly fit inside the specified width when rendered, with
-     * or without prefering to break the line at whitespace instead of breaking in the middle of a word. This private provides
-     * the real implementation of both sizeStringToWidth() and trimStringToWidth().
-     *
-     * @param str the String to analyze
-     * @param width the desired string width (in GUI coordinate system)
-     * @param breakAtSpaces set to prefer breaking line at spaces than in the middle of a word
-     * @return the number of characters from str that will fit inside width
-     */
-    private int sizeString(String str, int width, boolean breakAtSpaces)
-    {
-        /* Check for invalid arguments */
-        if(str == null || str.isEmpty())
+        /* Every font style change up to resumeIndex must be the same, and the new string cannot have any other changes before resumeIndex */
+        int lastStyles[] = lastLayoutKey.styles, styles[] = layoutKey.styles, styleCount = 0;
+        while(styleCount < lastStyles.length && (lastStyles[styleCount] >> 2) <= resumeIndex)
         {
-            return 0;
+            if(styleCount >= styles.length || styles[styleCount] != lastStyles[styleCount])
+            {
+                return null;
+            }
+            styleCount++;
+        }
+        if(styleCount < styles.length && (styles[styleCount] >> 2) <= resumeIndex)
+        {
+            return null;
         }
 
-        /* Convert the width from GUI coordinate system to pixels */
-        width += width;
+        /* Appending right-to-left text can reorder the existing text */
+        if(Bidi.requiresBidi(text, 0, length))
+        {
+            return null;
+        }
 
-        /* The glyph array for a string is sorted by the string's logical character position */
-        Glyph glyphs[] = cacheString(str).glyphs;
+        /*
+         * The text before resumeIndex is not layed out again, and the resumed word goes straight to layoutLatin() or layoutSegments(),
+         * so all of the digits have to be replaced by '0' here just like layoutString() does
+         */
+        if(digitGlyphsReady)
+        {
+            for(int index = 0; index < length; index++)
+            {
+                if(text[index] >= '0' && text[index] <= '9')
+                {
+                    text[index] = '0';
+                }
+            }
+        }
 
-        /* Index of the last whitespace found in the string; used if breakAtSpaces is true */
-        int wsIndex = -1;
+        /*
+         * All the glyphs before the resumed word are taken over from lastLayout by packGlyphs(), so glyphList only collects the
+         * new glyphs. The resume points recorded by layoutSegments() must still count the glyphs taken over.
+         */
+        List<Glyph> glyphList = new ArrayList(length - resumeIndex);
+        resumeGlyphBase = resumeGlyphs;
 
-        /* Add up the individual advance of each glyph until it exceeds the specified width */
-        int advance = 0, index = 0;
-        while(index < glyphs.length && advance <= width)
+        /*
+         * The glyphs taken over may still be missing their glyph images. A run deferred by layoutLatin() covers the whole Latin-1 text
+         * and can continue past resumeIndex; only its part before resumeIndex is kept since the new text may differ after that.
+         */
+        if(lastLayout.runs != null)
         {
-            /* Keep track of spaces if breakAtSpaces it set */
-            if(breakAtSpaces)
+            for(int index = 0; index < lastLayout.runs.length; index++)
             {
-                char c = str.charAt(glyphs[index].stringIndex);
-                if(c == ' ')
+                Run run = lastLayout.runs[index];
+                if(run.limit <= resumeIndex)
                 {
-                    wsIndex = index;
+                    pendingRuns.add(run);
                 }
-                else if(c == '\n')
+                else if(run.start < resumeIndex)
                 {
-                    wsIndex = index;
-                    break;
+                    deferRun(run.font, run.start, resumeIndex, run.layoutFlags);
                 }
             }
+        }
 
-            advance += glyphs[index].advance;
-            index++;
+        /* The font style in effect at resumeIndex remains in effect until the next font style change in the new string */
+        int style = styleCount > 0 ? lastStyles[styleCount - 1] & 3 : Font.PLAIN;
+        int styleLimit = styleCount < styles.length ? Math.min(styles[styleCount] >> 2, length) : length;
+
+        /* The resumed run continues with the same font for as long as that font can display the text */
+        Font font = resumeFont;
+        int fontLimit = font.canDisplayUpTo(text, resumeIndex, styleLimit);
+        if(fontLimit == -1)
+        {
+            fontLimit = styleLimit;
         }
 
-        /* Avoid splitting individual words if breakAtSpaces set; same test condition as in Minecraft's FontRenderer */
-        if(index < glyphs.length && wsIndex != -1 && wsIndex < index)
+        /*
+         * Layout the rest of the run, the rest of the font style segment, and then the rest of the string in the usual way. The
+         * layoutSegments() call will record new resume points, so the current one has to be saved in local variables first.
+         */
+        int advance = resumeAdvance, prefixAdvance = resumeAdvance, prefixGlyphs = resumeGlyphs;
+        if(fontLimit > resumeIndex)
         {
-            index = wsIndex;
+            /* Text typed in the default font usually stays within Latin-1 and continues on the same fast path as the previous string */
+            GlyphCache.LatinTable table = glyphCache.lookupLatinTable(style);
+            if(table.font == font && table.supports(text, resumeIndex, fontLimit))
+            {
+                advance = layoutLatin(glyphList, text, resumeIndex, fontLimit, advance, table);
+            }
+            else
+            {
+                advance = layoutSegments(glyphList, text, resumeIndex, fontLimit, advance, font);
+            }
         }
 
-        /* The string index of the last glyph that wouldn't fit gives the total desired length of the string in characters */
-        return index < glyphs.length ? glyphs[index].stringIndex : str.length();
+        /* The advance of the last glyph taken over depends on the position of the first glyph in the resumed word */
+        int lastAdvance = (glyphList.size() > 0 ? glyphList.get(0).x : prefixAdvance) - lastLayout.x[prefixGlyphs - 1];
+
+        if(styleLimit > fontLimit)
+        {
+            advance = layoutString(glyphList, text, fontLimit, styleLimit, Font.LAYOUT_LEFT_TO_RIGHT, advance, style);
+        }
+        if(length > styleLimit)
+        {
+            advance = layoutStyle(glyphList, text, styleLimit, length, Font.LAYOUT_LEFT_TO_RIGHT, advance, colors);
+        }
+
+        resumeGlyphBase = 0;
+
+        /* Sort the new glyphs by stringIndex and pack them after the glyphs taken over, just like layoutEntry() does */
+        Layout layout = new Layout();
+        layout.advance = advance;
+        packGlyphs(layout, lastLayout, prefixGlyphs, glyphList);
+        layout.advances[prefixGlyphs - 1] = (short) lastAdvance;
+
+        return layout;
     }
 
     /**
-     * Return the number of characters in a string that will completly fit inside the specified width when rendered.
+     * Sort the Glyph objects collected while laying out a string by their stringIndex and copy them into the packed per-glyph arrays
+     * of a new Layout. The sort is stable so glyphs belonging to the same character stay in the order in which they were layed out.
      *
-     * @param str the String to analyze
-     * @param width the desired string width (in GUI coordinate system)
-     * @return the number of characters from str that will fit inside width
+     * @param layout the new Layout which receives the packed glyph arrays
+     * @param prefix if not null, the first prefixCount glyphs of this Layout are copied unchanged in front of the glyphs in glyphList;
+     *        every one of them must have a lower stringIndex than any glyph in glyphList
+     * @param prefixCount the number of glyphs to copy from prefix
+     * @param glyphList the glyphs to pack; the list is sorted in place
      */
-    public int sizeStringToWidth(String str, int width)
+    private static void packGlyphs(Layout layout, Layout prefix, int prefixCount, List<Glyph> glyphList)
     {
-        return sizeString(str, width, true);
+        Collections.sort(glyphList);
+
+        int count = prefixCount + glyphList.size();
+        layout.glyphCount = count;
+        layout.stringIndex = new int[count];
+        layout.x = new int[count];
+        layout.y = new short[count];
+        layout.advances = new short[count];
+        layout.glyphCode = new int[count];
+        layout.font = new Font[count];
+        layout.texture = new GlyphCache.Entry[count];
+
+        if(prefixCount > 0)
+        {
+            System.arraycopy(prefix.stringIndex, 0, layout.stringIndex, 0, prefixCount);
+            System.arraycopy(prefix.x, 0, layout.x, 0, prefixCount);
+            System.arraycopy(prefix.y, 0, layout.y, 0, prefixCount);
+            System.arraycopy(prefix.advances, 0, layout.advances, 0, prefixCount);
+            System.arraycopy(prefix.glyphCode, 0, layout.glyphCode, 0, prefixCount);
+            System.arraycopy(prefix.font, 0, layout.font, 0, prefixCount);
+            System.arraycopy(prefix.texture, 0, layout.texture, 0, prefixCount);
+        }
+
+        for(int index = prefixCount; index < count; index++)
+        {
+            Glyph glyph = glyphList.get(index - prefixCount);
+            layout.stringIndex[index] = glyph.stringIndex;
+            layout.x[index] = glyph.x;
+            layout.y[index] = (short) glyph.y;
+            layout.advances[index] = (short) glyph.advance;
+            layout.glyphCode[index] = glyph.glyphCode;
+            layout.font[index] = glyph.font;
+            layout.texture[index] = glyph.texture;
+        }
     }
 
     /**
-     * Trim a string so that it fits in the specified width when rendered, optionally reversing the string
+     * Replace every run of consecutive ASCII digits in a string with a single '0' character. Digits following a section mark
+     * are part of a color code and are never considered part of a run. The resulting string is layed out as the template for
+     * all strings that differ only in their numbers.
      *
-     * @param str the String to trim
-     * @param width the desired string width (in GUI coordinate system)
-     * @param reverse if true, the returned string will also be reversed
-     * @return the trimmed and optionally reversed string
+     * @param str the string to collapse
+     * @return the collapsed string, or str itself if it has no runs of two or more digits
      */
-    public String trimStringToWidth(String str, int width, boolean reverse)
+    private static String collapseDigitRuns(String str)
     {
-        int length = sizeString(str, width, false);
-        str = str.substring(0, length);
+        StringBuilder builder = null;
+        boolean colorCode = false, digitRun = false;
 
-        if(reverse)
+        for(int index = 0; index < str.length(); index++)
         {
-            str = (new StringBuilder(str)).reverse().toString();
+            char c = str.charAt(index);
+            if(c >= '0' && c <= '9' && !colorCode)
+            {
+                /* Skip the second and following digits in a run; the StringBuilder is only created once the first such digit is found */
+                if(digitRun)
+                {
+                    if(builder == null)
+                    {
+                        builder = new StringBuilder(str.length());
+                        builder.append(str, 0, index);
+                    }
+                    continue;
+                }
+                c = '0';
+                digitRun = true;
+            }
+            else
+            {
+                digitRun = false;
+            }
+
+            if(builder != null)
+            {
+                builder.append(c);
+            }
+            colorCode = (c == '\u00A7');
         }
 
-        return str;
+        return builder != null ? builder.toString() : str;
     }
 
     /**
-     * Apply a new vertex color to the Tessellator instance based on the numeric chat color code. Only the RGB component of the
-     * color is replaced by a color code; the alpha component of the original default color will remain.
+     * Expand a template layout (which has one '0' glyph for every run of digits) into a layout for a specific string with the
+     * actual digits. Each run of digits becomes a slot that is filled with one copy of the '0' placeholder per digit, spaced by
+     * the zeroAdvance[] of its font style, which is exactly how layoutString() would have layed out those digits. Every glyph
+     * to the right of a slot is moved over by the width of the extra digits, and renderString() substitutes the actual digits
+     * the same way it does for any other string. No text layout is performed; this is only simple arithmetic on the already cached glyph positions. All
+     * of the glyph indices involved are indices into the stripped strings (i.e. with no color codes).
      *
-     * @param colorCode the chat color code as a number 0-15 or -1 to reset the default color
-     * @param color the default color used when the colorCode is -1
-     * @param shadowFlag ir true, the color code will select a darker version of the color suitable for drop shadows
-     * @return the new RGBA color set by this function
+     * @param str the actual string being rendered or measured
+     * @param template the cached template layout for str
+     * @return template itself if str has no runs of two or more digits, otherwise the instance for str from the instanceCache (or
+     *         a new uncached Entry on other threads)
      */
-    private int applyColorCode(int colorCode, int color, boolean shadowFlag)
+    private Entry instantiateTemplate(CharSequence str, Entry template)
     {
-        /* A -1 color code indicates a reset to the initial color passed into renderString() */
-        if(colorCode != -1)
+        int length = str.length(), runCount = 0;
+        boolean expand = false;
+
+        /* First pass counts the digit runs; stringIndex values in the template only need adjusting if a run has two or more digits */
+        boolean colorCode = false, digitRun = false;
+        for(int index = 0; index < length; index++)
         {
-            colorCode = shadowFlag ? colorCode + 16 : colorCode;
-            color = colorTable[colorCode] & 0xffffff | color & 0xff000000;
+            char c = str.charAt(index);
+            boolean digit = (c >= '0' && c <= '9' && !colorCode);
+            if(digit && !digitRun)
+            {
+                runCount++;
+            }
+            else if(digit)
+            {
+                expand = true;
+            }
+            digitRun = digit;
+            colorCode = (c == '\u00A7');
         }
 
-        Tessellator.instance.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
-        return color;
-    }
+        if(!expand)
+        {
+            return template;
+        }
+
+        /* Strings with the same lengths of digit runs (and the same template) share a single instance on the main thread */
+        boolean mainThreadCall = (mainThread == Thread.currentThread());
+        if(mainThreadCall)
+        {
+            lookupInstanceKey.setString(str, false);
+            Entry instance = instanceCache.get(lookupInstanceKey);
+            lookupInstanceKey.str = null;
+
+            if(instance != null)
+            {
+                return instance;
+            }
+        }
+
+        /* The new Entry has the color codes of the actual string; text[] holds the stripped string with the actual digits */
+        Entry entry = new Entry();
+        String string = str.toString();
+        char text[] = string.toCharArray();
+        int stripLength = stripColorCodes(entry, text);
 
-    /**
-     * Add a string to the string cache by perform full layout on it, remembering its glyph positions, and making sure that
-     * every font glyph used by the string is pre-rendering. If this string has already been cached, then simply return its
-     * existing Entry from the cahe. Note that for caching purposes, this method considers two strings to be identical if they
-     * only differ in their ASCII digits; the renderString() method performs fast glyph substitution based on the actual digits
-     * in the string at the time.
-     *
-     * @param str this String will be layed out and added to the cache (or looked up, if alraedy cached)
-     * @return the string's cache entry containing all the glyph positions
-     */
-    private Entry cacheString(String str)
-    {
         /*
-         * New Key object allocated only if the string was not found in the StringCache using lookupKey. This variable must
-         * be outside the (entry == null) code block to have a temporary strong reference between the time when the Key is
-         * added to stringCache and added to weakRefCache.
+         * Second pass records the position and length of each run in the stripped string and the position of its placeholder in
+         * the stripped template. Every color code located before a character shifts its stripped position by two.
          */
-        Key key;
-
-        /* Either a newly created Entry object for the string, or the cached Entry if the string is already in the cache */
-        Entry entry = null;
+        int runStart[] = new int[runCount];
+        int runLength[] = new int[runCount];
+        int runTemplateIndex[] = new int[runCount];
+        int run = -1, skipped = 0, colorIndex = 0, colorCount = ColorCode.count(entry.colors);
 
-        /* Don't perform a cache lookup from other threads because the stringCache is not synchronized */
-        if(mainThread == Thread.currentThread())
+        colorCode = digitRun = false;
+        for(int index = 0; index < length; index++)
         {
-            /* Re-use existing lookupKey to avoid allocation overhead on the critical rendering path */
-            lookupKey.str = str;
+            while(colorIndex < colorCount && ColorCode.stringIndex(entry.colors, colorIndex) < index)
+            {
+                colorIndex++;
+            }
 
-            /* If this string is already in the cache, simply return the cached Entry object */
-            entry = stringCache.get(lookupKey);
+            char c = str.charAt(index);
+            boolean digit = (c >= '0' && c <= '9' && !colorCode);
+            if(digit && !digitRun)
+            {
+                run++;
+                runStart[run] = index - 2 * colorIndex;
+                runTemplateIndex[run] = runStart[run] - skipped;
+                runLength[run] = 1;
+            }
+            else if(digit)
+            {
+                runLength[run]++;
+                skipped++;
+            }
+            digitRun = digit;
+            colorCode = (c == '\u00A7');
         }
 
-        /* If string is not cached (or not on main thread) then layout the string */
-        if(entry == null)
+        /*
+         * Third pass finds the placeholder glyph of each run and computes how much wider the actual digits are than the placeholder.
+         * The currently active font style is needed to select the proper advance of the '0' glyph.
+         */
+        Layout templateLayout = template.layout;
+        int slotX[] = new int[runCount];
+        int slotDelta[] = new int[runCount];
+        int fontStyle = Font.PLAIN, extraGlyphs = 0;
+        run = 0;
+
+        for(int glyphIndex = 0; glyphIndex < templateLayout.glyphCount && run < runCount; glyphIndex++)
         {
-            /* layoutGlyphVector() requires a char[] so create it here and pass it around to avoid duplication later on */
-            char text[] = str.toCharArray();
+            int templateIndex = templateLayout.stringIndex[glyphIndex];
+            fontStyle = fontStyleAt(template, templateIndex);
+
+            while(run < runCount && runTemplateIndex[run] < templateIndex)
+            {
+                run++;
+            }
 
-            /* Strip all color codes from the string */
-            entry = new Entry();
-            int length = stripColorCodes(entry, str, text);
+            if(run < runCount && runTemplateIndex[run] == templateIndex)
+            {
+                slotX[run] = templateLayout.x[glyphIndex];
+                slotDelta[run] = (runLength[run] - 1) * zeroAdvance[fontStyle];
+                extraGlyphs += runLength[run] - 1;
+                run++;
+            }
+        }
 
-            /* Layout the entire string, splitting it up by color codes and the Unicode bidirectional algorithm */
-            List<Glyph> glyphList = new ArrayList();
-            entry.advance = (int) layoutBidiString(glyphList, text, 0, length, entry.colors);
+        /* The template's glyph images must be pre-rendered before its textures are copied into an instance that will be rendered */
+        if(rasterizeGlyphs && templateLayout.runs != null && mainThreadCall)
+        {
+            rasterizeLayout(templateLayout);
+        }
 
-            /* Convert the accumulated Glyph list to an array for efficient storage */
-            entry.glyphs = new Glyph[glyphList.size()];
-            entry.glyphs = glyphList.toArray(entry.glyphs);
+        /* Fourth pass builds the new glyph arrays, shifting glyphs to the right of each slot and filling in the digit glyphs */
+        int count = templateLayout.glyphCount + extraGlyphs;
+        Layout layout = new Layout();
+        layout.glyphCount = count;
+        layout.stringIndex = new int[count];
+        layout.x = new int[count];
+        layout.y = new short[count];
+        layout.advances = new short[count];
+        layout.glyphCode = new int[count];
+        layout.font = new Font[count];
+        layout.texture = new GlyphCache.Entry[count];
+        layout.advance = template.layout.advance;
+        for(run = 0; run < runCount; run++)
+        {
+            layout.advance += slotDelta[run];
+        }
 
-            /*
-             * Sort Glyph array by stringIndex so it can be compared during rendering to the already sorted ColorCode array.
-             * This will apply color codes in the string's logical character order and not the visual order on screen.
-             */
-            Arrays.sort(entry.glyphs);
+        run = 0;
+        skipped = 0;
 
-            /* Do some post-processing on each Glyph object */
-            int colorIndex = 0, shift = 0;
-            for(int glyphIndex = 0; glyphIndex < entry.glyphs.length; glyphIndex++)
+        for(int glyphIndex = 0, newIndex = 0; glyphIndex < templateLayout.glyphCount; glyphIndex++)
+        {
+            int templateIndex = templateLayout.stringIndex[glyphIndex], templateX = templateLayout.x[glyphIndex];
+
+            /* Track the total number of extra digits from all the runs preceding this glyph in the string */
+            while(run < runCount && runTemplateIndex[run] < templateIndex)
             {
-                Glyph glyph = entry.glyphs[glyphIndex];
+                skipped += runLength[run] - 1;
+                run++;
+            }
 
-                /*
-                 * Adjust the string index for each glyph to point into the original string with unstripped color codes. The while
-                 * loop is necessary to handle multiple consecutive color codes with no visible glyphs between them. These new adjusted
-                 * stringIndex can now be compared against the color stringIndex during rendering. It also allows lookups of ASCII
-                 * digits in the original string for fast glyph replacement during rendering.
-                 */
-                while(colorIndex < entry.colors.length && glyph.stringIndex + shift >= entry.colors[colorIndex].stringIndex)
+            /* Glyphs to the right of a slot must move over by the difference in width between the actual digits and the placeholder */
+            int shift = 0;
+            for(int slot = 0; slot < runCount; slot++)
+            {
+                if(slotX[slot] < templateX)
                 {
-                    shift += 2;
-                    colorIndex++;
+                    shift += slotDelta[slot];
                 }
-                glyph.stringIndex += shift;
             }
 
             /*
-             * Do not actually cache the string when called from other threads because GlyphCache.cacheGlyphs() will not have been called
-             * and the cache entry does not contain any texture data needed for rendering.
+             * Fill the slot with one placeholder per digit if this glyph is the placeholder for a run of digits. Only the last one
+             * keeps the template's advance, which also covers the gap to the left edge of the next glyph image.
              */
-            if(mainThread == Thread.currentThread())
+            if(run < runCount && runTemplateIndex[run] == templateIndex)
             {
-                /* Wrap the string in a Key object (to change how ASCII digits are compared) and cache it along with the newly generated Entry */
-                key = new Key();
+                int digitAdvance = zeroAdvance[fontStyleAt(template, templateIndex)];
+                int x = templateX + shift, lastIndex = runStart[run] + runLength[run] - 1;
+                for(int index = runStart[run]; index <= lastIndex; index++)
+                {
+                    layout.stringIndex[newIndex] = index;
+                    layout.texture[newIndex] = templateLayout.texture[glyphIndex];
+                    layout.font[newIndex] = templateLayout.font[glyphIndex];
+                    layout.glyphCode[newIndex] = templateLayout.glyphCode[glyphIndex];
+                    layout.x[newIndex] = x;
+                    layout.y[newIndex] = templateLayout.y[glyphIndex];
+                    layout.advances[newIndex] = (short) (index < lastIndex ? digitAdvance : templateLayout.advances[glyphIndex]);
+                    newIndex++;
+                    x += digitAdvance;
+                }
 
-                /* Make a copy of the original String to avoid creating a strong reference to it */
-                key.str = new String(str);
-                entry.keyRef = new WeakReference(key);
-                stringCache.put(key, entry);
+                /* Same as the third pass; any other glyph for the placeholder character is copied like an ordinary glyph */
+                skipped += runLength[run] - 1;
+                run++;
+            }
+            else
+            {
+                layout.stringIndex[newIndex] = templateIndex + skipped;
+                layout.texture[newIndex] = templateLayout.texture[glyphIndex];
+                layout.font[newIndex] = templateLayout.font[glyphIndex];
+                layout.glyphCode[newIndex] = templateLayout.glyphCode[glyphIndex];
+                layout.x[newIndex] = templateX + shift;
+                layout.y[newIndex] = templateLayout.y[glyphIndex];
+                layout.advances[newIndex] = templateLayout.advances[glyphIndex];
+                newIndex++;
             }
         }
 
-        /* Do not access weakRefCache from other threads since it is unsynchronized, and for a newly created entry, the keyRef is null */
-        if(mainThread == Thread.currentThread())
+        /* Glyphs copied from a template that was only measured so far get their images from the template's runs */
+        layout.runs = template.layout.runs;
+        layout.runText = template.layout.runText;
+        indexLayout(layout, text, stripLength);
+
+        entry.layout = layout;
+
+        /* Like the boundedCache, the instanceCache holds strong references to its keys so there is no need to copy the String */
+        if(mainThreadCall)
         {
-            /*
-             * Add the String passed into this method to the stringWeakMap so it keeps the Key reference live as long as the String is in use.
-             * If an existing Entry was already found in the stringCache, it's possible that its Key has already been garbage collected. The
-             * code below checks for this to avoid adding (str, null) entries into weakRefCache. Note that if a new Key object was created, it
-             * will still be live because of the strong reference created by the "key" variable.
-             */
-            Key oldKey = entry.keyRef.get();
-            if(oldKey != null)
-            {
-                weakRefCache.put(str, oldKey);
-            }
-            lookupKey.str = null;
+            Key key = new Key();
+            key.setString(string, false);
+            instanceCache.put(key, entry, estimateSize(string, entry));
         }
 
-        /* Return either the existing or the newly created entry so it can be accessed immediately */
         return entry;
     }
 
     /**
-     * Remove all color codes from the string by shifting data in the text[] array over so it overwrites them. The value of each
-     * color code and its position (relative to the new stripped text[]) is also recorded in a separate array. The color codes must
-     * be removed for a font's context sensitive glyph substitution to work (like Arabic letter middle form).
+     * Find the font style in effect at a position in the stripped string. This is the font style of the last color code located
+     * at or before that position.
+     *
+     * @param entry the cached Entry with the color codes that were removed from the original string
+     * @param stripIndex the index into the stripped string
+     * @return combination of Font.PLAIN, Font.BOLD, and Font.ITALIC
+     */
+    private static int fontStyleAt(Entry entry, int stripIndex)
+    {
+        int count = toStringIndex(entry, stripIndex) - stripIndex >> 1;
+        return count > 0 ? ColorCode.fontStyle(entry.colors, count - 1) : Font.PLAIN;
+    }
+
+    /**
+     * Remove all color codes from the string in a single pass that compacts the remaining characters of text[] in place, so they
+     * overwrite the codes. The position of each color code (relative to the new stripped text[]) and the style in effect after it
+     * are packed into the Entry.colors array as described by ColorCode. The color codes must be removed for a font's context
+     * sensitive glyph substitution to work (like Arabic letter middle form).
      *
-     * @param colorList each color change in the string will add a new ColorCode object to this list
-     * @param str the string from which color codes will be stripped
-     * @param text on input it should be an identical copy of str; on output it will be string with all color codes removed
+     * @param cacheEntry receives the packed color codes and has its specialRender flag set if needed
+     * @param text on input it should be a copy of the string; on output it will be string with all color codes removed
      * @return the length of the new stripped string in text[]; actual text.length will not change because the array is not reallocated
      */
-    private int stripColorCodes(Entry cacheEntry, String str, char text[])
+    private int stripColorCodes(Entry cacheEntry, char text[])
     {
-        List<ColorCode> colorList = new ArrayList();
-        int start = 0, shift = 0, next;
+        int colors[] = ColorCode.NONE;
+        int length = text.length, stripLength = 0, count = 0;
 
-        byte fontStyle = Font.PLAIN;
-        byte renderStyle = 0;
-        byte colorCode = -1;
+        int fontStyle = Font.PLAIN;
+        int renderStyle = 0;
+        int colorCode = -1;
 
-        /* Search for section mark characters indicating the start of a color code (but only if followed by at least one character) */
-        while((next = str.indexOf('\u00A7', start)) != -1 && next + 1 < str.length())
+        for(int index = 0; index < length; index++)
         {
             /*
-             * Remove the two char color code from text[] by shifting the remaining data in the array over on top of it.
-             * The "start" and "next" variables all contain offsets into the original unmodified "str" string. The "shift"
-             * variable keeps track of how many characters have been sripped so far, and it's used to compute offsets into
-             * the text[] array based on the start/next offsets in the original string.
+             * Characters are only ever moved towards the start of text[], so the characters not yet examined are never overwritten.
+             * A section mark at the very end of the string is not a color code and remains in the stripped text.
              */
-            System.arraycopy(text, next - shift + 2, text, next - shift, text.length - next - 2);
+            char c = text[index];
+            if(c != '\u00A7' || index + 1 == length)
+            {
+                text[stripLength++] = c;
+                continue;
+            }
 
             /* Decode escape code used in the string and change current font style / color based on it */
-            int code = "0123456789abcdefklmnor".indexOf(Character.toLowerCase(str.charAt(next + 1)));
+            int code = formatCode(text[++index]);
             switch(code)
             {
                 /* Random style; TODO: NOT IMPLEMENTED YET */
@@ -907,33 +5093,60 @@ public class StringCache
                 default:
                     if(code >= 0 && code <= 15)
                     {
-                        colorCode = (byte) code;
+                        colorCode = code;
                         fontStyle = Font.PLAIN; // This may be a bug in Minecraft's original FontRenderer
                         renderStyle = 0;        // This may be a bug in Minecraft's original FontRenderer
                     }
                     break;
             }
 
-            /* Create a new ColorCode object that tracks the position of the code in the original string */
-            ColorCode entry = new ColorCode();
-            entry.stringIndex = next;
-            entry.stripIndex = next - shift;
-            entry.colorCode = colorCode;
-            entry.fontStyle = fontStyle;
-            entry.renderStyle = renderStyle;
-            colorList.add(entry);
-
-            /* Resume search for section marks after skipping this one */
-            start = next + 2;
-            shift += 2;
+            /* Record where the code was removed from the stripped text and the style in effect after it; unknown codes are removed too */
+            if(count == colors.length)
+            {
+                colors = Arrays.copyOf(colors, Math.max(8, count * 2));
+            }
+            colors[count++] = stripLength;
+            colors[count++] = ColorCode.pack(colorCode, fontStyle, renderStyle);
         }
 
-        /* Convert the accumulated ColorCode list to an array for efficient storage */
-        cacheEntry.colors = new ColorCode[colorList.size()];
-        cacheEntry.colors = colorList.toArray(cacheEntry.colors);
+        /* Trim the packed array to the actual number of color codes for efficient storage */
+        cacheEntry.colors = (count == colors.length) ? colors : Arrays.copyOf(colors, count);
 
         /* Return the new length of the string after all color codes were removed */
-        return text.length - shift;
+        return stripLength;
+    }
+
+    /**
+     * Decode the character following a section mark in a string.
+     *
+     * @param c the character after the section mark
+     * @return the position of c in "0123456789abcdefklmnor" ignoring case, or -1 if it's not a known format code
+     */
+    private static int formatCode(char c)
+    {
+        /* Other characters only matter if they become one of the ASCII codes when converted to lower case */
+        if(c >= 128)
+        {
+            c = Character.toLowerCase(c);
+        }
+
+        return c < 128 ? FORMAT_CODES[c] : -1;
+    }
+
+    /** @return the FORMAT_CODES lookup table */
+    private static byte[] createFormatCodes()
+    {
+        byte table[] = new byte[128];
+        Arrays.fill(table, (byte) -1);
+
+        String codes = "0123456789abcdefklmnor";
+        for(int code = 0; code < codes.length(); code++)
+        {
+            table[codes.charAt(code)] = (byte) code;
+            table[Character.toUpperCase(codes.charAt(code))] = (byte) code;
+        }
+
+        return table;
     }
 
     /**
@@ -946,7 +5159,7 @@ public class StringCache
      * @param limit the (offset + length) at which to stop performing the layout
      * @return the total advance (horizontal distance) of this string
      */
-    private int layoutBidiString(List<Glyph> glyphList, char text[], int start, int limit, ColorCode colors[])
+    private int layoutBidiString(List<Glyph> glyphList, char text[], int start, int limit, int colors[])
     {
         int advance = 0;
 
@@ -1003,22 +5216,13 @@ public class StringCache
         }
     }
 
-    private int layoutStyle(List<Glyph> glyphList, char text[], int start, int limit, int layoutFlags, int advance, ColorCode colors[])
+    private int layoutStyle(List<Glyph> glyphList, char text[], int start, int limit, int layoutFlags, int advance, int colors[])
     {
         int currentFontStyle = Font.PLAIN;
 
-        /* Find ColorCode object with stripIndex <= start; that will have the font style in effect at the beginning of this text run */
-        int colorIndex = Arrays.binarySearch(colors, start);
-
-        /*
-         * If no exact match is found, Arrays.binarySearch() returns (-(insertion point) - 1) where the insertion point is the index
-         * of the first ColorCode with a stripIndex > start. In that case, colorIndex is adjusted to select the immediately preceding
-         * ColorCode whose stripIndex < start.
-         */
-        if(colorIndex < 0)
-        {
-            colorIndex = -colorIndex - 2;
-        }
+        /* Find the last color code with stripIndex <= start; that will have the font style in effect at the beginning of this text run */
+        int colorIndex = ColorCode.search(colors, start);
+        int colorCount = ColorCode.count(colors);
 
         /* Break up the string into segments, where each segment has the same font style in use */
         while(start < limit)
@@ -1026,26 +5230,27 @@ public class StringCache
             int next = limit;
 
             /* In case of multiple consecutive color codes with the same stripIndex, select the last one which will have active font style */
-            while(colorIndex >= 0 && colorIndex < (colors.length - 1) && colors[colorIndex].stripIndex == colors[colorIndex + 1].stripIndex)
+            while(colorIndex >= 0 && colorIndex < (colorCount - 1) && ColorCode.stripIndex(colors, colorIndex) == ColorCode.stripIndex(colors, colorIndex + 1))
             {
                 colorIndex++;
             }
 
-            /* If an actual ColorCode object was found (colorIndex within the array), use its fontStyle for layout and render */
-            if(colorIndex >= 0 && colorIndex < colors.length)
+            /* If an actual color code was found (colorIndex within the array), use its fontStyle for layout and render */
+            if(colorIndex >= 0 && colorIndex < colorCount)
             {
-                currentFontStyle = colors[colorIndex].fontStyle;
+                currentFontStyle = ColorCode.fontStyle(colors, colorIndex);
             }
 
             /*
-             * Search for the next ColorCode that uses a different fontStyle than the current one. If found, the stripIndex of that
-             * new code is the split point where the string must be split into a separately styled segment.
+             * Search for the next color code that uses a different fontStyle than the current one. If found, the stripIndex of that
+             * new code is the split point where the string must be split into a separately styled segment. A code past the end of
+             * this run (i.e. in a later bidi run) must not extend the segment, or the text after the run would be layed out twice.
              */
-            while(++colorIndex < colors.length)
+            while(++colorIndex < colorCount)
             {
-                if(colors[colorIndex].fontStyle != currentFontStyle)
+                if(ColorCode.fontStyle(colors, colorIndex) != currentFontStyle)
                 {
-                    next = colors[colorIndex].stripIndex;
+                    next = Math.min(ColorCode.stripIndex(colors, colorIndex), limit);
                     break;
                 }
             }
@@ -1095,6 +5300,20 @@ public class StringCache
             }
         }
 
+        /*
+         * Strings made up entirely of Latin-1 characters that the default font can display are layed out directly from the glyph
+         * metrics in the GlyphCache.LatinTable. The table is not synchronized and holds textures, so this is only done on the main
+         * thread; everything else goes through the full font selection and text layout below.
+         */
+        if((layoutFlags & Font.LAYOUT_RIGHT_TO_LEFT) == 0 && mainThread == Thread.currentThread())
+        {
+            GlyphCache.LatinTable table = glyphCache.lookupLatinTable(style);
+            if(table.supports(text, start, limit))
+            {
+                return layoutLatin(glyphList, text, start, limit, advance, table);
+            }
+        }
+
         /* Break the string up into segments, where each segment can be displayed using a single font */
         while(start < limit)
         {
@@ -1142,19 +5361,30 @@ public class StringCache
     private int layoutFont(List<Glyph> glyphList, char text[], int start, int limit, int layoutFlags, int advance, Font font)
     {
         /*
-         * Ensure that all glyphs used by the string are pre-rendered and cached in the texture. Only safe to do so from the
-         * main thread because cacheGlyphs() can crash LWJGL if it makes OpenGL calls from any other thread. In this case,
-         * cacheString() will also not insert the entry into the stringCache since it may be incomplete if lookupGlyph()
-         * returns null for any glyphs not yet stored in the glyph cache.
+         * Left-to-right text in scripts that don't need shaping context across whitespace can be assembled from individually shaped
+         * words. The segmentCache is not synchronized, and the cached Segments need the glyph textures, so only do this on the main thread.
          */
-        if(mainThread == Thread.currentThread())
+        if((layoutFlags & Font.LAYOUT_RIGHT_TO_LEFT) == 0 && mainThread == Thread.currentThread() && isContextFree(text, start, limit))
         {
-            glyphCache.cacheGlyphs(font, text, start, limit, layoutFlags);
+            return layoutSegments(glyphList, text, start, limit, advance, font);
         }
 
         /* Creating a GlyphVector takes care of all language specific OpenType glyph substitutions and positionings */
         GlyphVector vector = glyphCache.layoutGlyphVector(font, text, start, limit, layoutFlags);
 
+        /*
+         * Ensure that all glyphs used by the string are pre-rendered and cached in the texture if the string is about to be
+         * rendered. Only safe to do so from the main thread because cacheGlyphs() can crash LWJGL if it makes OpenGL calls
+         * from any other thread. In this case, cacheString() will also not insert the entry into the stringCache since it
+         * may be incomplete if lookupGlyph() returns null for any glyphs not yet stored in the glyph cache. Strings that are
+         * only measured don't need any glyph images, so pre-rendering is deferred until they are first passed to renderString().
+         */
+        boolean mainThread = (this.mainThread == Thread.currentThread()), missing = false;
+        if(mainThread && rasterizeGlyphs)
+        {
+            glyphCache.cacheGlyphs(font, vector);
+        }
+
         /*
          * Extract all needed information for each glyph from the GlyphVector so it won't be needed for actual rendering.
          * Note that initially, glyph.start holds the character index into the stripped text array. But after the entire
@@ -1179,10 +5409,19 @@ public class StringCache
              */
             glyph = new Glyph();
             glyph.stringIndex = start + vector.getGlyphCharIndex(index);
-            glyph.texture = glyphCache.lookupGlyph(font, vector.getGlyphCode(index));
+            glyph.font = font;
+            glyph.glyphCode = vector.getGlyphCode(index);
+            glyph.texture = glyphCache.lookupGlyph(font, glyph.glyphCode);
             glyph.x = position.x;
             glyph.y = position.y;
             glyphList.add(glyph);
+            missing |= (glyph.texture == null);
+        }
+
+        /* Remember this run if any of its glyph images still have to be pre-rendered */
+        if(missing)
+        {
+            deferRun(font, start, limit, layoutFlags);
         }
 
         /* Compute the advance position of the last glyph (or only glyph) since it can't be done by the above loop */
@@ -1195,4 +5434,364 @@ public class StringCache
         /* Return the overall horizontal advance in pixels from the start of string */
         return advance;
     }
+
+    /**
+     * Allocate new Glyph objects and add them to the glyph list using only the precomputed glyph metrics of Latin-1 characters. The
+     * result is identical to calling layoutFont() with the default font, but without creating a GlyphVector. If any glyph images
+     * are not yet pre-rendered, they are either cached right away (when called from renderString()) or the run is deferred. Since
+     * the text is split at the same word boundaries as layoutSegments() would use, the start of the last word is recorded as the
+     * resume point for resumeLayout().
+     *
+     * @param glyphList all newly created Glyph objects are added to this list
+     * @param text the string to layout
+     * @param start the offset into text at which to start the layout
+     * @param limit the (offset + length) at which to stop performing the layout
+     * @param advance the horizontal advance (i.e. X position) returned by previous call to layoutString()
+     * @param table the LatinTable supporting every character in the text
+     * @return the advance (horizontal distance) of this string plus the advance passed in as an argument
+     */
+    private int layoutLatin(List<Glyph> glyphList, char text[], int start, int limit, int advance, GlyphCache.LatinTable table)
+    {
+        Font font = table.font;
+        int first = glyphList.size();
+        boolean missing = false, whitespace = false;
+
+        Glyph glyph = null;
+        for(int index = start; index < limit; index++)
+        {
+            char c = text[index];
+            int x = advance + table.x[c];
+
+            /* Remember the start of each word inside the run, exactly like layoutSegments() does */
+            if(whitespace && !Character.isWhitespace(c))
+            {
+                resumeIndex = index;
+                resumeAdvance = advance;
+                resumeGlyphs = resumeGlyphBase + glyphList.size();
+                resumeFont = font;
+            }
+            whitespace = Character.isWhitespace(c);
+
+            /* Compute horizontal advance for the previous glyph based on this glyph's position */
+            if(glyph != null)
+            {
+                glyph.advance = x - glyph.x;
+            }
+
+            /* The glyph image may have been pre-rendered since the table was built */
+            if(table.texture[c] == null)
+            {
+                table.texture[c] = glyphCache.lookupGlyph(font, table.glyphCode[c]);
+                missing |= (table.texture[c] == null);
+            }
+
+            glyph = new Glyph();
+            glyph.stringIndex = index;
+            glyph.font = font;
+            glyph.glyphCode = table.glyphCode[c];
+            glyph.texture = table.texture[c];
+            glyph.x = x;
+            glyph.y = table.y[c];
+            glyphList.add(glyph);
+
+            advance += table.advance[c];
+        }
+
+        /* Compute the advance of the last glyph since it can't be done by the above loop */
+        if(glyph != null)
+        {
+            glyph.advance = advance - glyph.x;
+        }
+
+        if(missing)
+        {
+            /* Pre-rendering the glyph images requires a GlyphVector; this only happens until every Latin-1 glyph has been rendered once */
+            if(rasterizeGlyphs)
+            {
+                glyphCache.cacheGlyphs(font, glyphCache.layoutGlyphVector(font, text, start, limit, Font.LAYOUT_LEFT_TO_RIGHT));
+                for(int index = first; index < glyphList.size(); index++)
+                {
+                    glyph = glyphList.get(index);
+                    char c = text[glyph.stringIndex];
+                    if(table.texture[c] == null)
+                    {
+                        table.texture[c] = glyphCache.lookupGlyph(font, glyph.glyphCode);
+                    }
+                    glyph.texture = table.texture[c];
+                }
+            }
+            else
+            {
+                deferRun(font, start, limit, Font.LAYOUT_LEFT_TO_RIGHT);
+            }
+        }
+
+        return advance;
+    }
+
+    /**
+     * Check if a range of text consists only of characters whose glyphs never depend on any text outside of the word they are in.
+     * This is true for Latin, Greek, Cyrillic and Armenian (everything before the Hebrew block at U+0590) as well as for CJK ideographs,
+     * Kana, and precomposed Hangul syllables. Scripts like Arabic (letters join with their neighbors) or the Indic scripts (reordering
+     * and conjuncts) always get shaped in full.
+     *
+     * @param text the string to check
+     * @param start the offset into text at which to start checking
+     * @param limit the (offset + length) at which to stop checking
+     * @return true if the text can be split into words which are shaped separately
+     */
+    private static boolean isContextFree(char text[], int start, int limit)
+    {
+        for(int index = start; index < limit; index++)
+        {
+            char c = text[index];
+            if(c >= '\u0590' && !(c >= '\u2E80' && c <= '\u9FFF') && !(c >= '\uAC00' && c <= '\uD7A3') &&
+                !(c >= '\uF900' && c <= '\uFAFF') && !(c >= '\uFF00' && c <= '\uFFEF'))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Allocate new Glyph objects and add them to the glyph list by splitting a left-to-right run of text into words and placing the
+     * shaped Segment of each word one after the other. Every word is only shaped the first time it is seen in a font; after that its
+     * Segment comes from the segmentCache. Since fractional font metrics are disabled, every glyph advance is a whole number of pixels
+     * and the glyph positions are identical to those from shaping the entire run at once.
+     *
+     * @param glyphList all newly created Glyph objects are added to this list
+     * @param text the string to layout
+     * @param start the offset into text at which to start the layout
+     * @param limit the (offset + length) at which to stop performing the layout
+     * @param advance the horizontal advance (i.e. X position) returned by previous call to layoutString()
+     * @param font the Font used to shape each word
+     * @return the advance (horizontal distance) of this string plus the advance passed in as an argument
+     */
+    private int layoutSegments(List<Glyph> glyphList, char text[], int start, int limit, int advance, Font font)
+    {
+        Glyph glyph = null;
+
+        while(start < limit)
+        {
+            /* Each segment is a single word followed by all of its trailing whitespace */
+            int next = start;
+            while(next < limit && !Character.isWhitespace(text[next]))
+            {
+                next++;
+            }
+            while(next < limit && Character.isWhitespace(text[next]))
+            {
+                next++;
+            }
+
+            /* A Segment shaped while only measuring text may be missing glyph images which have since been pre-rendered */
+            Segment segment = shapeSegment(text, start, next, font);
+            if(!segment.rasterized && !resolveSegment(segment, font))
+            {
+                deferRun(font, start, next, Font.LAYOUT_LEFT_TO_RIGHT);
+            }
+
+            for(int index = 0; index < segment.x.length; index++)
+            {
+                int x = advance + segment.x[index];
+
+                /* Compute horizontal advance for the previous glyph based on this glyph's position */
+                if(glyph != null)
+                {
+                    glyph.advance = x - glyph.x;
+                }
+
+                glyph = new Glyph();
+                glyph.stringIndex = start + segment.charIndex[index];
+                glyph.texture = segment.texture[index];
+                glyph.font = font;
+                glyph.glyphCode = segment.glyphCode[index];
+                glyph.x = x;
+                glyph.y = segment.y[index];
+                glyphList.add(glyph);
+            }
+
+            advance += segment.advance;
+
+            /* Remember the start of each word inside the run as a point where resumeLayout() can continue laying out a longer string */
+            if(next < limit)
+            {
+                resumeIndex = next;
+                resumeAdvance = advance;
+                resumeGlyphs = resumeGlyphBase + glyphList.size();
+                resumeFont = font;
+            }
+
+            start = next;
+        }
+
+        /* Compute the advance of the last glyph since it can't be done by the above loop */
+        if(glyph != null)
+        {
+            glyph.advance = advance - glyph.x;
+        }
+
+        return advance;
+    }
+
+    /**
+     * Return the shaped Segment for a single word, either from the segmentCache or by creating a new GlyphVector for the word and adding
+     * the resulting Segment to the cache. Must only be called from the main thread.
+     *
+     * @param text the string containing the word
+     * @param start the offset of the word within text
+     * @param limit the (offset + length) of the word within text
+     * @param font the Font used to shape the word
+     * @return the Segment with the glyph positions relative to the start of the word
+     */
+    private Segment shapeSegment(char text[], int start, int limit, Font font)
+    {
+        lookupSegmentKey.set(font, text, start, limit);
+        Segment segment = segmentCache.get(lookupSegmentKey);
+        lookupSegmentKey.text = null;
+
+        if(segment != null)
+        {
+            return segment;
+        }
+
+        /* Shape the word on its own and pre-render any of its glyphs not yet in the glyph cache if the string is about to be rendered */
+        GlyphVector vector = glyphCache.layoutGlyphVector(font, text, start, limit, Font.LAYOUT_LEFT_TO_RIGHT);
+        if(rasterizeGlyphs)
+        {
+            glyphCache.cacheGlyphs(font, vector);
+        }
+
+        int numGlyphs = vector.getNumGlyphs();
+        segment = new Segment();
+        segment.charIndex = new int[numGlyphs];
+        segment.x = new int[numGlyphs];
+        segment.y = new int[numGlyphs];
+        segment.glyphCode = new int[numGlyphs];
+        segment.texture = new GlyphCache.Entry[numGlyphs];
+        segment.rasterized = true;
+
+        for(int index = 0; index < numGlyphs; index++)
+        {
+            Point position = vector.getGlyphPixelBounds(index, null, 0, 0).getLocation();
+            segment.charIndex[index] = vector.getGlyphCharIndex(index);
+            segment.x[index] = position.x;
+            segment.y[index] = position.y;
+            segment.glyphCode[index] = vector.getGlyphCode(index);
+            segment.texture[index] = glyphCache.lookupGlyph(font, segment.glyphCode[index]);
+            segment.rasterized &= (segment.texture[index] != null);
+        }
+        segment.advance = (int) vector.getGlyphPosition(numGlyphs).getX();
+
+        /* SegmentKey object (32), its char array (16 + 2 bytes per char), the Segment (32) and its five arrays (16 + 4 bytes per glyph each) */
+        lookupSegmentKey.set(font, text, start, limit);
+        SegmentKey key = lookupSegmentKey.copy();
+        lookupSegmentKey.text = null;
+        segmentCache.put(key, segment, 32 + 16 + (limit - start) * 2 + 32 + 5 * (16 + numGlyphs * 4));
+
+        return segment;
+    }
+
+    /**
+     * Fill in any missing textures in a Segment using glyph images that have been pre-rendered since the Segment was shaped.
+     *
+     * @param segment the Segment with missing textures
+     * @param font the Font used to shape the Segment
+     * @return true if the Segment now has every texture
+     */
+    private boolean resolveSegment(Segment segment, Font font)
+    {
+        segment.rasterized = true;
+        for(int index = 0; index < segment.texture.length; index++)
+        {
+            if(segment.texture[index] == null)
+            {
+                segment.texture[index] = glyphCache.lookupGlyph(font, segment.glyphCode[index]);
+                segment.rasterized &= (segment.texture[index] != null);
+            }
+        }
+
+        return segment.rasterized;
+    }
+
+    /**
+     * Remember a run of text with glyph images that still have to be pre-rendered. The run is added to pendingRuns on the main thread,
+     * or to the workerRuns of any other thread.
+     *
+     * @param font the font used to layout the run
+     * @param start the offset into the stripped text at which the run starts
+     * @param limit the (offset + length) at which the run ends
+     * @param layoutFlags either Font.LAYOUT_RIGHT_TO_LEFT or Font.LAYOUT_LEFT_TO_RIGHT
+     */
+    private void deferRun(Font font, int start, int limit, int layoutFlags)
+    {
+        Run run = new Run();
+        run.font = font;
+        run.start = start;
+        run.limit = limit;
+        run.layoutFlags = layoutFlags;
+        (mainThread == Thread.currentThread() ? pendingRuns : workerRuns.get()).add(run);
+    }
+
+    /**
+     * Pre-render the glyph images of a Layout that was so far only used for measuring text, and fill in the missing glyph textures.
+     * The runs are layed out again to get a GlyphVector for GlyphCache.cacheGlyphs(), but this only happens once per Layout and
+     * only for text that is actually rendered.
+     *
+     * @param layout the Layout with missing glyph images
+     */
+    private void rasterizeLayout(Layout layout)
+    {
+        for(int index = 0; index < layout.runs.length; index++)
+        {
+            Run run = layout.runs[index];
+            GlyphVector vector = glyphCache.layoutGlyphVector(run.font, layout.runText, run.start, run.limit, run.layoutFlags);
+            glyphCache.cacheGlyphs(run.font, vector);
+        }
+
+        for(int index = 0; index < layout.glyphCount; index++)
+        {
+            if(layout.texture[index] == null)
+            {
+                layout.texture[index] = glyphCache.lookupGlyph(layout.font[index], layout.glyphCode[index]);
+            }
+        }
+
+        layout.runs = null;
+        layout.runText = null;
+    }
+
+    /**
+     * Pre-render the glyph images of an arena record that was so far only used for measuring text, the same as rasterizeLayout()
+     * does for a Layout. The textures themselves are found by glyphTexture() as the glyphs are drawn. Afterwards the record's run
+     * count is set to zero; the space used by the runs and the run text simply remains unused until the record is evicted.
+     *
+     * @param buffer the slab holding the record
+     * @param base the offset of the record's payload within buffer
+     */
+    private void rasterizeRecord(ByteBuffer buffer, int base)
+    {
+        int runCount = buffer.getInt(base + RECORD_RUNS);
+        int runBase = base + RECORD_HEADER + buffer.getInt(base + RECORD_COLORS) * 4 + buffer.getInt(base + RECORD_GLYPHS) * RECORD_GLYPH_BYTES;
+        int textBase = runBase + runCount * RECORD_RUN_BYTES;
+
+        char text[] = new char[buffer.getInt(base + RECORD_TEXT)];
+        for(int index = 0; index < text.length; index++)
+        {
+            text[index] = buffer.getChar(textBase + index * 2);
+        }
+
+        for(int index = 0; index < runCount; index++)
+        {
+            int offset = runBase + index * RECORD_RUN_BYTES;
+            Font font = arenaFonts.get(buffer.getInt(offset));
+            GlyphVector vector = glyphCache.layoutGlyphVector(font, text, buffer.getInt(offset + 4), buffer.getInt(offset + 8),
+                buffer.getInt(offset + 12));
+            glyphCache.cacheGlyphs(font, vector);
+        }
+
+        buffer.putInt(base + RECORD_RUNS, 0);
+    }
 }
@@ -0,0 +1,375 @@
+/*
+ * Minecraft OpenType Font Support Mod
+ *
+ * Copyright (C) 2012 Wojciech Stryjewski <thvortex@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>..
+ */
+
+package betterfonts;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import net.minecraft.client.renderer.GLAllocation;
+import net.minecraft.client.renderer.Tessellator;
+
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.EXTFramebufferObject;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GLContext;
+
+/**
+ * A rectangular block of mostly static text (i.e. the options menu, a server list entry or a book page) which is drawn into an
+ * offscreen texture once and then drawn as a single textured quad for as long as its text stays the same. The GUI code calls
+ * begin(), then drawString() for every string in the panel exactly like it would call StringCache.renderString(), and finally
+ * end() to draw the panel. The strings passed in are compared against the ones from the previous frame, and the texture is only
+ * drawn again if any of them changed, if the GUI scale changed, or if the StringCache was flushed (i.e. because of a font change).
+ *
+ * The offscreen texture needs the EXT_framebuffer_object extension and OpenGL 1.4 (for glBlendFuncSeparate). Without them, or if
+ * the framebuffer can't be created for any other reason, end() simply draws every string directly with StringCache.renderString().
+ *
+ * This class is not synchronized; just like the rest of StringCache, it must only be used from the main thread.
+ */
+public class TextPanel
+{
+    /** Set to false the first time a framebuffer can't be used; every panel falls back on drawing its strings directly after that. */
+    private static boolean framebufferSupported = true;
+
+    /** True once the OpenGL capabilities were checked by the first panel drawn into a texture. */
+    private static boolean capabilitiesChecked = false;
+
+    /** The StringCache used to draw the strings of this panel. */
+    private final StringCache stringCache;
+
+    /** Width of the panel (in GUI coordinate system). */
+    private final int width;
+
+    /** Height of the panel (in GUI coordinate system). */
+    private final int height;
+
+    /** The strings of the panel in the order drawString() was called; only the first count elements are in use. */
+    private String strings[] = new String[16];
+
+    /** The x coordinate of every string relative to the panel's upper-left corner. */
+    private int stringX[] = new int[16];
+
+    /** The y coordinate of every string relative to the panel's upper-left corner. */
+    private int stringY[] = new int[16];
+
+    /** The initial color of every string. */
+    private int stringColor[] = new int[16];
+
+    /** The shadowFlag of every string. */
+    private boolean stringShadow[] = new boolean[16];
+
+    /** Number of strings passed to drawString() in the last frame. */
+    private int count = 0;
+
+    /** Number of strings passed to drawString() since begin() was called in the current frame. */
+    private int next = 0;
+
+    /** Set if any string of the current frame differs from the same string in the previous frame. */
+    private boolean changed = true;
+
+    /** The GUI scale factor (pixels per GUI unit) passed to begin() in the current frame. */
+    private int scaleFactor;
+
+    /** The GUI scale factor that the texture was allocated for, or zero if there is no texture. */
+    private int textureScale = 0;
+
+    /** The value of StringCache.generation when the texture was last drawn. */
+    private int generation;
+
+    /** The OpenGL texture holding the drawn panel, or zero if it's not allocated. */
+    private int textureName = 0;
+
+    /** The framebuffer object used to draw into textureName, or zero if it's not allocated. */
+    private int framebuffer = 0;
+
+    /** A single integer direct buffer with native byte ordering used for returning values from glGenTextures(). */
+    private IntBuffer singleIntBuffer = GLAllocation.createDirectIntBuffer(1);
+
+    /**
+     * Create a new empty panel. Nothing is allocated in OpenGL until the panel is first drawn.
+     *
+     * @param stringCache the StringCache used to draw the panel's strings
+     * @param width the width of the panel (in GUI coordinate system)
+     * @param height the height of the panel (in GUI coordinate system)
+     */
+    public TextPanel(StringCache stringCache, int width, int height)
+    {
+        this.stringCache = stringCache;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Start a new frame of the panel. Every string of the panel has to be passed to drawString() after this, in the same order every
+     * frame, followed by a call to end().
+     *
+     * @param scaleFactor the current GUI scale factor (i.e. ScaledResolution.getScaleFactor()) which sets the texture resolution
+     */
+    public void begin(int scaleFactor)
+    {
+        this.scaleFactor = Math.max(scaleFactor, 1);
+        next = 0;
+    }
+
+    /**
+     * Add a string to the panel in the current frame; the arguments are the same as for StringCache.renderString(). Nothing is drawn
+     * until end() is called. Passing the same String objects every frame makes the comparison with the previous frame faster.
+     *
+     * @param str the string to draw; it can contain color codes
+     * @param x the x coordinate relative to the panel's upper-left corner
+     * @param y the y coordinate relative to the panel's upper-left corner
+     * @param initialColor the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
+     * @param shadowFlag if true, color codes are replaces by a darker version used for drop shadows
+     */
+    public void drawString(String str, int x, int y, int initialColor, boolean shadowFlag)
+    {
+        if(str == null || str.isEmpty())
+        {
+            return;
+        }
+
+        /* A string that is the same as the one in the same position last frame leaves the panel unchanged */
+        if(next < count && stringX[next] == x && stringY[next] == y && stringColor[next] == initialColor &&
+            stringShadow[next] == shadowFlag && (strings[next] == str || strings[next].equals(str)))
+        {
+            next++;
+            return;
+        }
+
+        if(next == strings.length)
+        {
+            int length = next * 2;
+            strings = Arrays.copyOf(strings, length);
+            stringX = Arrays.copyOf(stringX, length);
+            stringY = Arrays.copyOf(stringY, length);
+            stringColor = Arrays.copyOf(stringColor, length);
+            stringShadow = Arrays.copyOf(stringShadow, length);
+        }
+
+        strings[next] = str;
+        stringX[next] = x;
+        stringY[next] = y;
+        stringColor[next] = initialColor;
+        stringShadow[next] = shadowFlag;
+        next++;
+        changed = true;
+    }
+
+    /**
+     * Finish the current frame and draw the panel. The texture is only drawn again if the panel's strings changed since the last
+     * frame; otherwise this draws one textured quad.
+     *
+     * @param x the x coordinate of the panel's upper-left corner
+     * @param y the y coordinate of the panel's upper-left corner
+     */
+    public void end(int x, int y)
+    {
+        /* Fewer strings than in the last frame also changes the panel; the strings no longer drawn are released */
+        if(next < count)
+        {
+            Arrays.fill(strings, next, count, null);
+            changed = true;
+        }
+        count = next;
+
+        if(changed || textureScale != scaleFactor || generation != stringCache.getGeneration())
+        {
+            if(!drawTexture())
+            {
+                drawStrings(x, y);
+                return;
+            }
+        }
+
+        drawQuad(x, y);
+    }
+
+    /**
+     * Delete the texture and framebuffer of this panel. The panel can still be used afterwards; it allocates a new texture the
+     * next time it's drawn.
+     */
+    public void delete()
+    {
+        if(framebuffer != 0)
+        {
+            EXTFramebufferObject.glDeleteFramebuffersEXT(framebuffer);
+            framebuffer = 0;
+        }
+        if(textureName != 0)
+        {
+            GL11.glDeleteTextures(textureName);
+            textureName = 0;
+        }
+        textureScale = 0;
+        changed = true;
+    }
+
+    /** @return the width of the panel (in GUI coordinate system) */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /** @return the height of the panel (in GUI coordinate system) */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Draw every string of the panel directly to the screen; used whenever the panel can't be drawn into a texture.
+     *
+     * @param x the x coordinate of the panel's upper-left corner
+     * @param y the y coordinate of the panel's upper-left corner
+     */
+    private void drawStrings(int x, int y)
+    {
+        for(int index = 0; index < count; index++)
+        {
+            stringCache.renderString(strings[index], x + stringX[index], y + stringY[index], stringColor[index], stringShadow[index]);
+        }
+    }
+
+    /**
+     * Draw all the strings of the panel into its texture, allocating the texture and the framebuffer first if needed.
+     *
+     * @return true if the texture is ready to be drawn; false if framebuffers can't be used and the strings must be drawn directly
+     */
+    private boolean drawTexture()
+    {
+        if(!capabilitiesChecked)
+        {
+            ContextCapabilities capabilities = GLContext.getCapabilities();
+            framebufferSupported = capabilities.GL_EXT_framebuffer_object && capabilities.OpenGL14;
+            capabilitiesChecked = true;
+        }
+        if(!framebufferSupported || width <= 0 || height <= 0)
+        {
+            return false;
+        }
+
+        /* The texture has one texel for every screen pixel, so it has to be allocated again if the GUI scale changes */
+        if(textureScale != scaleFactor && !allocateTexture())
+        {
+            delete();
+            framebufferSupported = false;
+            System.out.println("BetterFonts cannot use framebuffer objects; text panels are drawn directly");
+            return false;
+        }
+
+        /* Save the state changed below; the framebuffer itself is not saved since Minecraft only ever draws to the default one */
+        GL11.glPushAttrib(GL11.GL_VIEWPORT_BIT | GL11.GL_ENABLE_BIT | GL11.GL_COLOR_BUFFER_BIT);
+        EXTFramebufferObject.glBindFramebufferEXT(EXTFramebufferObject.GL_FRAMEBUFFER_EXT, framebuffer);
+        GL11.glViewport(0, 0, width * scaleFactor, height * scaleFactor);
+
+        /* Same orientation as the GUI's own projection, with the panel's upper-left corner at the origin */
+        GL11.glMatrixMode(GL11.GL_PROJECTION);
+        GL11.glPushMatrix();
+        GL11.glLoadIdentity();
+        GL11.glOrtho(0, width, height, 0, -1, 1);
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
+        GL11.glPushMatrix();
+        GL11.glLoadIdentity();
+
+        GL11.glClearColor(0, 0, 0, 0);
+        GL11.glClear(GL11.GL_COLOR_BUFFER_BIT);
+        GL11.glDisable(GL11.GL_DEPTH_TEST);
+
+        stringCache.setOffscreenRender(true);
+        for(int index = 0; index < count; index++)
+        {
+            stringCache.renderString(strings[index], stringX[index], stringY[index], stringColor[index], stringShadow[index]);
+        }
+        stringCache.setOffscreenRender(false);
+
+        GL11.glMatrixMode(GL11.GL_PROJECTION);
+        GL11.glPopMatrix();
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
+        GL11.glPopMatrix();
+        EXTFramebufferObject.glBindFramebufferEXT(EXTFramebufferObject.GL_FRAMEBUFFER_EXT, 0);
+        GL11.glPopAttrib();
+
+        changed = false;
+        generation = stringCache.getGeneration();
+        return true;
+    }
+
+    /**
+     * Allocate (or re-allocate) the texture for the current GUI scale and attach it to the panel's framebuffer object.
+     *
+     * @return true if the framebuffer is complete and can be drawn into
+     */
+    private boolean allocateTexture()
+    {
+        if(textureName == 0)
+        {
+            singleIntBuffer.clear();
+            GLAllocation.generateTextureNames(singleIntBuffer);
+            textureName = singleIntBuffer.get(0);
+        }
+
+        /* The texture is always drawn with one texel per pixel, so there is no need for mipmaps or filtering */
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureName);
+        GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, width * scaleFactor, height * scaleFactor, 0,
+            GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+
+        if(framebuffer == 0)
+        {
+            framebuffer = EXTFramebufferObject.glGenFramebuffersEXT();
+        }
+        EXTFramebufferObject.glBindFramebufferEXT(EXTFramebufferObject.GL_FRAMEBUFFER_EXT, framebuffer);
+        EXTFramebufferObject.glFramebufferTexture2DEXT(EXTFramebufferObject.GL_FRAMEBUFFER_EXT,
+            EXTFramebufferObject.GL_COLOR_ATTACHMENT0_EXT, GL11.GL_TEXTURE_2D, textureName, 0);
+        int status = EXTFramebufferObject.glCheckFramebufferStatusEXT(EXTFramebufferObject.GL_FRAMEBUFFER_EXT);
+        EXTFramebufferObject.glBindFramebufferEXT(EXTFramebufferObject.GL_FRAMEBUFFER_EXT, 0);
+
+        textureScale = scaleFactor;
+        return status == EXTFramebufferObject.GL_FRAMEBUFFER_COMPLETE_EXT;
+    }
+
+    /**
+     * Draw the panel's texture as a single quad. The texture holds colors premultiplied by their alpha (see StringCache.beginRender())
+     * so it's blended with GL_ONE instead of GL_SRC_ALPHA.
+     *
+     * @param x the x coordinate of the panel's upper-left corner
+     * @param y the y coordinate of the panel's upper-left corner
+     */
+    private void drawQuad(int x, int y)
+    {
+        GL11.glEnable(GL11.GL_BLEND);
+        GL11.glBlendFunc(GL11.GL_ONE, GL11.GL_ONE_MINUS_SRC_ALPHA);
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureName);
+
+        /* The bottom row of the framebuffer is the first row of the texture, so the texture is upside down */
+        Tessellator tessellator = Tessellator.instance;
+        tessellator.startDrawingQuads();
+        tessellator.setColorRGBA(255, 255, 255, 255);
+        tessellator.addVertexWithUV(x, y, 0, 0, 1);
+        tessellator.addVertexWithUV(x, y + height, 0, 0, 0);
+        tessellator.addVertexWithUV(x + width, y + height, 0, 1, 0);
+        tessellator.addVertexWithUV(x + width, y, 0, 1, 1);
+        tessellator.draw();
+
+        /* Restore the blend function used by Minecraft (and by StringCache) for everything else */
+        GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+    }
+}
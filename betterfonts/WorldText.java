@@ -0,0 +1,542 @@
+/*
+ * Minecraft OpenType Font Support Mod
+ *
+ * Copyright (C) 2012 Wojciech Stryjewski <thvortex@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>..
+ */
+
+package betterfonts;
+
+import java.util.Arrays;
+
+import net.minecraft.client.renderer.Tessellator;
+
+import org.lwjgl.opengl.GL11;
+
+/**
+ * Collects the text shown in the world (i.e. sign text and nameplates) over an entire frame and draws all of it at once, with a
+ * single Tessellator batch for every glyph cache texture instead of one or more batches for every string. Strings beyond a
+ * maximum distance or outside of the camera's view cone are culled as soon as they are added, and strings too small on screen
+ * to be readable are drawn as a single translucent bar instead of their individual glyphs.
+ *
+ * The renderer calls begin() with the camera's orientation, then add() or addBillboard() for every string in the world, and finally
+ * end() with the modelview matrix set up for drawing in world coordinates relative to the camera. All positions passed to add()
+ * are relative to the camera as well.
+ *
+ * This class is not synchronized; just like the rest of StringCache, it must only be used from the main thread.
+ */
+public class WorldText
+{
+    /** Default maximum distance (in blocks) from the camera at which strings are drawn; the same as for tile entities. */
+    private static final float DEFAULT_MAX_DISTANCE = 64.0F;
+
+    /** Default height (in screen pixels) of a line of text below which it's drawn as a bar. */
+    private static final float DEFAULT_BAR_PIXELS = 5.0F;
+
+    /** The alpha of a bar relative to the string's color; roughly how much of the bar's area the glyphs would have covered. */
+    private static final float BAR_ALPHA = 0.4F;
+
+    /** Top of the bar relative to the top of the string (in GUI coordinate system). */
+    private static final int BAR_TOP = 2;
+
+    /** Bottom of the bar relative to the top of the string (in GUI coordinate system); the bar spans about the x-height of the font. */
+    private static final int BAR_BOTTOM = 7;
+
+    /** Bit in stringFlags[] set if the string is centered horizontally on its origin. */
+    private static final byte FLAG_CENTERED = 1;
+
+    /** Bit in stringFlags[] set if the string is drawn as a bar. */
+    private static final byte FLAG_BAR = 2;
+
+    /** Number of floats in transforms[] for every string: the origin, the right axis and the down axis. */
+    private static final int TRANSFORM_SIZE = 9;
+
+    /** The StringCache used to layout the strings and to pre-render their glyph images. */
+    private final StringCache stringCache;
+
+    /** Strings further away from the camera than this (in blocks) are culled. */
+    private float maxDistance = DEFAULT_MAX_DISTANCE;
+
+    /** Strings whose line height on screen is less than this many pixels are drawn as bars. */
+    private float barPixels = DEFAULT_BAR_PIXELS;
+
+    /** Unit vector in the direction the camera is looking. */
+    private float lookX, lookY, lookZ;
+
+    /** Unit vector pointing to the right of the screen. */
+    private float rightX, rightY, rightZ;
+
+    /** Unit vector pointing to the top of the screen. */
+    private float upX, upY, upZ;
+
+    /** Sine and cosine of the half-angle of the view cone, which encloses the entire view frustum including its corners. */
+    private float coneSin, coneCos;
+
+    /** The height in screen pixels of something one block tall and one block away in front of the camera. */
+    private float pixelScale;
+
+    /** The strings added in the current frame; only the first count elements are in use. */
+    private String strings[] = new String[64];
+
+    /** The TRANSFORM_SIZE floats placing each string in the world. */
+    private float transforms[] = new float[64 * TRANSFORM_SIZE];
+
+    /** The initial color of each string. */
+    private int stringColors[] = new int[64];
+
+    /** The FLAG_CENTERED and FLAG_BAR bits of each string. */
+    private byte stringFlags[] = new byte[64];
+
+    /** Number of strings added in the current frame. */
+    private int count = 0;
+
+    /** Number of strings culled in the current frame. */
+    private int culled = 0;
+
+    /** Number of strings drawn as bars in the current frame. */
+    private int bars = 0;
+
+    /** The transform of the string whose quads are currently passed to addQuad(); see transforms[]. */
+    private float originX, originY, originZ, axisRightX, axisRightY, axisRightZ, axisDownX, axisDownY, axisDownZ;
+
+    /** One batch of quads for every texture used in any frame so far; only the first batchCount elements are in use. */
+    private Batch batches[] = new Batch[4];
+
+    /** Number of elements in batches[]. */
+    private int batchCount = 0;
+
+    /** The Batch that received the last quad; usually also receives the next one since glyphs of a string share a texture. */
+    private Batch lastBatch;
+
+    /** The quads drawn with a single texture, already transformed into world coordinates. The buffers are re-used every frame. */
+    static private class Batch
+    {
+        /** The OpenGL texture of all the quads, or zero for untextured quads (i.e. bars, underlines and strikethroughs). */
+        public int textureName;
+
+        /** The four vertices of every quad, each one as x, y, z, u, v. */
+        public float vertices[] = new float[256 * 20];
+
+        /** The RGBA color of every quad. */
+        public int colors[] = new int[256];
+
+        /** Number of quads in this batch in the current frame. */
+        public int quadCount;
+    }
+
+    /**
+     * Create a new world text renderer.
+     *
+     * @param stringCache the StringCache used to layout the strings
+     */
+    public WorldText(StringCache stringCache)
+    {
+        this.stringCache = stringCache;
+    }
+
+    /**
+     * Set the distance from the camera beyond which strings are no longer drawn.
+     *
+     * @param maxDistance the maximum distance in blocks
+     */
+    public void setMaxDistance(float maxDistance)
+    {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Set the smallest height of a line of text on screen at which strings are still drawn with their glyphs. Smaller strings are
+     * drawn as a translucent bar, and strings less than one pixel tall are not drawn at all. Zero disables the bars.
+     *
+     * @param barPixels the line height in screen pixels
+     */
+    public void setBarPixels(float barPixels)
+    {
+        this.barPixels = barPixels;
+    }
+
+    /**
+     * Start collecting the strings of a new frame.
+     *
+     * @param lookX the x component of the direction the camera is looking in
+     * @param lookY the y component of the direction the camera is looking in
+     * @param lookZ the z component of the direction the camera is looking in
+     * @param upX the x component of the camera's up direction
+     * @param upY the y component of the camera's up direction
+     * @param upZ the z component of the camera's up direction
+     * @param fovY the vertical field of view in degrees
+     * @param aspect the width of the screen divided by its height
+     * @param screenHeight the height of the screen in pixels
+     */
+    public void begin(float lookX, float lookY, float lookZ, float upX, float upY, float upZ, float fovY, float aspect, int screenHeight)
+    {
+        float length = (float) Math.sqrt(lookX * lookX + lookY * lookY + lookZ * lookZ);
+        this.lookX = lookX / length;
+        this.lookY = lookY / length;
+        this.lookZ = lookZ / length;
+
+        /* The right vector is perpendicular to both; the up vector is made perpendicular to the look vector in case it wasn't */
+        rightX = this.lookY * upZ - this.lookZ * upY;
+        rightY = this.lookZ * upX - this.lookX * upZ;
+        rightZ = this.lookX * upY - this.lookY * upX;
+        length = (float) Math.sqrt(rightX * rightX + rightY * rightY + rightZ * rightZ);
+        rightX /= length;
+        rightY /= length;
+        rightZ /= length;
+        this.upX = rightY * this.lookZ - rightZ * this.lookY;
+        this.upY = rightZ * this.lookX - rightX * this.lookZ;
+        this.upZ = rightX * this.lookY - rightY * this.lookX;
+
+        /* The view cone has to reach the corners of the screen, not just the top and bottom edges */
+        double tanHalfFov = Math.tan(Math.toRadians(fovY / 2));
+        double coneAngle = Math.atan(tanHalfFov * Math.sqrt(1 + aspect * aspect));
+        coneSin = (float) Math.sin(coneAngle);
+        coneCos = (float) Math.cos(coneAngle);
+        pixelScale = (float) (screenHeight / (2 * tanHalfFov));
+
+        count = culled = bars = 0;
+    }
+
+    /**
+     * Add a string to the current frame, unless it's culled. The string is layed out in its own plane exactly like in the GUI
+     * coordinate system, where each GUI unit along the x and y axis is mapped to the rightAxis and downAxis vectors in the world.
+     *
+     * @param str the string to draw; it can contain color codes
+     * @param x the x coordinate of the string's origin relative to the camera
+     * @param y the y coordinate of the string's origin relative to the camera
+     * @param z the z coordinate of the string's origin relative to the camera
+     * @param rightAxisX the x component of the world vector for one GUI unit to the right
+     * @param rightAxisY the y component of the world vector for one GUI unit to the right
+     * @param rightAxisZ the z component of the world vector for one GUI unit to the right
+     * @param downAxisX the x component of the world vector for one GUI unit down
+     * @param downAxisY the y component of the world vector for one GUI unit down
+     * @param downAxisZ the z component of the world vector for one GUI unit down
+     * @param initialColor the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component.
+     *        Just like with FontRenderer.drawString(), a color with an alpha below 4 (i.e. 0 for black on signs) is made fully opaque.
+     * @param centered if true, the origin is at the top center of the string; otherwise it's at the top left corner
+     * @return true if the string will be drawn; false if it was culled
+     */
+    public boolean add(String str, float x, float y, float z, float rightAxisX, float rightAxisY, float rightAxisZ,
+        float downAxisX, float downAxisY, float downAxisZ, int initialColor, boolean centered)
+    {
+        if(str == null || str.isEmpty())
+        {
+            return false;
+        }
+
+        float distanceSquared = x * x + y * y + z * z;
+        if(distanceSquared > maxDistance * maxDistance)
+        {
+            culled++;
+            return false;
+        }
+
+        /*
+         * The string's exact width isn't known without a cache lookup, so it's enclosed in a bounding sphere that assumes every
+         * character is as wide as the line is tall. The sphere is outside of the view cone if its center is further away from
+         * the cone's surface than its radius: that distance is perpendicular * cos(coneAngle) - depth * sin(coneAngle).
+         */
+        float rightLength = (float) Math.sqrt(rightAxisX * rightAxisX + rightAxisY * rightAxisY + rightAxisZ * rightAxisZ);
+        float downLength = (float) Math.sqrt(downAxisX * downAxisX + downAxisY * downAxisY + downAxisZ * downAxisZ);
+        float radius = (str.length() + 1) * StringCache.LINE_HEIGHT * Math.max(rightLength, downLength);
+        float depth = x * lookX + y * lookY + z * lookZ;
+        float perpendicular = (float) Math.sqrt(Math.max(distanceSquared - depth * depth, 0));
+        if(perpendicular * coneCos - depth * coneSin > radius)
+        {
+            culled++;
+            return false;
+        }
+
+        /* The height of the line on screen decides between drawing the glyphs, a bar, or nothing at all */
+        byte flags = centered ? FLAG_CENTERED : 0;
+        if(depth > 0)
+        {
+            float pixels = StringCache.LINE_HEIGHT * downLength * pixelScale / depth;
+            if(pixels < 1)
+            {
+                culled++;
+                return false;
+            }
+            if(pixels < barPixels)
+            {
+                flags |= FLAG_BAR;
+                bars++;
+            }
+        }
+
+        if(count == strings.length)
+        {
+            int length = count * 2;
+            strings = Arrays.copyOf(strings, length);
+            transforms = Arrays.copyOf(transforms, length * TRANSFORM_SIZE);
+            stringColors = Arrays.copyOf(stringColors, length);
+            stringFlags = Arrays.copyOf(stringFlags, length);
+        }
+
+        int offset = count * TRANSFORM_SIZE;
+        transforms[offset] = x;
+        transforms[offset + 1] = y;
+        transforms[offset + 2] = z;
+        transforms[offset + 3] = rightAxisX;
+        transforms[offset + 4] = rightAxisY;
+        transforms[offset + 5] = rightAxisZ;
+        transforms[offset + 6] = downAxisX;
+        transforms[offset + 7] = downAxisY;
+        transforms[offset + 8] = downAxisZ;
+        strings[count] = str;
+
+        /* Same as FontRenderer.renderString(); callers that never set the alpha channel still get opaque text */
+        if((initialColor & 0xfc000000) == 0)
+        {
+            initialColor |= 0xff000000;
+        }
+        stringColors[count] = initialColor;
+        stringFlags[count] = flags;
+        count++;
+        return true;
+    }
+
+    /**
+     * Add a string that always faces the camera (i.e. a nameplate) to the current frame, unless it's culled. The string is centered
+     * horizontally on its origin.
+     *
+     * @param str the string to draw; it can contain color codes
+     * @param x the x coordinate of the top center of the string relative to the camera
+     * @param y the y coordinate of the top center of the string relative to the camera
+     * @param z the z coordinate of the top center of the string relative to the camera
+     * @param scale the size of one GUI unit in blocks (i.e. 0.016666668F * 1.6F for nameplates)
+     * @param initialColor the initial RGBA color to use when drawing the string; embedded color codes can override the RGB component
+     * @return true if the string will be drawn; false if it was culled
+     */
+    public boolean addBillboard(String str, float x, float y, float z, float scale, int initialColor)
+    {
+        return add(str, x, y, z, rightX * scale, rightY * scale, rightZ * scale, -upX * scale, -upY * scale, -upZ * scale,
+            initialColor, true);
+    }
+
+    /**
+     * Draw every string added since begin(). The glyphs of all the strings are sorted by their texture, so there is only one texture
+     * bind and one Tessellator batch for every glyph cache texture in use, plus one for all the bars and style lines.
+     */
+    public void end()
+    {
+        for(int index = 0; index < batchCount; index++)
+        {
+            batches[index].quadCount = 0;
+        }
+
+        for(int index = 0; index < count; index++)
+        {
+            int offset = index * TRANSFORM_SIZE;
+            originX = transforms[offset];
+            originY = transforms[offset + 1];
+            originZ = transforms[offset + 2];
+            axisRightX = transforms[offset + 3];
+            axisRightY = transforms[offset + 4];
+            axisRightZ = transforms[offset + 5];
+            axisDownX = transforms[offset + 6];
+            axisDownY = transforms[offset + 7];
+            axisDownZ = transforms[offset + 8];
+
+            boolean centered = (stringFlags[index] & FLAG_CENTERED) != 0;
+            if((stringFlags[index] & FLAG_BAR) != 0)
+            {
+                /* A bar only needs the string's width, which doesn't pre-render any glyph images */
+                int width = stringCache.getStringWidth(strings[index]);
+                int x1 = centered ? -(width / 2) : 0;
+                int color = stringColors[index];
+                color = color & 0xffffff | (int) ((color >>> 24) * BAR_ALPHA) << 24;
+                addQuad(0, color, x1, BAR_TOP, x1 + width, BAR_BOTTOM, 0, 0, 0, 0);
+            }
+            else
+            {
+                stringCache.batchWorldString(this, strings[index], stringColors[index], centered);
+            }
+        }
+
+        /* Release the strings so they don't stay reachable until the next frame */
+        Arrays.fill(strings, 0, count, null);
+
+        draw();
+    }
+
+    /** @return the number of strings culled in the current frame */
+    public int getCulledCount()
+    {
+        return culled;
+    }
+
+    /** @return the number of strings drawn as bars in the current frame */
+    public int getBarCount()
+    {
+        return bars;
+    }
+
+    /**
+     * Add a single quad of the current string to the batch of its texture, transforming it from the string's own coordinates
+     * (in GUI coordinate system, relative to the string's origin) into the world. Called by StringCache.batchWorldString().
+     *
+     * @param textureName the OpenGL texture of the quad, or zero for an untextured quad
+     * @param color the RGBA color of the quad
+     * @param x1 the left edge of the quad
+     * @param y1 the top edge of the quad
+     * @param x2 the right edge of the quad
+     * @param y2 the bottom edge of the quad
+     * @param u1 the texture coordinate at the left edge
+     * @param v1 the texture coordinate at the top edge
+     * @param u2 the texture coordinate at the right edge
+     * @param v2 the texture coordinate at the bottom edge
+     */
+    void addQuad(int textureName, int color, float x1, float y1, float x2, float y2, float u1, float v1, float u2, float v2)
+    {
+        Batch batch = lastBatch;
+        if(batch == null || batch.textureName != textureName)
+        {
+            batch = findBatch(textureName);
+            lastBatch = batch;
+        }
+
+        if(batch.quadCount == batch.colors.length)
+        {
+            batch.colors = Arrays.copyOf(batch.colors, batch.quadCount * 2);
+            batch.vertices = Arrays.copyOf(batch.vertices, batch.quadCount * 2 * 20);
+        }
+
+        /* The same vertex order as StringCache.renderGlyphs() */
+        int offset = batch.quadCount * 20;
+        addVertex(batch.vertices, offset, x1, y1, u1, v1);
+        addVertex(batch.vertices, offset + 5, x1, y2, u1, v2);
+        addVertex(batch.vertices, offset + 10, x2, y2, u2, v2);
+        addVertex(batch.vertices, offset + 15, x2, y1, u2, v1);
+        batch.colors[batch.quadCount++] = color;
+    }
+
+    /**
+     * Store a single vertex of the current string into a batch's vertex array.
+     *
+     * @param vertices the vertex array of the batch
+     * @param offset the position of the vertex in the array
+     * @param x the x coordinate relative to the string's origin (in GUI coordinate system)
+     * @param y the y coordinate relative to the string's origin (in GUI coordinate system)
+     * @param u the horizontal texture coordinate
+     * @param v the vertical texture coordinate
+     */
+    private void addVertex(float vertices[], int offset, float x, float y, float u, float v)
+    {
+        vertices[offset] = originX + x * axisRightX + y * axisDownX;
+        vertices[offset + 1] = originY + x * axisRightY + y * axisDownY;
+        vertices[offset + 2] = originZ + x * axisRightZ + y * axisDownZ;
+        vertices[offset + 3] = u;
+        vertices[offset + 4] = v;
+    }
+
+    /**
+     * Return the batch for a texture, adding a new one if this texture was never used before.
+     *
+     * @param textureName the OpenGL texture of the batch, or zero for untextured quads
+     * @return the batch collecting the quads of textureName
+     */
+    private Batch findBatch(int textureName)
+    {
+        /* There are only ever a handful of glyph cache textures, so a linear search is good enough */
+        for(int index = 0; index < batchCount; index++)
+        {
+            if(batches[index].textureName == textureName)
+            {
+                return batches[index];
+            }
+        }
+
+        if(batchCount == batches.length)
+        {
+            batches = Arrays.copyOf(batches, batchCount * 2);
+        }
+
+        Batch batch = new Batch();
+        batch.textureName = textureName;
+        batches[batchCount++] = batch;
+        return batch;
+    }
+
+    /** Draw the quads of every batch, one texture at a time, and the untextured quads last so they appear over the glyphs. */
+    private void draw()
+    {
+        /* World text is always blended since the anti-aliased edges of glyphs and the bars are translucent */
+        GL11.glEnable(GL11.GL_BLEND);
+        GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+
+        Tessellator tessellator = Tessellator.instance;
+        Batch untextured = null;
+        for(int index = 0; index < batchCount; index++)
+        {
+            Batch batch = batches[index];
+            if(batch.textureName == 0)
+            {
+                untextured = batch;
+            }
+            else if(batch.quadCount > 0)
+            {
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, batch.textureName);
+                drawBatch(tessellator, batch, true);
+            }
+        }
+
+        if(untextured != null && untextured.quadCount > 0)
+        {
+            GL11.glDisable(GL11.GL_TEXTURE_2D);
+            drawBatch(tessellator, untextured, false);
+            GL11.glEnable(GL11.GL_TEXTURE_2D);
+        }
+    }
+
+    /**
+     * Draw all the quads of a single batch with the Tessellator.
+     *
+     * @param tessellator the Tessellator instance
+     * @param batch the batch to draw
+     * @param textured true to include the texture coordinates of every vertex
+     */
+    private void drawBatch(Tessellator tessellator, Batch batch, boolean textured)
+    {
+        tessellator.startDrawingQuads();
+
+        float vertices[] = batch.vertices;
+        int colors[] = batch.colors;
+        for(int quad = 0, offset = 0; quad < batch.quadCount; quad++)
+        {
+            /* The color is only set when it changes since most strings use a single color */
+            int color = colors[quad];
+            if(quad == 0 || color != colors[quad - 1])
+            {
+                tessellator.setColorRGBA(color >> 16 & 0xff, color >> 8 & 0xff, color & 0xff, color >> 24 & 0xff);
+            }
+
+            for(int vertex = 0; vertex < 4; vertex++, offset += 5)
+            {
+                if(textured)
+                {
+                    tessellator.addVertexWithUV(vertices[offset], vertices[offset + 1], vertices[offset + 2], vertices[offset + 3],
+                        vertices[offset + 4]);
+                }
+                else
+                {
+                    tessellator.addVertex(vertices[offset], vertices[offset + 1], vertices[offset + 2]);
+                }
+            }
+        }
+
+        tessellator.draw();
+    }
+}